@@ -0,0 +1,96 @@
+package com.javamonitor;
+
+import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.javamonitor.mbeans.Probe;
+
+/**
+ * Benchmarks the sampling of the items for a push, which is where
+ * <code>Collector.queryItems()</code> does its work. Half the items read a
+ * plain attribute and the other half read a field of a composite attribute.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CollectorBenchmark {
+    /**
+     * The number of items to sample.
+     */
+    @Param( { "10", "100", "1000" })
+    public int items;
+
+    private Collector collector;
+
+    /**
+     * Register the synthetic mbeans and give the collector a session with an
+     * item on each of them, as if the collector server had sent them.
+     *
+     * @throws Exception
+     *             When the mbeans could not be registered.
+     */
+    @Setup
+    public void setup() throws Exception {
+        Synthetic.register(getPlatformMBeanServer(), items);
+
+        final Properties response = new Properties();
+        response.setProperty("session", "bench");
+        for (int i = 0; i < items; i++) {
+            response.setProperty(Integer.toString(i), Synthetic.objectName(i)
+                    + (i % 2 == 0 ? "|Count|true" : "|Usage.used|true"));
+        }
+
+        collector = new Collector("bench", new Probe());
+        collector.parse(response);
+    }
+
+    /**
+     * Stop the readers and unregister the synthetic mbeans.
+     *
+     * @throws Exception
+     *             When the mbeans could not be unregistered.
+     */
+    @TearDown
+    public void tearDown() throws Exception {
+        collector.close();
+        Synthetic.unregister(getPlatformMBeanServer());
+    }
+
+    /**
+     * Sample all items. The sample is handed back afterwards, as a push does,
+     * so that we measure sampling into a reused batch.
+     *
+     * @param blackhole
+     *            Where the sample goes, so that it is not optimised away.
+     * @throws IOException
+     *             Never, the sample is kept in memory.
+     */
+    @Benchmark
+    public void queryItems(final Blackhole blackhole) throws IOException {
+        final SampleBatch batch = collector.snapshot();
+        blackhole.consume(batch);
+        collector.recycle(batch);
+    }
+}
@@ -0,0 +1,128 @@
+package com.javamonitor;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the JMX helper: reading composite paths and listing mbeans in
+ * mbean servers of various sizes.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JmxHelperBenchmark {
+    private static final String MEMORY = "java.lang:type=Memory";
+
+    /**
+     * An mbean server of its own, filled with synthetic mbeans.
+     */
+    @State(Scope.Benchmark)
+    public static class Names {
+        /**
+         * The number of synthetic mbeans in the mbean server.
+         */
+        @Param( { "1000", "10000", "100000" })
+        public int mbeans;
+
+        MBeanServer server;
+
+        /**
+         * Create the mbean server and fill it.
+         *
+         * @throws Exception
+         *             When the mbeans could not be registered.
+         */
+        @Setup
+        public void setup() throws Exception {
+            server = MBeanServerFactory.createMBeanServer();
+            Synthetic.register(server, mbeans);
+        }
+
+        /**
+         * Release the mbean server.
+         */
+        @TearDown
+        public void tearDown() {
+            MBeanServerFactory.releaseMBeanServer(server);
+        }
+    }
+
+    /**
+     * Read a field of a composite attribute.
+     *
+     * @return The field's value.
+     * @throws Exception
+     *             When the attribute could not be read.
+     */
+    @Benchmark
+    public Object queryComposite() throws Exception {
+        return JmxHelper.query(MEMORY, "HeapMemoryUsage.used");
+    }
+
+    /**
+     * List all synthetic mbeans.
+     *
+     * @param names
+     *            The mbean server with the synthetic mbeans.
+     * @return The names of the synthetic mbeans.
+     * @throws Exception
+     *             When the query could not be parsed.
+     */
+    @Benchmark
+    public Set<ObjectName> queryNames(final Names names) throws Exception {
+        return JmxHelper.queryNames(Synthetic.DOMAIN + ":type=Synthetic,*");
+    }
+
+    /**
+     * Look for a single synthetic mbean, by a pattern.
+     *
+     * @param names
+     *            The mbean server with the synthetic mbeans.
+     * @return The name of the synthetic mbean.
+     * @throws Exception
+     *             When the query could not be parsed.
+     */
+    @Benchmark
+    public Set<ObjectName> queryNamesSingle(final Names names)
+            throws Exception {
+        return JmxHelper.queryNames(Synthetic.DOMAIN
+                + ":name=synthetic7,*");
+    }
+
+    /**
+     * Look for mbeans that are not there, which makes us go through all mbean
+     * servers.
+     *
+     * @param names
+     *            The mbean server with the synthetic mbeans.
+     * @return No names.
+     * @throws Exception
+     *             When the query could not be parsed.
+     */
+    @Benchmark
+    public Set<ObjectName> queryNamesMissing(final Names names)
+            throws Exception {
+        return JmxHelper.queryNames("com.javamonitor.missing:*");
+    }
+}
@@ -0,0 +1,77 @@
+package com.javamonitor;
+
+import java.lang.management.MemoryUsage;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A synthetic mbean, to fill mbean servers with for the benchmarks.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class Synthetic implements SyntheticMXBean {
+    /**
+     * The domain that the synthetic mbeans are registered in.
+     */
+    public static final String DOMAIN = "com.javamonitor.bench";
+
+    private long count = 0L;
+
+    /**
+     * @see com.javamonitor.SyntheticMXBean#getCount()
+     */
+    public long getCount() {
+        return count++;
+    }
+
+    /**
+     * @see com.javamonitor.SyntheticMXBean#getUsage()
+     */
+    public MemoryUsage getUsage() {
+        return new MemoryUsage(0L, count, count * 2L, count * 4L);
+    }
+
+    /**
+     * Find the object name of a synthetic mbean.
+     *
+     * @param i
+     *            The number of the mbean.
+     * @return The object name of the mbean.
+     */
+    public static String objectName(final int i) {
+        return DOMAIN + ":type=Synthetic,name=synthetic" + i;
+    }
+
+    /**
+     * Register a number of synthetic mbeans.
+     *
+     * @param server
+     *            The mbean server to register the mbeans in.
+     * @param count
+     *            The number of mbeans to register.
+     * @throws Exception
+     *             When an mbean could not be registered.
+     */
+    public static void register(final MBeanServer server, final int count)
+            throws Exception {
+        for (int i = 0; i < count; i++) {
+            server.registerMBean(new Synthetic(), new ObjectName(objectName(i)));
+        }
+    }
+
+    /**
+     * Unregister all synthetic mbeans.
+     *
+     * @param server
+     *            The mbean server to unregister the mbeans from.
+     * @throws Exception
+     *             When an mbean could not be unregistered.
+     */
+    public static void unregister(final MBeanServer server) throws Exception {
+        for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN
+                + ":*"), null)) {
+            server.unregisterMBean(name);
+        }
+    }
+}
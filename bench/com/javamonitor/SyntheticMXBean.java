@@ -0,0 +1,26 @@
+package com.javamonitor;
+
+import java.lang.management.MemoryUsage;
+
+/**
+ * The interface to the synthetic mbeans that the benchmarks query. It is an
+ * MXBean, so that the usage shows up as composite data, just like the memory
+ * usage on the platform's memory mbean.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface SyntheticMXBean {
+    /**
+     * A simple attribute.
+     *
+     * @return A number that goes up with each read.
+     */
+    long getCount();
+
+    /**
+     * A composite attribute.
+     *
+     * @return A made up memory usage.
+     */
+    MemoryUsage getUsage();
+}
@@ -0,0 +1,89 @@
+package com.javamonitor.mbeans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the sampling of the thread states by the threading mbean, with
+ * a varying number of live threads. Each invocation uses a fresh mbean, so
+ * that we measure the sampling and not the cached states.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadingBenchmark {
+    /**
+     * The number of extra live threads.
+     */
+    @Param( { "100", "1000", "10000" })
+    public int threads;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final List<Thread> started = new ArrayList<Thread>();
+
+    /**
+     * Start the threads. They wait until the benchmark is over.
+     */
+    @Setup
+    public void setup() {
+        for (int i = 0; i < threads; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // we're done
+                    }
+                }
+            }, "bench-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            started.add(thread);
+        }
+    }
+
+    /**
+     * Stop the threads.
+     *
+     * @throws InterruptedException
+     *             When we were interrupted while waiting for the threads.
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        done.countDown();
+        for (final Thread thread : started) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Sample the thread states.
+     *
+     * @return The number of runnable threads.
+     */
+    @Benchmark
+    public int sampleThreads() {
+        return new Threading().getThreadsRunnable();
+    }
+}
@@ -0,0 +1,94 @@
+package com.javamonitor.openfire.mbeans;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.interceptor.PacketInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Benchmarks the packet counting interceptor, with many threads counting
+ * packets at the same time, as they do on a busy Openfire server.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(8)
+public class PacketCounterBenchmark {
+    private final PacketCounter counter = new PacketCounter();
+
+    private PacketInterceptor interceptor;
+
+    /**
+     * The packets that a single thread counts, in turn.
+     */
+    @State(Scope.Thread)
+    public static class Packets {
+        final Packet[] packets = { new Message(), new Presence(),
+                new IQ(IQ.Type.get), new IQ(IQ.Type.set),
+                new IQ(IQ.Type.result), new IQ(IQ.Type.error) };
+
+        int next = 0;
+
+        Packet next() {
+            next = (next + 1) % packets.length;
+            return packets[next];
+        }
+    }
+
+    /**
+     * Start counting and get hold of the interceptor.
+     *
+     * @throws Exception
+     *             When the interceptor could not be found.
+     */
+    @Setup
+    public void setup() throws Exception {
+        counter.start();
+
+        final Field field = PacketCounter.class.getDeclaredField("interceptor");
+        field.setAccessible(true);
+        interceptor = (PacketInterceptor) field.get(counter);
+    }
+
+    /**
+     * Stop counting.
+     */
+    @TearDown
+    public void tearDown() {
+        counter.stop();
+    }
+
+    /**
+     * Count a packet.
+     *
+     * @param packets
+     *            This thread's packets.
+     * @throws Exception
+     *             Never, the interceptor does not reject packets.
+     */
+    @Benchmark
+    public void interceptPacket(final Packets packets) throws Exception {
+        interceptor.interceptPacket(packets.next(), null, true, true);
+    }
+}
@@ -0,0 +1,321 @@
+package com.javamonitor;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+
+/**
+ * A compiled path into the value of an mbean attribute. The path starts with
+ * the name of the attribute, followed by any number of steps into the value:
+ * <ul>
+ * <li><code>.field</code> takes a field of composite data,</li>
+ * <li><code>[key]</code> takes a row of tabular data, an entry of a map, or
+ * an element of an array or a list.</li>
+ * </ul>
+ * For example, <code>HeapMemoryUsage.used</code> or
+ * <code>LastGcInfo.memoryUsageAfterGc[G1 Old Gen].value.used</code>. Rows of
+ * tabular data that hold just a key and a value, such as the memory usage per
+ * pool above, are entered by <code>.value</code>, as with any other row.
+ * <p>
+ * Parsing the path is done once, when the path is compiled. Following the
+ * path is a matter of running through the compiled steps. Compiled paths are
+ * kept by their path, so that the helpers that are handed a path as a string
+ * do not parse it again on every call.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class AttributePath {
+    private static final Step[] NO_STEPS = new Step[0];
+
+    /**
+     * The most compiled paths that we keep. Paths come from the collector
+     * server and from the server detectors, so there are not many of them.
+     */
+    private static final int MAX_COMPILED = 1024;
+
+    private static final ConcurrentMap<String, AttributePath> compiled = new ConcurrentHashMap<String, AttributePath>();
+
+    private final String path;
+
+    private final String attributeName;
+
+    private final Step[] steps;
+
+    private AttributePath(final String path, final String attributeName,
+            final Step[] steps) {
+        this.path = path;
+        this.attributeName = attributeName;
+        this.steps = steps;
+    }
+
+    /**
+     * Compile an attribute path.
+     *
+     * @param path
+     *            The attribute path.
+     * @return The compiled path.
+     * @throws IllegalArgumentException
+     *             When the path could not be parsed.
+     */
+    static AttributePath compile(final String path) {
+        AttributePath attributePath = compiled.get(path);
+        if (attributePath == null) {
+            attributePath = parse(path);
+            if (compiled.size() < MAX_COMPILED) {
+                compiled.putIfAbsent(path, attributePath);
+            }
+        }
+
+        return attributePath;
+    }
+
+    private static AttributePath parse(final String path) {
+        int i = 0;
+        while (i < path.length() && path.charAt(i) != '.'
+                && path.charAt(i) != '[') {
+            i++;
+        }
+        if (i == 0) {
+            throw new IllegalArgumentException("no attribute name in path '"
+                    + path + "'");
+        }
+        final String attributeName = path.substring(0, i);
+        if (i == path.length()) {
+            return new AttributePath(path, attributeName, NO_STEPS);
+        }
+
+        final List<Step> steps = new ArrayList<Step>();
+        while (i < path.length()) {
+            if (path.charAt(i) == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.'
+                        && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw new IllegalArgumentException(
+                            "empty field name in path '" + path + "'");
+                }
+                steps.add(new Field(path.substring(i + 1, end)));
+                i = end;
+            } else if (path.charAt(i) == '[') {
+                final int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("missing ] in path '"
+                            + path + "'");
+                }
+                steps.add(new Key(path.substring(i + 1, end)));
+                i = end + 1;
+            } else {
+                throw new IllegalArgumentException("expected . or [ at "
+                        + path.substring(i) + " in path '" + path + "'");
+            }
+        }
+
+        return new AttributePath(path, attributeName, steps
+                .toArray(new Step[steps.size()]));
+    }
+
+    /**
+     * Find the name of the mbean attribute that this path starts with.
+     *
+     * @return The name of the mbean attribute.
+     */
+    String getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * Follow the path into the value of its mbean attribute. A
+     * <code>null</code> anywhere along the path makes the whole value
+     * <code>null</code>, just like a missing row or field. That way, paths
+     * into values that are not there yet, such as
+     * <code>LastGcInfo</code> before the first collection, read as
+     * <code>null</code> instead of failing.
+     *
+     * @param value
+     *            The value of the mbean attribute named by
+     *            <code>getAttributeName()</code>.
+     * @return The value that this path points to, which may be
+     *         <code>null</code>.
+     * @throws IllegalArgumentException
+     *             When the path cannot be followed into the value.
+     */
+    Object resolve(final Object value) {
+        Object current = value;
+        for (int i = 0; i < steps.length && current != null; i++) {
+            current = steps[i].get(current);
+        }
+
+        return current;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /**
+     * A single step along an attribute path.
+     */
+    private abstract static class Step {
+        abstract Object get(Object value);
+    }
+
+    /**
+     * A step into a field of composite data.
+     */
+    private static final class Field extends Step {
+        private final String name;
+
+        Field(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object get(final Object value) {
+            if (!(value instanceof CompositeData)) {
+                throw new IllegalArgumentException("cannot take field '"
+                        + name + "' from a " + value.getClass().getName());
+            }
+
+            return ((CompositeData) value).get(name);
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "." + name;
+        }
+    }
+
+    /**
+     * A step into a row of tabular data, an entry of a map or an element of
+     * an array or a list.
+     */
+    private static final class Key extends Step {
+        private final String key;
+
+        /**
+         * The key as a number, or -1 if it is not one.
+         */
+        private final int index;
+
+        /**
+         * The row key for the tabular type that we last saw, converted to the
+         * type of its index. Tabular data of the same type tends to come back
+         * on every read.
+         */
+        private TabularType lastType = null;
+
+        private Object[] lastRowKey = null;
+
+        Key(final String key) {
+            this.key = key;
+
+            int number = -1;
+            try {
+                number = Integer.parseInt(key.trim());
+            } catch (NumberFormatException e) {
+                // not an index, then
+            }
+            this.index = number;
+        }
+
+        @Override
+        Object get(final Object value) {
+            if (value instanceof TabularData) {
+                final TabularData table = (TabularData) value;
+                return table.get(rowKey(table.getTabularType()));
+            }
+            if (value instanceof Map) {
+                return ((Map<?, ?>) value).get(key);
+            }
+            if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                checkIndex(list.size());
+                return list.get(index);
+            }
+            if (value.getClass().isArray()) {
+                checkIndex(Array.getLength(value));
+                return Array.get(value, index);
+            }
+
+            throw new IllegalArgumentException("cannot take [" + key
+                    + "] from a " + value.getClass().getName());
+        }
+
+        private void checkIndex(final int length) {
+            if (index < 0 || index >= length) {
+                throw new IllegalArgumentException("no element [" + key
+                        + "] in a list of " + length);
+            }
+        }
+
+        private synchronized Object[] rowKey(final TabularType type) {
+            if (type != lastType) {
+                final List<String> indexNames = type.getIndexNames();
+                if (indexNames.size() != 1) {
+                    throw new IllegalArgumentException("cannot take [" + key
+                            + "] from tabular data indexed by " + indexNames);
+                }
+
+                lastRowKey = new Object[] { convert(type.getRowType()
+                        .getType(indexNames.get(0))) };
+                lastType = type;
+            }
+
+            return lastRowKey;
+        }
+
+        /**
+         * Convert the key to the type of the index of tabular data. The open
+         * type is taken as a plain object, since <code>OpenType</code> only
+         * became generic in Java 6.
+         */
+        private Object convert(final Object type) {
+            final String trimmed = key.trim();
+            if (SimpleType.INTEGER.equals(type)) {
+                return Integer.valueOf(trimmed);
+            }
+            if (SimpleType.LONG.equals(type)) {
+                return Long.valueOf(trimmed);
+            }
+            if (SimpleType.SHORT.equals(type)) {
+                return Short.valueOf(trimmed);
+            }
+            if (SimpleType.BYTE.equals(type)) {
+                return Byte.valueOf(trimmed);
+            }
+            if (SimpleType.BOOLEAN.equals(type)) {
+                return Boolean.valueOf(trimmed);
+            }
+            if (SimpleType.CHARACTER.equals(type) && key.length() == 1) {
+                return Character.valueOf(key.charAt(0));
+            }
+
+            return key;
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "[" + key + "]";
+        }
+    }
+}
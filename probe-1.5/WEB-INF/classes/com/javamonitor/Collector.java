@@ -1,39 +1,68 @@
 package com.javamonitor;
 
 import static com.javamonitor.JmxHelper.queryString;
+import static com.javamonitor.mbeans.Probe.threadAllocatedBytes;
+import static com.javamonitor.mbeans.Probe.threadCpuTime;
+import static com.javamonitor.mbeans.Server.defaultName;
 import static com.javamonitor.mbeans.Server.httpPortAttribute;
 import static com.javamonitor.mbeans.Server.nameAttribute;
 import static com.javamonitor.mbeans.Server.serverObjectName;
 import static java.lang.Integer.parseInt;
+import static java.lang.System.currentTimeMillis;
 import static java.lang.System.getProperty;
+import static java.lang.System.nanoTime;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
 import static java.net.Proxy.NO_PROXY;
 import static java.net.Proxy.Type.HTTP;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
-import java.net.Socket;
 import java.net.URL;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 import java.util.logging.Logger;
 
 import javax.management.ObjectName;
 
+import com.javamonitor.mbeans.Probe;
+
 /**
  * The data collector and interface to the collector server.
  * 
@@ -53,254 +82,1542 @@ final class Collector {
      * solution better. It makes the probe follow the normal way to configure
      * proxies.
      * <p>
-     * See also
-     * http://java.sun.com/javase/6/docs/technotes/guides/net/proxies.html.
+     * See also
+     * http://java.sun.com/javase/6/docs/technotes/guides/net/proxies.html.
+     */
+    private final Proxy proxy;
+
+    private static final String JAVA_MONITOR_URL = "javamonitor.url";
+
+    /**
+     * Set this system property to <code>false</code> to never compress the
+     * requests we send to the collector server.
+     */
+    private static final String JAVA_MONITOR_COMPRESSION = "javamonitor.compression";
+
+    /**
+     * Set this system property to <code>true</code> to keep the connection to
+     * the collector server open between pushes. The JVM's HTTP client only
+     * keeps an idle connection for as long as the collector server's
+     * <code>Keep-Alive: timeout=...</code> response header says, or for 5
+     * seconds if it sends none. So pushes can only reuse the connection if
+     * the collector server keeps idle connections for longer than a minute
+     * and says so. On Java versions that know it, the system property
+     * <code>http.keepAlive.time.server</code> sets the time for collector
+     * servers that send no such header. The system property
+     * <code>http.keepAlive</code> must not be <code>false</code>.
+     */
+    private static final String JAVA_MONITOR_KEEPALIVE = "javamonitor.keepalive";
+
+    /**
+     * The system property that sets the size of the spool file, in kilobytes.
+     * Set it to 0 to never spool samples.
+     */
+    private static final String JAVA_MONITOR_SPOOL = "javamonitor.spool";
+
+    private static final int DEFAULT_SPOOL_SIZE = 4 * 1024;
+
+    /**
+     * The system property that sets the directory to keep the spool file in.
+     * By default we use a directory of our own in the temporary directory.
+     */
+    private static final String JAVA_MONITOR_SPOOLDIR = "javamonitor.spooldir";
+
+    /**
+     * Set this system property to <code>host:port</code> to also send the
+     * sampled item values to a StatsD agent.
+     */
+    private static final String JAVA_MONITOR_STATSD = "javamonitor.statsd";
+
+    /**
+     * The system property that sets the prefix of the StatsD metric names.
+     */
+    private static final String JAVA_MONITOR_STATSD_PREFIX = "javamonitor.statsd.prefix";
+
+    /**
+     * The system property that sets the number of seconds between samples of
+     * periodic items, if the collector server did not set one. By default we
+     * only sample when we push, once a minute.
+     */
+    private static final String JAVA_MONITOR_SAMPLE_INTERVAL = "javamonitor.sampleinterval";
+
+    /**
+     * The number of seconds between pushes.
+     */
+    static final int PUSH_INTERVAL = 60;
+
+    /**
+     * The time between ticks of the item schedule, in milliseconds.
+     */
+    static final long TICK = 1000L;
+
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * The number of pushed samples we keep around for reuse. This covers the
+     * samples waiting to be pushed, the one being pushed and the one being
+     * taken.
+     */
+    private static final int SPARE_BATCHES = 6;
+
+    /**
+     * The number of threads that read mbeans in parallel.
+     */
+    private static final int READERS = 4;
+
+    /**
+     * The longest we wait for a single mbean to answer, counted from when we
+     * handed its read to the readers, in milliseconds.
+     */
+    private static final long DEADLINE = 2000L;
+
+    /**
+     * The longest we wait for all the mbeans of a single sample to answer, in
+     * milliseconds.
+     */
+    private static final long BUDGET = 10000L;
+
+    /**
+     * The maximum number of spooled sample bytes we put in a single replay
+     * batch.
+     */
+    private static final int MAX_REPLAY_BATCH = 256 * 1024;
+
+    private URL pushUrl = null;
+
+    private String account = null;
+
+    private final String uniqueId;
+
+    /*
+     * The identity of the server we run in, which does not change once we
+     * know it. We still look for the port while the server has none.
+     */
+
+    private String lowestPort = null;
+
+    private String appserver = null;
+
+    /**
+     * The other JVM that we read the items from, or <code>null</code> if we
+     * read them from this JVM.
+     */
+    private final RemoteJvm jvm;
+
+    private volatile String session = null;
+
+    private final Collection<Item> items = new LinkedList<Item>();
+
+    private ItemPlan plan = null;
+
+    /**
+     * Set when we made a new item plan since the last push.
+     */
+    private boolean replanned = false;
+
+    /**
+     * Set when the collector server told us that it accepts the compact wire
+     * format.
+     */
+    private boolean compact = false;
+
+    private final KeyDictionary dictionary = new KeyDictionary();
+
+    private final LocalIp localIp = new LocalIp(TWO_MINUTES);
+
+    private final DeltaTracker delta = new DeltaTracker();
+
+    private final SampleAggregator aggregator = new SampleAggregator();
+
+    private final OpenMetrics metrics = new OpenMetrics();
+
+    /**
+     * The schedule of the items that are sampled more or less often than we
+     * push. One tick of the wheel is one second.
+     */
+    private final TimingWheel<Item> wheel = new TimingWheel<Item>(WHEEL_SIZE);
+
+    /**
+     * The items that are sampled less often than we push, and that are due
+     * to go out with the next push.
+     */
+    private final Set<Item> duePush = new HashSet<Item>();
+
+    /**
+     * Samples that were pushed or spooled, ready to be reused.
+     */
+    private final BlockingQueue<SampleBatch> spares = new ArrayBlockingQueue<SampleBatch>(
+            SPARE_BATCHES);
+
+    /*
+     * The collections below are reused by every sample, so that sampling does
+     * not create garbage. They are only touched with the collector locked.
+     */
+
+    private final Set<Item> dueItems = new HashSet<Item>();
+
+    private final Set<Item> readItems = new HashSet<Item>();
+
+    private final List<Item> retryItems = new ArrayList<Item>();
+
+    private final Map<Item, Throwable> tickFailures = new HashMap<Item, Throwable>();
+
+    private final List<MBeanRead> readings = new ArrayList<MBeanRead>();
+
+    private final List<Future<MBeanRead>> futures = new ArrayList<Future<MBeanRead>>();
+
+    private final Map<ItemPlan.Target, MBeanRead> targetReads = new HashMap<ItemPlan.Target, MBeanRead>();
+
+    /**
+     * The sample interval of periodic items that the server did not give an
+     * interval for, in seconds.
+     */
+    private final int defaultInterval;
+
+    /**
+     * The probe mbean, which we tell what we do and what that costs.
+     */
+    private final Probe probe;
+
+    /**
+     * The cost of reading each item, and the circuit breakers that demote the
+     * items that are chronically slow to read.
+     */
+    private final ItemCosts costs = new ItemCosts();
+
+    /**
+     * The items that failed, waiting to be tried again.
+     */
+    private final ItemRetries retries = new ItemRetries();
+
+    /**
+     * The errors we reported in this session, so that we send each distinct
+     * stack trace only once.
+     */
+    private final ErrorFingerprints errors = new ErrorFingerprints();
+
+    /**
+     * The pool of threads that read the mbeans in parallel, created when we
+     * first need it.
+     */
+    private Readers readers = null;
+
+    /**
+     * Set if the readers are shared with other collectors, so that closing
+     * this collector leaves them running.
+     */
+    private final boolean sharedReaders;
+
+    /**
+     * The reads that got stuck in a getter, and that have not finished yet,
+     * by mbean. Each of these holds a reader that we replaced.
+     */
+    private final Map<ObjectName, MBeanRead> hung = new HashMap<ObjectName, MBeanRead>();
+
+    /**
+     * The exporter for StatsD, or <code>null</code> if we do not export to
+     * StatsD.
+     */
+    private StatsdExporter statsd = null;
+
+    /**
+     * The spool for the samples we could not push, or <code>null</code> if we
+     * do not spool.
+     */
+    private volatile SampleSpool spool = null;
+
+    private boolean spoolOpened = false;
+
+    /**
+     * Set when the collector server told us that it accepts replay batches of
+     * spooled samples.
+     */
+    private boolean replay = false;
+
+    /**
+     * Set when the collector server told us that it accepts multi-probe
+     * batches.
+     */
+    private volatile boolean batchAccepted = false;
+
+    /**
+     * The connection of the request in flight, so that we can abort it when
+     * the probe is stopped.
+     */
+    private volatile HttpURLConnection inFlight = null;
+
+    /**
+     * Set when the probe is stopping, so that no new request goes out. A
+     * request that is about to connect cannot be aborted through its
+     * connection.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     * Set when the collector server told us that it accepts gzip compressed
+     * requests, using an <code>Accept-Encoding</code> response header.
+     */
+    private boolean gzip = false;
+
+    /**
+     * Set when the collector server told us that it reads the summaries of
+     * sub-minute samples in XML requests.
+     */
+    private boolean summaries = false;
+
+    private final boolean compression = !"false"
+            .equalsIgnoreCase(getProperty(JAVA_MONITOR_COMPRESSION));
+
+    /**
+     * In keep-alive mode we leave the connection to the collector server open
+     * after each push, so that the next push can skip the TCP (and possibly
+     * TLS) handshake. The JVM's HTTP client keeps the connection around for as
+     * long as the collector server's <code>Keep-Alive</code> timeout allows.
+     */
+    private final boolean keepAlive = Boolean
+            .getBoolean(JAVA_MONITOR_KEEPALIVE);
+
+    /**
+     * The time until which the JVM's HTTP client keeps the connection of our
+     * last push open, in milliseconds since the epoch. A push before then
+     * probably reuses that connection.
+     */
+    private long idleUntil = 0L;
+
+    /**
+     * The number of seconds that the collector server said it keeps idle
+     * connections open for, so that we only complain about it once.
+     */
+    private int keepAliveTimeout = -1;
+
+    /**
+     * Create a new collector.
+     * 
+     * @param uniqueId
+     *            The unique ID to use instead of port number, or
+     *            <code>null</code> to use the port number.
+     * @param probe
+     *            The probe mbean to report our own overhead to.
+     */
+    Collector(final String uniqueId, final Probe probe) {
+        this(uniqueId, probe, null, null);
+    }
+
+    /**
+     * Create a new collector for another JVM on this machine, as used by the
+     * sidecar.
+     * 
+     * @param uniqueId
+     *            The unique ID to use instead of port number, or
+     *            <code>null</code> to use the port number.
+     * @param probe
+     *            The probe mbean to report our own overhead to.
+     * @param jvm
+     *            The JVM to read the items from, or <code>null</code> to read
+     *            them from this JVM.
+     * @param readers
+     *            The readers to share with other collectors, or
+     *            <code>null</code> to start our own when we need them.
+     */
+    Collector(final String uniqueId, final Probe probe, final RemoteJvm jvm,
+            final Readers readers) {
+        this.uniqueId = uniqueId;
+        this.probe = probe;
+        this.jvm = jvm;
+        this.readers = readers;
+        this.sharedReaders = readers != null;
+
+        final int sampleInterval = parseInt(getProperty(
+                JAVA_MONITOR_SAMPLE_INTERVAL, "0"));
+        defaultInterval = sampleInterval > 0 && sampleInterval < PUSH_INTERVAL ? sampleInterval
+                : PUSH_INTERVAL;
+
+        proxy = findProxy();
+
+        // StatsD names carry no JVM, so only the probe in the JVM exports
+        final String statsdAgent = getProperty(JAVA_MONITOR_STATSD);
+        if (statsdAgent != null && jvm == null) {
+            try {
+                statsd = new StatsdExporter(statsdAgent, getProperty(
+                        JAVA_MONITOR_STATSD_PREFIX, "javamonitor."));
+            } catch (Exception e) {
+                log.log(WARNING, "unable to export to StatsD agent "
+                        + statsdAgent, e);
+            }
+        }
+    }
+
+    /**
+     * Take a sample of the item values, to be pushed to the collector server
+     * by the push stage. Any summaries of the samples taken since the
+     * previous sample go with it.
+     * 
+     * @return The sample.
+     * @throws IOException
+     *             When there was a problem.
+     */
+    synchronized SampleBatch snapshot() throws IOException {
+        final long start = nanoTime();
+        final long cpu = threadCpuTime();
+        final long allocated = threadAllocatedBytes();
+        try {
+            retryFailedItems();
+            plan();
+            final Map<Item, Throwable> failedItems = plan.takeFailures();
+
+            SampleBatch batch = spares.poll();
+            if (batch == null) {
+                batch = new SampleBatch(currentTimeMillis(), replanned);
+            } else {
+                batch.reset(currentTimeMillis(), replanned);
+            }
+            replanned = false;
+            if (session != null) {
+                batch.property(SESSION, session);
+            }
+            queryItems(batch, failedItems);
+            aggregator.clear();
+            metrics.publish(costs);
+            if (statsd != null) {
+                statsd.flush();
+            }
+
+            return batch;
+        } finally {
+            probe.cycle(nanoTime() - start);
+            probe.work(threadCpuTime() - cpu, threadAllocatedBytes()
+                    - allocated);
+        }
+    }
+
+    /**
+     * Put the failed items that are due to be tried again back in the
+     * schedule.
+     */
+    private void retryFailedItems() {
+        if (!retries.takeDue(currentTimeMillis(), retryItems)) {
+            return;
+        }
+
+        for (final Item item : retryItems) {
+            items.add(item);
+            schedule(item, true);
+        }
+        retryItems.clear();
+        plan = null;
+    }
+
+    /**
+     * Hand back a sample that was pushed or spooled, so that the next sample
+     * can reuse it.
+     * 
+     * @param batch
+     *            The sample that is no longer needed.
+     */
+    void recycle(final SampleBatch batch) {
+        spares.offer(batch);
+    }
+
+    /**
+     * Find the item values, for local scraping.
+     * 
+     * @return The item values, as of the last sample.
+     */
+    OpenMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sign in with the collector server and ask for permission to send
+     * statistics, pushing a sample along the way. If the push fails, the
+     * sample goes into the spool.
+     * 
+     * @param batch
+     *            The sample to push.
+     * @return <code>true</code> if the configuration was stale and we need to
+     *         reconfigure. <code>false</code> if we may just reuse the existing
+     *         list.
+     * @throws OnHoldException
+     *             When we were put on hold by the server.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    boolean push(final SampleBatch batch) throws Exception, OnHoldException {
+        final long cpu = threadCpuTime();
+        final long allocated = threadAllocatedBytes();
+        try {
+            init();
+
+            final Properties response;
+            try {
+                final long start = nanoTime();
+                response = pushRequest(batch, keepAlive);
+                probe.push(nanoTime() - start);
+                delta.commit();
+            } catch (Exception e) {
+                pushFailed(batch);
+                throw e;
+            }
+
+            if (replay && spool != null && !spool.isEmpty()) {
+                replay();
+            }
+
+            return parse(response);
+        } finally {
+            probe.work(threadCpuTime() - cpu, threadAllocatedBytes()
+                    - allocated);
+        }
+    }
+
+    /**
+     * Write the request for a sample, to be pushed as part of a multi-probe
+     * batch. Batches are only sent to collector servers that accept them, so
+     * the request is always compact.
+     * 
+     * @param batch
+     *            The sample to push.
+     * @return The request.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    byte[] batchRequest(final SampleBatch batch) throws Exception {
+        init();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SampleWriter request = new CompactSampleWriter(bytes,
+                dictionary);
+        writeRequest(request, batch);
+        request.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Act on the collector server's response to a sample that was pushed as
+     * part of a multi-probe batch. If the server did not accept the sample, it
+     * goes into the spool.
+     * 
+     * @param batch
+     *            The sample that was pushed.
+     * @param response
+     *            The server's response to the sample.
+     * @return <code>true</code> if the response started a new session.
+     * @throws OnHoldException
+     *             When we were put on hold by the server.
+     * @throws Exception
+     *             When the server did not accept the sample.
+     */
+    boolean batchResponse(final SampleBatch batch,
+            final PushBatch.Part response) throws Exception,
+            OnHoldException {
+        final Properties properties;
+        try {
+            if (response.status / 100 != 2) {
+                throw new IOException("collector rejected the push ("
+                        + response.status + ")");
+            }
+
+            properties = readResponse(response.contentType,
+                    new ByteArrayInputStream(response.body));
+            delta.commit();
+        } catch (Exception e) {
+            pushFailed(batch);
+            throw e;
+        }
+
+        if (replay && spool != null && !spool.isEmpty()) {
+            replay();
+        }
+
+        return parse(properties);
+    }
+
+    /**
+     * Deal with a sample that could not be pushed, by putting it in the
+     * spool.
+     * 
+     * @param batch
+     *            The sample that could not be pushed.
+     */
+    void pushFailed(final SampleBatch batch) {
+        // we cannot be sure what the server saw of our dictionary
+        dictionary.reset();
+        localIp.reset();
+        spool(batch);
+
+        // the server never saw the values that were spooled
+        delta.requestFull();
+    }
+
+    /**
+     * Tell if the collector server accepts multi-probe batches, as far as we
+     * know.
+     * 
+     * @return <code>true</code> if the server said it accepts batches in its
+     *         last response to us.
+     */
+    boolean isBatchAccepted() {
+        return batchAccepted;
+    }
+
+    /**
+     * Find the URL that we push to.
+     * 
+     * @return The push URL.
+     * @throws Exception
+     *             When the push URL could not be found.
+     */
+    URL getPushUrl() throws Exception {
+        init();
+        return pushUrl;
+    }
+
+    /**
+     * Find the proxy that we push through.
+     * 
+     * @return The proxy, which may be <code>Proxy.NO_PROXY</code>.
+     */
+    Proxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Abort the request that is in flight, if any, and fail the requests that
+     * are yet to go out until the collector is closed. The push stage sees its
+     * request fail and spools its sample.
+     */
+    void abort() {
+        aborted = true;
+        final HttpURLConnection connection = inFlight;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Close the collector, releasing the readers, the spool file and the
+     * StatsD channel.
+     */
+    synchronized void close() {
+        if (readers != null && !sharedReaders) {
+            readers.shutdownNow();
+        } else if (readers != null) {
+            // the shared readers no longer have to cover for our stuck ones
+            for (int i = hung.size(); i > 0; i--) {
+                readers.unstuck();
+            }
+        }
+        readers = null;
+        hung.clear();
+        aborted = false;
+        if (statsd != null) {
+            statsd.close();
+            statsd = null;
+        }
+
+        final SampleSpool closing = spool;
+        spool = null;
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * Write the request to the collector server.
+     * 
+     * @param request
+     *            The writer to write the request into.
+     * @param batch
+     *            The sample to write into the request.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    private void writeRequest(final SampleWriter request,
+            final SampleBatch batch) throws Exception {
+        // a new plan may have lost values, so we cannot send a delta
+        if (delta.begin(batch.isReplanned())) {
+            request.property(DELTA, "true");
+        }
+
+        writeIdentity(request);
+        batch.replay(delta.wrap(request));
+    }
+
+    /**
+     * Write the properties that identify this probe to the collector server.
+     * 
+     * @param request
+     *            The writer to write the properties into.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    private void writeIdentity(final SampleWriter request) throws Exception {
+        request.property("account", account);
+        request.property("localIp", localIp.get(pushUrl));
+        if (uniqueId != null) {
+            request.property("lowestPort", uniqueId);
+        } else {
+            if (lowestPort == null) {
+                lowestPort = queryString(serverObjectName, httpPortAttribute);
+            }
+            if (lowestPort != null) {
+                request.property("lowestPort", lowestPort);
+            }
+        }
+        if (appserver == null) {
+            // the server mbean only knows about the JVM it lives in
+            appserver = jvm == null ? queryString(serverObjectName,
+                    nameAttribute) : defaultName;
+        }
+        request.property("appserver", appserver);
+    }
+
+    /**
+     * Keep a sample in the spool, because we could not push it. Spooled
+     * samples are full samples. They carry the session but not the identity of
+     * this probe, which goes with the replay batch instead.
+     * 
+     * @param batch
+     *            The sample to spool.
+     */
+    void spool(final SampleBatch batch) {
+        final SampleSpool spool = this.spool;
+        if (spool == null || session == null) {
+            return;
+        }
+
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final SampleWriter sample = new CompactSampleWriter(bytes,
+                    new KeyDictionary());
+            batch.replay(sample);
+            sample.close();
+
+            if (!spool.append(batch.getTimestamp(), bytes.toByteArray())) {
+                log.fine("sample of " + bytes.size()
+                        + " bytes does not fit in the spool");
+            }
+        } catch (IOException e) {
+            log.log(FINE, "unable to spool sample", e);
+        }
+    }
+
+    /**
+     * Replay the spooled samples to the collector server, in compressed
+     * batches. We drop each batch from the spool once the server accepted it.
+     * If a replay fails, we try again after the next successful push.
+     */
+    private void replay() {
+        final SampleSpool spool = this.spool;
+        try {
+            while (spool != null && !spool.isEmpty()) {
+                final int count = spool.dropUntil(replayRequest(spool));
+                log.fine("replayed " + count + " spooled samples");
+            }
+        } catch (Exception e) {
+            log.log(FINE, "unable to replay spooled samples", e);
+        }
+    }
+
+    /**
+     * Post a single batch of spooled samples to the collector server.
+     * 
+     * @param spool
+     *            The spool to take the samples from.
+     * @return The sequence number just past the samples that the server
+     *         accepted.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    private long replayRequest(final SampleSpool spool) throws Exception {
+        HttpURLConnection connection = null;
+        OutputStream out = null;
+        InputStream in = null;
+        CountingOutputStream sent = null;
+        CountingInputStream received = null;
+        try {
+            connection = (HttpURLConnection) pushUrl.openConnection(proxy);
+            inFlight = connection;
+            if (aborted) {
+                throw new IOException("the probe is stopping");
+            }
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TWO_MINUTES);
+            connection.setReadTimeout(TWO_MINUTES);
+            if (!keepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            connection.setRequestProperty("Content-Type",
+                    CompactFormat.REPLAY_CONTENT_TYPE);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setChunkedStreamingMode(0);
+
+            sent = new CountingOutputStream(connection.getOutputStream());
+            final GZIPOutputStream zipped = new GZIPOutputStream(sent);
+            out = new BufferedOutputStream(zipped);
+            final SampleWriter identity = new CompactSampleWriter(out,
+                    new KeyDictionary());
+            writeIdentity(identity);
+            identity.close();
+
+            // we do not hold on to the spool while we talk to the server
+            final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            final long end = spool.writeBatch(entries, MAX_REPLAY_BATCH);
+            entries.writeTo(out);
+            out.flush();
+            zipped.finish();
+
+            final int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("collector rejected the replay batch ("
+                        + status + ")");
+            }
+
+            // read the response, so that the connection can be reused
+            received = new CountingInputStream(connection.getInputStream());
+            in = received;
+            final byte[] buffer = new byte[512];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+
+            return end;
+        } finally {
+            inFlight = null;
+            probe.transferred(sent == null ? 0L : sent.count,
+                    received == null ? 0L : received.count);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+            if (connection != null && !keepAlive) {
+                try {
+                    connection.disconnect();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+        }
+    }
+
+    private void init() throws Exception {
+        if (account == null) {
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new InputStreamReader(Collector.class
+                        .getClassLoader().getResourceAsStream("uuid")));
+                account = in.readLine();
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+        if (pushUrl == null) {
+            pushUrl = findPushUrl();
+        }
+        if (!spoolOpened) {
+            spoolOpened = true;
+            final int spoolSize = parseInt(getProperty(JAVA_MONITOR_SPOOL, ""
+                    + DEFAULT_SPOOL_SIZE));
+            if (spoolSize > 0) {
+                // samples are replayed under our identity, so only we may
+                // pick up our spool file
+                String identity = uniqueId;
+                if (identity == null) {
+                    if (lowestPort == null) {
+                        lowestPort = queryString(serverObjectName,
+                                httpPortAttribute);
+                    }
+                    identity = lowestPort;
+                }
+                final String spoolName = identity == null ? account : account
+                        + "-" + identity.replaceAll("[^A-Za-z0-9._-]", "_");
+                final String spoolDirectory = getProperty(
+                        JAVA_MONITOR_SPOOLDIR, new File(
+                                getProperty("java.io.tmpdir"), "javamonitor-"
+                                        + getProperty("user.name").replaceAll(
+                                                "[^A-Za-z0-9._-]", "_"))
+                                .getPath());
+                try {
+                    spool = SampleSpool.open(new File(spoolDirectory),
+                            spoolName, spoolSize * 1024);
+                } catch (IOException e) {
+                    log.log(FINE, "unable to open the spool file, "
+                            + "samples that cannot be pushed are lost", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the HTTP proxy to reach the collector server through, from the
+     * standard proxy system properties.
+     * 
+     * @return The proxy, which may be <code>Proxy.NO_PROXY</code>.
+     */
+    static Proxy findProxy() {
+        final String proxyHost = getProperty("http.proxyHost");
+        final int proxyPort = parseInt(getProperty("http.proxyPort", "80"));
+        final String proxyUser = getProperty("http.proxyUser");
+        final String proxyPass = getProperty("http.proxyPassword", "");
+
+        if (proxyHost == null) {
+            return NO_PROXY;
+        }
+
+        final Proxy proxy = new Proxy(HTTP, new InetSocketAddress(proxyHost,
+                proxyPort));
+        log.info("using proxy " + proxy);
+
+        if (proxyUser != null) {
+            Authenticator.setDefault(new Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(proxyUser, proxyPass
+                            .toCharArray());
+                }
+            });
+        }
+
+        return proxy;
+    }
+
+    /**
+     * Find the URL of the collector server, from the system property
+     * &quot;javamonitor.url&quot; or else from the &quot;pushUrl&quot;
+     * resource.
+     * 
+     * @return The push URL.
+     * @throws IOException
+     *             When the push URL could not be read.
+     */
+    static URL findPushUrl() throws IOException {
+        if (System.getProperty(JAVA_MONITOR_URL) != null) {
+            return new URL(getProperty(JAVA_MONITOR_URL));
+        }
+
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                Collector.class.getClassLoader().getResourceAsStream(
+                        "pushUrl")));
+        try {
+            return new URL(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Create a list of items to be pushed out to the server. As we go, we set
+     * aside the items that don't resolve to a value properly, until they are
+     * due to be tried again.
+     * <p>
+     * The mbeans to read come from the item plan. We read all the attributes we
+     * need from each mbean in a single round-trip, instead of asking for each
+     * item separately. Items that point into the same composite attribute
+     * share a single read of that attribute. Items that are sampled less often
+     * than we push are only read when they are due. Items on mbeans that did
+     * not answer in time are left out, and tried again with the next push.
+     * 
+     * @param data
+     *            The request to write the item values into.
+     * @param failedItems
+     *            The items that failed so far, along with the reason why.
+     * @throws IOException
+     *             When the values could not be written to the request.
+     */
+    private void queryItems(final SampleWriter data,
+            final Map<Item, Throwable> failedItems) throws IOException {
+        final Set<Item> due = dueItems;
+        due.clear();
+        due.addAll(duePush);
+        for (final Item item : items) {
+            if (costs.interval(item) <= PUSH_INTERVAL) {
+                due.add(item);
+            }
+        }
+        duePush.clear();
+
+        final Set<Item> read = readItems;
+        read.clear();
+        for (final MBeanRead reading : readAll(due, failedItems)) {
+            if (!reading.inTime) {
+                continue;
+            }
+
+            int i = 0;
+            for (final ItemPlan.Read itemRead : reading.reads) {
+                final Object value = reading.values[i++];
+                read.add(itemRead.item);
+                if (value == FAILED) {
+                    continue;
+                }
+
+                if (aggregator.contains(itemRead.key)
+                        && SampleAggregator.isNumeric(value)) {
+                    aggregator.add(itemRead.key, ((Number) value)
+                            .doubleValue());
+                    aggregator.writeSummary(data, itemRead.key);
+                }
+                data.value(itemRead.key, value, itemRead.actualObjectName);
+                metrics.item(itemRead.key, itemRead.item,
+                        itemRead.actualObjectName, value);
+                if (statsd != null) {
+                    statsd.gauge(itemRead, value);
+                }
+            }
+        }
+
+        // set failed items aside, and only push static items once per session
+        final Iterator<Item> itemIterator = items.iterator();
+        while (itemIterator.hasNext()) {
+            final Item item = itemIterator.next();
+            final Throwable e = failedItems.get(item);
+            if (e != null) {
+                data.error(item.getId(), errors.report(e));
+                metrics.forget(item.getId());
+                final long wait = retries.failed(item, currentTimeMillis());
+                if (log.isLoggable(FINE)) {
+                    log.fine("reading " + item.getObjectName() + " "
+                            + item.getAttribute() + " failed, trying again in "
+                            + (wait / 1000L) + " seconds");
+                }
+            } else if (read.contains(item)) {
+                retries.succeeded(item);
+            }
+
+            if (e != null || (!item.isPeriodic() && read.contains(item))) {
+                itemIterator.remove();
+                wheel.cancel(item);
+                plan = null;
+            }
+        }
+    }
+
+    /**
+     * Advance the item schedule by one tick. The items that are sampled more
+     * often than we push and that are due in this tick are sampled together.
+     * The next push sends the summary of the samples along with the values.
+     * Items that are sampled less often than we push are marked for the next
+     * push. We leave the reporting of any problems to the next push.
+     */
+    synchronized void tick() {
+        final long start = nanoTime();
+        final long cpu = threadCpuTime();
+        final long allocated = threadAllocatedBytes();
+        final Set<Item> due = dueItems;
+        due.clear();
+        for (final Item item : wheel.advance()) {
+            if (costs.interval(item) > PUSH_INTERVAL) {
+                duePush.add(item);
+            } else {
+                due.add(item);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        plan();
+
+        final Map<Item, Throwable> failedItems = tickFailures;
+        failedItems.clear();
+        for (final MBeanRead reading : readAll(due, failedItems)) {
+            if (!reading.inTime) {
+                continue;
+            }
+
+            int i = 0;
+            for (final ItemPlan.Read read : reading.reads) {
+                final Object value = reading.values[i++];
+                if (SampleAggregator.isNumeric(value)) {
+                    aggregator.add(read.key, ((Number) value).doubleValue());
+                    if (statsd != null) {
+                        statsd.gauge(read, value);
+                    }
+                }
+            }
+        }
+        if (statsd != null) {
+            statsd.flush();
+        }
+
+        probe.cycle(nanoTime() - start);
+        probe.work(threadCpuTime() - cpu, threadAllocatedBytes() - allocated);
+    }
+
+    /**
+     * Read the due items from the mbeans in the plan, in parallel. Each mbean
+     * gets a deadline to answer in, counted from when we submitted its read,
+     * and all mbeans together get a budget. A read that misses its deadline
+     * is cancelled. If it was still waiting for a reader, it is simply
+     * submitted again next time. If it was stuck in a getter, its reader is
+     * replaced and the mbean is not asked again until that read has finished.
+     * <p>
+     * We account what each read cost and let the circuit breakers of the items
+     * know how the reads went, rescheduling the items that got demoted or
+     * promoted.
+     * 
+     * @param due
+     *            The items that are due.
+     * @param failedItems
+     *            The items that failed so far, along with the reason why.
+     *            Items that fail to read are added to this map.
+     * @return The reads of the mbeans that had items that were due, in plan
+     *         order. The list is reused by the next call.
      */
-    private final Proxy proxy;
+    private List<MBeanRead> readAll(final Set<Item> due,
+            final Map<Item, Throwable> failedItems) {
+        readings.clear();
+        futures.clear();
+        for (final ItemPlan.Target target : plan.getTargets()) {
+            final List<ItemPlan.Read> reads = dueReads(target, due);
+            if (reads.isEmpty()) {
+                continue;
+            }
 
-    private static final String JAVA_MONITOR_URL = "javamonitor.url";
+            final MBeanRead previous = hung.get(target.objectName);
+            if (previous != null) {
+                if (previous.running) {
+                    readings.add(new MBeanRead(target, reads));
+                    futures.add(null);
+                    continue;
+                }
 
-    private URL pushUrl = null;
+                hung.remove(target.objectName);
+                readers().unstuck();
+                account(previous);
+            }
 
-    private String account = null;
+            // the read of a target is reused, now that it is not in use
+            MBeanRead reading = targetReads.get(target);
+            if (reading == null) {
+                reading = new MBeanRead(target, reads);
+                targetReads.put(target, reading);
+            } else {
+                reading.reset(reads);
+            }
+            readings.add(reading);
+            reading.submitted = currentTimeMillis();
+            futures.add(readers().submit(reading));
+            probe.queried(reads.size(), 1);
+        }
 
-    private final String uniqueId;
+        long budget = currentTimeMillis() + BUDGET;
+        for (int i = 0; i < readings.size(); i++) {
+            final MBeanRead reading = readings.get(i);
+            final Future<MBeanRead> future = futures.get(i);
+            if (future != null) {
+                try {
+                    future.get(Math.max(0L, Math.min(reading.submitted
+                            + DEADLINE, budget)
+                            - currentTimeMillis()), MILLISECONDS);
+                    reading.inTime = true;
+                } catch (TimeoutException e) {
+                    missed(reading, future);
+                } catch (InterruptedException e) {
+                    // we are being stopped, so we use up the budget
+                    Thread.currentThread().interrupt();
+                    budget = 0L;
+                    missed(reading, future);
+                } catch (ExecutionException e) {
+                    // readValues() catches everything
+                    throw new IllegalStateException(e);
+                }
 
-    private String session = null;
+                if (reading.queued) {
+                    // the mbean never got a reader, so it is not to blame
+                    continue;
+                }
+            }
 
-    private final Collection<Item> items = new LinkedList<Item>();
+            if (reading.inTime) {
+                failedItems.putAll(reading.failures);
+                account(reading);
+            }
+            final boolean slow = !reading.inTime
+                    || reading.wallNanos > ItemCosts.SLOW;
+            for (final ItemPlan.Read read : reading.reads) {
+                if (costs.record(read.item, slow)) {
+                    log.fine("reading " + read.item.getObjectName() + " "
+                            + read.item.getAttribute() + (slow ? " is slow"
+                            : " is fast again") + ", sampling it every "
+                            + costs.interval(read.item) + " seconds");
+                    wheel.cancel(read.item);
+                    schedule(read.item, false);
+                }
+            }
+        }
+
+        return readings;
+    }
 
     /**
-     * Create a new collector.
-     * 
-     * @param url
-     *            The URL to push to.
-     * @param uniqueId
-     *            The unique ID to use instead of port number, or
-     *            <code>null</code> to use the port number.
+     * Account for the time spent reading an mbean, sharing it between the
+     * reads.
      */
-    Collector(final String uniqueId) {
-        this.uniqueId = uniqueId;
-
-        final String proxyHost = getProperty("http.proxyHost");
-        final int proxyPort = parseInt(getProperty("http.proxyPort", "80"));
-        final String proxyUser = getProperty("http.proxyUser");
-        final String proxyPass = getProperty("http.proxyPassword", "");
+    private void account(final MBeanRead reading) {
+        if (reading == null) {
+            return;
+        }
 
-        if (proxyHost != null) {
-            proxy = new Proxy(HTTP, new InetSocketAddress(proxyHost, proxyPort));
-            log.info("using proxy " + proxy);
+        probe.work(reading.cpuNanos, reading.allocatedBytes);
 
-            if (proxyUser != null) {
-                Authenticator.setDefault(new Authenticator() {
-                    @Override
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(proxyUser, proxyPass
-                                .toCharArray());
-                    }
-                });
-            }
-        } else {
-            proxy = NO_PROXY;
+        final int shares = reading.reads.size();
+        for (final ItemPlan.Read read : reading.reads) {
+            costs.add(read.item, reading.wallNanos / shares, reading.cpuNanos
+                    / shares);
         }
     }
 
     /**
-     * Sign in with the collector server and ask for permission to send
-     * statistics.
-     * 
-     * @return <code>true</code> if the configuration was stale and we need to
-     *         reconfigure. <code>false</code> if we may just reuse the existing
-     *         list.
-     * @throws OnHoldException
-     *             When we were put on hold by the server.
-     * @throws Exception
-     *             When there was a problem.
+     * Give up on a read that missed its deadline.
      */
-    boolean push() throws Exception, OnHoldException {
-        init();
-
-        final Properties request = queryItems();
-        request.put("account", account);
-        request.put("localIp", getLocalIp());
-        if (uniqueId != null) {
-            request.put("lowestPort", uniqueId);
+    private void missed(final MBeanRead reading,
+            final Future<MBeanRead> future) {
+        if (!future.cancel(true)) {
+            // it finished just after its deadline
+            reading.inTime = true;
+        } else if (reading.running) {
+            hung.put(reading.target.objectName, reading);
+            readers().stuck();
         } else {
-            final String lowestPort = queryString(serverObjectName,
-                    httpPortAttribute);
-            if (lowestPort != null) {
-                request.put("lowestPort", lowestPort);
-            }
-        }
-        request.put("appserver", queryString(serverObjectName, nameAttribute));
-        if (session != null) {
-            request.put(SESSION, session);
+            reading.queued = true;
+
+            // in case it started after all, the next read gets its own
+            targetReads.remove(reading.target);
         }
+    }
 
-        final Properties response = push(request);
+    private synchronized Readers readers() {
+        if (readers == null) {
+            readers = newReaders(READERS);
+        }
 
-        return parse(response);
+        return readers;
     }
 
     /**
-     * Retrieve the local IP address. If we just used InetAddress.getLocalhost()
-     * we end up with 127.0.0.1 in many cases, so instead we open a connection
-     * to the Java-monitor servers and use the local IP address of that
-     * connection.
-     * <p>
-     * We do not reuse the connection, because the JVM may be running on a
-     * laptop that moves from network to network.
+     * Start a pool of readers.
      * 
-     * @return The local IP address of this JVM.
-     * @throws UnknownHostException
-     *             When we could not determine the local IP address.
-     * @throws IOException
-     *             When we could not determine the local IP address.
+     * @param threads
+     *            The number of readers.
+     * @return The readers.
      */
-    private String getLocalIp() throws UnknownHostException, IOException {
-        Socket s = null;
-        try {
-            if (getProperty("http.proxyHost") != null) {
-                s = new Socket(getProperty("http.proxyHost"),
-                        parseInt(getProperty("http.proxyPort", "80")));
-            } else {
-                int port = 80;
-                if (pushUrl.getPort() != -1) {
-                    port = pushUrl.getPort();
-                }
-                s = new Socket(pushUrl.getHost(), port);
-            }
+    static Readers newReaders(final int threads) {
+        return new Readers(threads);
+    }
 
-            s.setSoTimeout(TWO_MINUTES);
-            return s.getLocalAddress().getHostAddress();
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (IOException e) {
-                    // ignore errors here...
-                }
-            }
+    /**
+     * The reading of the due items on a single mbean, as done by one of the
+     * readers.
+     */
+    private static final class MBeanRead implements Callable<MBeanRead> {
+        final ItemPlan.Target target;
+
+        List<ItemPlan.Read> reads;
+
+        final Map<Item, Throwable> failures = new HashMap<Item, Throwable>();
+
+        Object[] values = null;
+
+        long wallNanos = 0L;
+
+        long cpuNanos = 0L;
+
+        long allocatedBytes = 0L;
+
+        /**
+         * Set by the collector when the read finished in time. Only then
+         * may it look at the values.
+         */
+        boolean inTime = false;
+
+        /**
+         * Set by the collector when the read missed its deadline while it
+         * was still waiting for a reader.
+         */
+        boolean queued = false;
+
+        /**
+         * When the collector submitted this read, in milliseconds since the
+         * epoch.
+         */
+        long submitted = 0L;
+
+        /**
+         * Set while a reader is in this read.
+         */
+        volatile boolean running = false;
+
+        MBeanRead(final ItemPlan.Target target,
+                final List<ItemPlan.Read> reads) {
+            this.target = target;
+            this.reads = reads;
         }
-    }
 
-    private void init() throws Exception {
-        if (account == null) {
-            BufferedReader in = null;
+        /**
+         * Prepare this read to be done again, for the next sample.
+         */
+        void reset(final List<ItemPlan.Read> dueReads) {
+            reads = dueReads;
+            failures.clear();
+            inTime = false;
+            queued = false;
+        }
+
+        /**
+         * @see java.util.concurrent.Callable#call()
+         */
+        public MBeanRead call() {
+            running = true;
             try {
-                in = new BufferedReader(new InputStreamReader(Collector.class
-                        .getClassLoader().getResourceAsStream("uuid")));
-                account = in.readLine();
+                final long wallStart = nanoTime();
+                final long cpuStart = threadCpuTime();
+                final long allocatedStart = threadAllocatedBytes();
+                values = readValues(target, reads, failures, values);
+                allocatedBytes = threadAllocatedBytes() - allocatedStart;
+                cpuNanos = threadCpuTime() - cpuStart;
+                wallNanos = nanoTime() - wallStart;
+                return this;
             } finally {
-                if (in != null) {
-                    in.close();
-                }
+                running = false;
             }
         }
-        if (pushUrl == null) {
-            BufferedReader in = null;
-            try {
-                final String urlString;
-                if (System.getProperty(JAVA_MONITOR_URL) != null) {
-                    urlString = getProperty(JAVA_MONITOR_URL);
-                } else {
-                    in = new BufferedReader(new InputStreamReader(
-                            Collector.class.getClassLoader()
-                                    .getResourceAsStream("pushUrl")));
-                    urlString = in.readLine();
-                }
+    }
 
-                pushUrl = new URL(urlString);
-            } finally {
-                if (in != null) {
-                    in.close();
-                }
+    /**
+     * Put an item on the schedule, if it is sampled more or less often than we
+     * push. Items that are sampled less often than we push go out with the
+     * first push of a session, and then whenever they are due.
+     * 
+     * @param item
+     *            The item to schedule.
+     * @param first
+     *            <code>true</code> if this is the first time we schedule the
+     *            item in this session.
+     */
+    private void schedule(final Item item, final boolean first) {
+        final int interval = costs.interval(item);
+        final int ticks = (int) (interval * 1000L / TICK);
+        if (interval > PUSH_INTERVAL) {
+            wheel.schedule(item, ticks);
+            if (first) {
+                duePush.add(item);
             }
+        } else if (interval > 0 && interval < PUSH_INTERVAL) {
+            wheel.schedule(item, ticks);
         }
     }
 
     /**
-     * Create a list of items to be pushed out to the server. As we go, we
-     * remove items that don't resolve to a value properly.
+     * Find the reads on an mbean for the items that are due.
      * 
-     * @return The data to be sent to the server.
+     * @param target
+     *            The mbean to read from.
+     * @param due
+     *            The items that are due.
+     * @return The reads to do, in plan order.
      */
-    private Properties queryItems() {
-        final Properties data = new Properties();
-        final Iterator<Item> itemIterator = items.iterator();
-        while (itemIterator.hasNext()) {
-            final Item item = itemIterator.next();
-
-            try {
-                int uniquefier = 0;
-                for (final ObjectName objectName : JmxHelper.queryNames(item
-                        .getObjectName())) {
-                    final String key = item.getId()
-                            + (uniquefier > 0 ? ":" + uniquefier : "");
-                    final String actualObjectName = item.getObjectName()
-                            .equals(objectName.toString()) ? "" : objectName
-                            .toString();
-                    final Object value = JmxHelper.query(objectName, item
-                            .getAttribute());
-
-                    if (value == null) {
-                        data.put(key, "|0||" + actualObjectName);
-                    } else {
-                        data.put(key, value + "|" + getClassId(value) + "||"
-                                + actualObjectName);
-                    }
+    private static List<ItemPlan.Read> dueReads(final ItemPlan.Target target,
+            final Set<Item> due) {
+        int count = 0;
+        for (final ItemPlan.Read read : target.reads) {
+            if (due.contains(read.item)) {
+                count++;
+            }
+        }
 
-                    uniquefier++;
-                }
+        // share the compiled attribute names if we read everything
+        if (count == target.reads.size()) {
+            return target.reads;
+        }
 
-                // only push static items once per session
-                if (!item.isPeriodic()) {
-                    itemIterator.remove();
-                }
-            } catch (Throwable e) {
-                final StringWriter sw = new StringWriter();
-                e.printStackTrace(new PrintWriter(sw));
-                data.put(item.getId(), "||" + e.getClass().getName() + ": "
-                        + sw.toString() + "|");
-                itemIterator.remove();
+        final List<ItemPlan.Read> reads = new ArrayList<ItemPlan.Read>(count);
+        for (final ItemPlan.Read read : target.reads) {
+            if (due.contains(read.item)) {
+                reads.add(read);
             }
         }
-
-        return data;
+        return reads;
     }
 
-    private static int getClassId(final Object value) {
-        if (value instanceof Byte || value instanceof Short
-                || value instanceof Integer || value instanceof Long) {
-            return 1;
+    /**
+     * Make sure the item plan is up to date with the items and the registered
+     * mbeans.
+     */
+    private void plan() {
+        if (plan == null || plan.isStale()) {
+            plan = new ItemPlan(items, jvm);
+            targetReads.clear();
+            replanned = true;
         }
-        if (value instanceof Float || value instanceof Double) {
-            return 2;
+    }
+
+    /**
+     * The marker for values that could not be read.
+     */
+    private static final Object FAILED = new Object();
+
+    /**
+     * Read the values for a number of items on a single mbean.
+     * 
+     * @param target
+     *            The mbean to read from.
+     * @param reads
+     *            The reads to do on that mbean.
+     * @param failedItems
+     *            The items that failed so far, along with the reason why.
+     *            Items that fail to read are added to this map.
+     * @param previous
+     *            The values of the previous read of the mbean, to reuse if
+     *            the number of reads did not change, or <code>null</code>.
+     * @return The values of the reads of the mbean, in the same order. Values
+     *         that could not be read are <code>FAILED</code>.
+     */
+    private static Object[] readValues(final ItemPlan.Target target,
+            final List<ItemPlan.Read> reads,
+            final Map<Item, Throwable> failedItems, final Object[] previous) {
+        Map<String, Object> values;
+        try {
+            values = JmxHelper.queryAttributes(target.server,
+                    target.objectName,
+                    reads == target.reads ? target.attributeNames : ItemPlan
+                            .attributeNames(reads));
+        } catch (Throwable e) {
+            // we read the attributes one by one below to find the culprit
+            values = new HashMap<String, Object>();
         }
-        if (value instanceof Boolean) {
-            return 3;
+
+        final Object[] results = previous != null
+                && previous.length == reads.size() ? previous
+                : new Object[reads.size()];
+        int i = 0;
+        for (final ItemPlan.Read read : reads) {
+            results[i] = FAILED;
+            if (!failedItems.containsKey(read.item)) {
+                try {
+                    if (read.path != null
+                            && values.containsKey(read.path
+                                    .getAttributeName())) {
+                        results[i] = read.path.resolve(values.get(read.path
+                                .getAttributeName()));
+                    } else {
+                        // this one will tell us what went wrong
+                        results[i] = JmxHelper.query(target.server,
+                                target.objectName, read.item.getAttribute());
+                    }
+                } catch (Throwable e) {
+                    failedItems.put(read.item, e);
+                }
+            }
+            i++;
         }
-        return 4; // String
+
+        return results;
     }
 
     private static final String ONHOLD = "onhold";
 
     private static final String SESSION = "session";
 
-    private boolean parse(final Properties response) throws OnHoldException {
+    /**
+     * The property the server uses to switch delta mode on or off, and that we
+     * use to mark delta pushes. The server sets it to the number of pushes
+     * between full pushes, to <code>true</code> for the default number, or to
+     * <code>false</code> to switch delta mode off.
+     */
+    private static final String DELTA = "delta";
+
+    /**
+     * The property the server uses to ask for a full push.
+     */
+    private static final String FULL = "full";
+
+    /**
+     * Act on the collector server's response to a push. A response with a
+     * session replaces the items to sample.
+     * 
+     * @param response
+     *            The response to the push.
+     * @return <code>true</code> if the response started a new session.
+     * @throws OnHoldException
+     *             When the collector server put us on hold.
+     */
+    synchronized boolean parse(final Properties response)
+            throws OnHoldException {
         if (response.get(ONHOLD) != null) {
             throw new OnHoldException((String) response.get(ONHOLD));
         }
 
+        final String deltaInterval = (String) response.remove(DELTA);
+        if (deltaInterval != null) {
+            if ("true".equalsIgnoreCase(deltaInterval)) {
+                delta.configure(DeltaTracker.DEFAULT_INTERVAL);
+            } else if ("false".equalsIgnoreCase(deltaInterval)) {
+                delta.configure(0);
+            } else {
+                try {
+                    delta.configure(parseInt(deltaInterval.trim()));
+                } catch (NumberFormatException e) {
+                    delta.configure(DeltaTracker.DEFAULT_INTERVAL);
+                }
+            }
+        }
+        if (response.remove(FULL) != null) {
+            delta.requestFull();
+        }
+
         if (response.get(SESSION) != null) {
             session = (String) response.remove(SESSION);
+            wheel.clear();
+            duePush.clear();
+            costs.reset();
+            retries.reset();
+            errors.reset();
+            dictionary.reset();
+            delta.reset();
+            aggregator.reset();
+            metrics.reset();
+            if (statsd != null) {
+                statsd.reset();
+            }
 
             items.clear();
+            plan = null;
             for (final Map.Entry<Object, Object> entry : response.entrySet()) {
                 final String[] parts = ((String) entry.getValue()).split("\\|");
 
-                items.add(new Item(entry.getKey().toString(), parts[0],
-                        parts[1], Boolean.parseBoolean(parts[2])));
+                int interval = 0;
+                if (Boolean.parseBoolean(parts[2])) {
+                    interval = defaultInterval;
+                    if (parts.length > 3) {
+                        try {
+                            interval = parseInt(parts[3].trim());
+                        } catch (NumberFormatException e) {
+                            // keep the default
+                        }
+                        if (interval <= 0) {
+                            interval = defaultInterval;
+                        }
+                    }
+                }
+
+                final Item item = new Item(entry.getKey().toString(),
+                        parts[0], parts[1], interval);
+                items.add(item);
+                schedule(item, true);
             }
 
             return true;
@@ -314,30 +1631,173 @@ final class Collector {
      * robust against network issues that cause probes to wait for data
      * indefinitely.
      */
-    private static final int TWO_MINUTES = 2 * 60 * 1000;
+    static final int TWO_MINUTES = 2 * 60 * 1000;
 
-    private Properties push(final Properties request) throws IOException {
+    /**
+     * Push a request to the collector server and read its response. We use the
+     * compact wire format if the server told us it accepts it, and fall back
+     * to XML otherwise. Similarly, we compress the request if the server told
+     * us it accepts that. Stack traces and the like compress very well, which
+     * helps probes that push through slow or metered proxies.
+     * <p>
+     * In keep-alive mode we may get handed a connection that we used before,
+     * which the collector server may have closed in the meantime. A push on
+     * such a stale connection fails without the server answering with a
+     * status line, and we try it again once on a fresh connection. We cannot
+     * ask the JVM's HTTP client whether it reused a connection, so we assume
+     * it did if the last push was less than the server's
+     * <code>Keep-Alive</code> timeout ago. Any other failure is not retried,
+     * because the server may have handled the push and pushing the same
+     * samples twice would duplicate them.
+     * 
+     * @param batch
+     *            The sample to push.
+     * @param retry
+     *            <code>true</code> if we may retry the request on a fresh
+     *            connection.
+     * @return The response from the collector server.
+     * @throws Exception
+     *             When there was a problem.
+     */
+    private Properties pushRequest(final SampleBatch batch,
+            final boolean retry) throws Exception {
         HttpURLConnection connection = null;
-        PrintStream out = null;
+        OutputStream out = null;
         InputStream in = null;
+        CountingOutputStream sent = null;
+        CountingInputStream received = null;
+        boolean failed = true;
+        final boolean reused = keepAlive && currentTimeMillis() < idleUntil;
+        idleUntil = 0L;
+        int status = -1;
         try {
             connection = (HttpURLConnection) pushUrl.openConnection(proxy);
+            inFlight = connection;
+            if (aborted) {
+                throw new IOException("the probe is stopping");
+            }
             connection.setRequestMethod("POST");
             connection.setDoOutput(true);
             connection.setConnectTimeout(TWO_MINUTES);
             connection.setReadTimeout(TWO_MINUTES);
-            connection.setRequestProperty("Connection", "close");
+            if (!keepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            connection.setRequestProperty(CompactFormat.FORMAT_HEADER,
+                    CompactFormat.FORMAT);
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (spool != null) {
+                connection.setRequestProperty(CompactFormat.REPLAY_HEADER,
+                        CompactFormat.REPLAY);
+            }
+            if (jvm != null) {
+                connection.setRequestProperty(CompactFormat.BATCH_HEADER,
+                        CompactFormat.BATCH);
+            }
+            connection.setRequestProperty(CompactFormat.SUMMARY_HEADER,
+                    CompactFormat.SUMMARIES);
 
-            out = new PrintStream(connection.getOutputStream());
-            request.storeToXML(out, null);
-            out.flush();
+            final boolean sentCompact = compact;
+            final boolean sentGzip = gzip && compression;
+            if (sentCompact) {
+                connection.setRequestProperty("Content-Type",
+                        CompactFormat.CONTENT_TYPE);
+                connection.setChunkedStreamingMode(0);
+            }
+            if (sentGzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+
+            // XML requests go out with their length, which keeps the JVM's
+            // HTTP client from resending them behind our back
+            GZIPOutputStream zipped = null;
+            final ByteArrayOutputStream buffered;
+            OutputStream body;
+            if (sentCompact) {
+                buffered = null;
+                sent = new CountingOutputStream(connection.getOutputStream());
+                body = sent;
+            } else {
+                buffered = new ByteArrayOutputStream();
+                body = buffered;
+            }
+            if (sentGzip) {
+                zipped = new GZIPOutputStream(body);
+                body = zipped;
+            }
+
+            final SampleWriter request;
+            if (sentCompact) {
+                out = new BufferedOutputStream(body);
+                request = new CompactSampleWriter(out, dictionary);
+            } else {
+                out = new PrintStream(body);
+                request = new XmlSampleWriter(out, summaries);
+            }
+            writeRequest(request, batch);
+            request.close();
+            if (zipped != null) {
+                zipped.finish();
+            }
+            if (buffered != null) {
+                connection.setFixedLengthStreamingMode(buffered.size());
+                sent = new CountingOutputStream(connection.getOutputStream());
+                buffered.writeTo(sent);
+                sent.flush();
+            }
+
+            status = connection.getResponseCode();
+            if ((sentCompact || sentGzip)
+                    && (status == HTTP_UNSUPPORTED_TYPE || status == HTTP_BAD_REQUEST)) {
+                compact = false;
+                gzip = false;
+                throw new IOException("collector rejected the compact or "
+                        + "compressed request (" + status
+                        + "), falling back to plain XML");
+            }
+
+            received = new CountingInputStream(connection.getInputStream());
+            in = decode(received, connection.getContentEncoding());
+            compact = CompactFormat.FORMAT.equals(connection
+                    .getHeaderField(CompactFormat.FORMAT_HEADER));
+            gzip = acceptsGzip(connection.getHeaderField("Accept-Encoding"));
+            replay = CompactFormat.REPLAY.equals(connection
+                    .getHeaderField(CompactFormat.REPLAY_HEADER));
+            batchAccepted = CompactFormat.BATCH.equals(connection
+                    .getHeaderField(CompactFormat.BATCH_HEADER));
+            summaries = CompactFormat.SUMMARIES.equals(connection
+                    .getHeaderField(CompactFormat.SUMMARY_HEADER));
 
-            in = connection.getInputStream();
-            final Properties response = new Properties();
-            response.loadFromXML(in);
+            final Properties response = readResponse(connection
+                    .getContentType(), in);
+            if (keepAlive) {
+                keptAlive(connection.getHeaderField("Keep-Alive"));
+            }
 
+            failed = false;
             return response;
+        } catch (IOException e) {
+            // an interrupted push was aborted on purpose
+            if (retry && reused && status < 0 && !aborted
+                    && !Thread.currentThread().isInterrupted()) {
+                log.fine("push on a reused connection got no answer ("
+                        + e.getMessage() + "), retrying on a new connection");
+
+                // the writer may have assigned keys that never went out
+                dictionary.reset();
+                if (connection != null) {
+                    connection.disconnect();
+                    connection = null;
+                }
+
+                return pushRequest(batch, false);
+            }
+
+            throw e;
         } finally {
+            inFlight = null;
+            probe.transferred(sent == null ? 0L : sent.count,
+                    received == null ? 0L : received.count);
             if (in != null) {
                 try {
                     in.close();
@@ -353,7 +1813,8 @@ final class Collector {
                 }
             }
 
-            if (connection != null) {
+            // keep-alive connections are reused by the JVM once closed
+            if (connection != null && (failed || !keepAlive)) {
                 try {
                     connection.disconnect();
                 } catch (Exception e) {
@@ -362,4 +1823,184 @@ final class Collector {
             }
         }
     }
+
+    /**
+     * Note how long the JVM's HTTP client keeps the connection of this push
+     * open, so that we can tell whether the next push reuses it.
+     * 
+     * @param header
+     *            The <code>Keep-Alive</code> response header, or
+     *            <code>null</code> if there was none.
+     */
+    private void keptAlive(final String header) {
+        int timeout = Integer.getInteger("http.keepAlive.time.server", 5)
+                .intValue();
+        if (header != null) {
+            for (final String parameter : header.split(",")) {
+                final String[] nameValue = parameter.trim().split("=", 2);
+                if (nameValue.length == 2
+                        && "timeout".equalsIgnoreCase(nameValue[0].trim())) {
+                    try {
+                        timeout = parseInt(nameValue[1].trim());
+                    } catch (NumberFormatException e) {
+                        // keep the default
+                    }
+                }
+            }
+        }
+
+        idleUntil = currentTimeMillis() + timeout * 1000L;
+        if (timeout != keepAliveTimeout && timeout <= PUSH_INTERVAL) {
+            log.fine("the collector server keeps idle connections for "
+                    + timeout + " seconds, so the next push will not be able "
+                    + "to reuse the connection; see " + JAVA_MONITOR_KEEPALIVE);
+        }
+        keepAliveTimeout = timeout;
+    }
+
+    /**
+     * Read a response from the collector server, in the format given by its
+     * content type.
+     * 
+     * @param contentType
+     *            The content type of the response, or <code>null</code> if
+     *            there was none.
+     * @param in
+     *            The response.
+     * @return The response properties.
+     * @throws IOException
+     *             When the response could not be read.
+     */
+    static Properties readResponse(final String contentType,
+            final InputStream in) throws IOException {
+        if (contentType != null
+                && contentType.startsWith(CompactFormat.CONTENT_TYPE)) {
+            return CompactFormat.readProperties(in);
+        }
+
+        final Properties response = new Properties();
+        response.loadFromXML(in);
+        return response;
+    }
+
+    /**
+     * Unwrap a compressed response.
+     * 
+     * @param in
+     *            The response as it came over the wire.
+     * @param contentEncoding
+     *            The content encoding of the response, or <code>null</code>
+     *            if there was none.
+     * @return The uncompressed response.
+     * @throws IOException
+     *             When the response could not be read.
+     */
+    static InputStream decode(final InputStream in,
+            final String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+
+        final String encoding = contentEncoding.trim().toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(in);
+        }
+        if ("deflate".equals(encoding)) {
+            return new InflaterInputStream(in);
+        }
+
+        return in;
+    }
+
+    /**
+     * See if the collector server accepts gzip compressed requests. Servers
+     * say so by sending an <code>Accept-Encoding</code> header with their
+     * responses, as described in RFC 7694.
+     * 
+     * @param acceptEncoding
+     *            The value of the header, or <code>null</code> if there was
+     *            none.
+     * @return <code>true</code> if we may send gzip compressed requests.
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                return parts.length < 2
+                        || !parts[1].replaceAll("\\s", "").equals("q=0");
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * An output stream that counts the bytes that go through it.
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0L;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * @see java.io.FilterOutputStream#write(int)
+         */
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        /**
+         * @see java.io.FilterOutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * An input stream that counts the bytes that go through it.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+        long count = 0L;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @see java.io.FilterInputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        /**
+         * @see java.io.FilterInputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
 }
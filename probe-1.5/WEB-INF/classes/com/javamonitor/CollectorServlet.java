@@ -11,6 +11,13 @@ import javax.servlet.http.HttpServlet;
 public class CollectorServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The servlet context attribute that holds the running collector, so that
+     * the other servlets in the probe can get to it.
+     */
+    static final String COLLECTOR_ATTRIBUTE = JavaMonitorCollector.class
+            .getName();
+
     private JavaMonitorCollector collector;
 
     /**
@@ -27,6 +34,7 @@ public class CollectorServlet extends HttpServlet {
             throw new ServletException(
                     "Unable to start Java-monitor collector: ", e);
         }
+        getServletContext().setAttribute(COLLECTOR_ATTRIBUTE, collector);
     }
 
     /**
@@ -34,6 +42,7 @@ public class CollectorServlet extends HttpServlet {
      */
     @Override
     public void destroy() {
+        getServletContext().removeAttribute(COLLECTOR_ATTRIBUTE);
         collector.stop();
 
         super.destroy();
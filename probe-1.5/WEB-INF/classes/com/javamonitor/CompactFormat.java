@@ -0,0 +1,356 @@
+package com.javamonitor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The compact binary wire format. A compact message starts with the magic
+ * bytes <code>'J' 'M'</code>, the format version and a flags byte. After that
+ * come the records, each starting with its record type. A zero byte ends the
+ * message.
+ * <p>
+ * Numbers are written as variable length integers, seven bits per byte with
+ * the high bit set on all but the last byte. Signed values are zigzag encoded
+ * first, so that small negative numbers stay small. Strings are written as
+ * their UTF-8 length, followed by the UTF-8 bytes.
+ * <p>
+ * Item keys and object names are written as references into a dictionary that
+ * lives as long as the session. A reference of zero means that the string
+ * follows literally, and that it gets the next free number in the dictionary.
+ * When the dictionary flag is set in the flags byte, both sides start with an
+ * empty dictionary.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class CompactFormat {
+    /**
+     * The content type of compact messages.
+     */
+    static final String CONTENT_TYPE = "application/x-java-monitor-compact";
+
+    /**
+     * The HTTP header that the server uses to tell us it accepts compact
+     * messages.
+     */
+    static final String FORMAT_HEADER = "X-Java-Monitor-Format";
+
+    /**
+     * The format name and version, as used in the format header.
+     */
+    static final String FORMAT = "compact/1";
+
+    /**
+     * The content type of replay batches. A replay batch starts with a compact
+     * message that holds the properties that identify the probe. After that
+     * come the spooled samples, each as the time it was taken in milliseconds
+     * and its length, both as variable length integers, followed by the sample
+     * as a self-contained compact message.
+     */
+    static final String REPLAY_CONTENT_TYPE = "application/x-java-monitor-replay";
+
+    /**
+     * The HTTP header that the server uses to tell us it accepts replay
+     * batches.
+     */
+    static final String REPLAY_HEADER = "X-Java-Monitor-Replay";
+
+    /**
+     * The replay format name and version, as used in the replay header.
+     */
+    static final String REPLAY = "replay/1";
+
+    /**
+     * The content type of multi-probe batches, which carry the pushes of a
+     * number of probes in a single request. A batch holds the number of
+     * pushes as a variable length integer, followed by each push as its
+     * content type as a string and its body as a byte string. The response
+     * to a batch is a batch too, with one response for each push, in the
+     * same order. Each response starts with its HTTP status as a variable
+     * length integer. Batches are always compressed as a whole, so the pushes
+     * inside are not.
+     */
+    static final String BATCH_CONTENT_TYPE = "application/x-java-monitor-batch";
+
+    /**
+     * The HTTP header that the server uses to tell us it accepts multi-probe
+     * batches.
+     */
+    static final String BATCH_HEADER = "X-Java-Monitor-Batch";
+
+    /**
+     * The batch format name and version, as used in the batch header.
+     */
+    static final String BATCH = "batch/1";
+
+    /**
+     * The HTTP header that the server uses to tell us it accepts the summaries
+     * of the samples taken between pushes in XML requests. These go at the
+     * end of the item values, as <code>|count|min|max|avg</code>. Compact
+     * messages have a record type for summaries, so they always carry them.
+     */
+    static final String SUMMARY_HEADER = "X-Java-Monitor-Summary";
+
+    /**
+     * The summary format name and version, as used in the summary header.
+     */
+    static final String SUMMARIES = "summary/1";
+
+    static final int MAGIC_1 = 'J';
+
+    static final int MAGIC_2 = 'M';
+
+    static final int VERSION = 1;
+
+    /**
+     * The flag that tells the receiver to start with an empty dictionary.
+     */
+    static final int FLAG_NEW_DICTIONARY = 0x01;
+
+    static final int END = 0x00;
+
+    /**
+     * A property: a literal key and a literal value.
+     */
+    static final int PROPERTY = 0x01;
+
+    /**
+     * A <code>null</code> item value: key and object name references.
+     */
+    static final int NULL = 0x02;
+
+    /**
+     * An integral item value: key and object name references and a zigzag
+     * encoded number.
+     */
+    static final int INTEGER = 0x03;
+
+    /**
+     * A decimal item value: key and object name references and the eight
+     * bytes of the IEEE 754 double, most significant byte first.
+     */
+    static final int DECIMAL = 0x04;
+
+    /**
+     * A boolean item value of <code>false</code>: key and object name
+     * references.
+     */
+    static final int FALSE = 0x05;
+
+    /**
+     * A boolean item value of <code>true</code>: key and object name
+     * references.
+     */
+    static final int TRUE = 0x06;
+
+    /**
+     * Any other item value: key and object name references and a string.
+     */
+    static final int STRING = 0x07;
+
+    /**
+     * An item error: a key reference and a string.
+     */
+    static final int ERROR = 0x08;
+
+    /**
+     * The summary of the samples of the item value that follows: a key
+     * reference, the number of samples and three doubles for the lowest,
+     * highest and average sample.
+     */
+    static final int SUMMARY = 0x09;
+
+    private CompactFormat() {
+        // not instantiable
+    }
+
+    /**
+     * Write an unsigned variable length number.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param value
+     *            The number to write, treated as unsigned.
+     * @throws IOException
+     *             When the number could not be written.
+     */
+    static void writeVarLong(final OutputStream out, final long value)
+            throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0L) {
+            out.write((int) ((remaining & 0x7FL) | 0x80L));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    /**
+     * Write a signed variable length number.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param value
+     *            The number to write.
+     * @throws IOException
+     *             When the number could not be written.
+     */
+    static void writeSignedVarLong(final OutputStream out, final long value)
+            throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write a string.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param value
+     *            The string to write.
+     * @throws IOException
+     *             When the string could not be written.
+     */
+    static void writeString(final OutputStream out, final String value)
+            throws IOException {
+        writeBytes(out, value.getBytes("UTF-8"));
+    }
+
+    /**
+     * Write a byte string: its length, followed by the bytes.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param bytes
+     *            The bytes to write.
+     * @throws IOException
+     *             When the bytes could not be written.
+     */
+    static void writeBytes(final OutputStream out, final byte[] bytes)
+            throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read an unsigned variable length number.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @return The number that was read.
+     * @throws IOException
+     *             When the number could not be read.
+     */
+    static long readVarLong(final InputStream in) throws IOException {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = read(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("malformed variable length number");
+    }
+
+    /**
+     * Read a string.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @return The string that was read.
+     * @throws IOException
+     *             When the string could not be read.
+     */
+    static String readString(final InputStream in) throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+    /**
+     * Read a byte string.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @return The bytes that were read.
+     * @throws IOException
+     *             When the bytes could not be read.
+     */
+    static byte[] readBytes(final InputStream in) throws IOException {
+        return readBytes(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read a byte string of limited length, for example from a request that
+     * we cannot trust.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @param maxLength
+     *            The longest byte string we read.
+     * @return The bytes that were read.
+     * @throws IOException
+     *             When the bytes could not be read, or when they were longer
+     *             than the maximum length.
+     */
+    static byte[] readBytes(final InputStream in, final int maxLength)
+            throws IOException {
+        final long length = readVarLong(in);
+        if (length > maxLength) {
+            throw new TooLargeException("byte string too long: " + length);
+        }
+
+        final byte[] bytes = new byte[(int) length];
+        int read = 0;
+        while (read < bytes.length) {
+            final int count = in.read(bytes, read, bytes.length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Read a compact message that holds only properties, such as the
+     * responses from the collector server.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @return The properties that were read.
+     * @throws IOException
+     *             When the message could not be read.
+     */
+    static Properties readProperties(final InputStream in) throws IOException {
+        if (read(in) != MAGIC_1 || read(in) != MAGIC_2) {
+            throw new IOException("not a compact message");
+        }
+        if (read(in) != VERSION) {
+            throw new IOException("unsupported compact message version");
+        }
+        read(in); // flags, not used for properties
+
+        final Properties properties = new Properties();
+        for (int type = read(in); type != END; type = read(in)) {
+            if (type != PROPERTY) {
+                throw new IOException("unexpected record type " + type);
+            }
+
+            final String key = readString(in);
+            properties.put(key, readString(in));
+        }
+
+        return properties;
+    }
+
+    private static int read(final InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+
+        return b;
+    }
+}
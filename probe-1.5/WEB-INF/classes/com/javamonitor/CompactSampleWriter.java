@@ -0,0 +1,162 @@
+package com.javamonitor;
+
+import static com.javamonitor.CompactFormat.writeSignedVarLong;
+import static com.javamonitor.CompactFormat.writeString;
+import static com.javamonitor.CompactFormat.writeVarLong;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A writer for the compact binary wire format. It writes straight to the
+ * output stream as the items are queried, so there is no need to keep the
+ * whole request in memory.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ * @see CompactFormat
+ */
+final class CompactSampleWriter implements SampleWriter {
+    private final OutputStream out;
+
+    private final KeyDictionary dictionary;
+
+    /**
+     * Create a new compact writer and write the message header.
+     * 
+     * @param out
+     *            The stream to write to. This should be a buffered stream.
+     * @param dictionary
+     *            The dictionary we share with the receiving side.
+     * @throws IOException
+     *             When the header could not be written.
+     */
+    CompactSampleWriter(final OutputStream out, final KeyDictionary dictionary)
+            throws IOException {
+        this.out = out;
+        this.dictionary = dictionary;
+
+        out.write(CompactFormat.MAGIC_1);
+        out.write(CompactFormat.MAGIC_2);
+        out.write(CompactFormat.VERSION);
+        out.write(dictionary.begin() ? CompactFormat.FLAG_NEW_DICTIONARY : 0);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#property(java.lang.String,
+     *      java.lang.String)
+     */
+    public void property(final String key, final String value)
+            throws IOException {
+        out.write(CompactFormat.PROPERTY);
+        writeString(out, key);
+        writeString(out, value);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String,
+     *      java.lang.Object, java.lang.String)
+     */
+    public void value(final String key, final Object value,
+            final String objectName) throws IOException {
+        if (value == null) {
+            out.write(CompactFormat.NULL);
+            writeReference(key);
+            writeReference(objectName);
+        } else if (value instanceof Byte || value instanceof Short
+                || value instanceof Integer || value instanceof Long) {
+            value(key, ((Number) value).longValue(), objectName);
+        } else if (value instanceof Float || value instanceof Double) {
+            value(key, ((Number) value).doubleValue(), objectName);
+        } else if (value instanceof Boolean) {
+            value(key, ((Boolean) value).booleanValue(), objectName);
+        } else {
+            out.write(CompactFormat.STRING);
+            writeReference(key);
+            writeReference(objectName);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, long,
+     *      java.lang.String)
+     */
+    public void value(final String key, final long value,
+            final String objectName) throws IOException {
+        out.write(CompactFormat.INTEGER);
+        writeReference(key);
+        writeReference(objectName);
+        writeSignedVarLong(out, value);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, double,
+     *      java.lang.String)
+     */
+    public void value(final String key, final double value,
+            final String objectName) throws IOException {
+        out.write(CompactFormat.DECIMAL);
+        writeReference(key);
+        writeReference(objectName);
+        writeDouble(value);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, boolean,
+     *      java.lang.String)
+     */
+    public void value(final String key, final boolean value,
+            final String objectName) throws IOException {
+        out.write(value ? CompactFormat.TRUE : CompactFormat.FALSE);
+        writeReference(key);
+        writeReference(objectName);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#summary(java.lang.String, int, double,
+     *      double, double)
+     */
+    public void summary(final String key, final int count, final double min,
+            final double max, final double avg) throws IOException {
+        out.write(CompactFormat.SUMMARY);
+        writeReference(key);
+        writeVarLong(out, count);
+        writeDouble(min);
+        writeDouble(max);
+        writeDouble(avg);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#error(java.lang.String,
+     *      java.lang.String)
+     */
+    public void error(final String key, final String error)
+            throws IOException {
+        out.write(CompactFormat.ERROR);
+        writeReference(key);
+        writeString(out, error);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#close()
+     */
+    public void close() throws IOException {
+        out.write(CompactFormat.END);
+        out.flush();
+    }
+
+    private void writeDouble(final double value) throws IOException {
+        final long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    private void writeReference(final String value) throws IOException {
+        final int id = dictionary.lookup(value);
+        writeVarLong(out, id);
+        if (id == 0) {
+            writeString(out, value);
+        }
+    }
+}
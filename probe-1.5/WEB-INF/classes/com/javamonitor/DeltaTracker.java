@@ -0,0 +1,360 @@
+package com.javamonitor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The bookkeeping for delta pushes. Many items, such as pool sizes and version
+ * numbers, have the same value every time we look. In delta mode we only send
+ * the values that changed since the last successful push. Every so many
+ * pushes, and whenever the collector server asks for it, we send everything.
+ * <p>
+ * Delta mode is switched on by the collector server, because only the server
+ * knows whether it can handle requests with values left out.
+ * <p>
+ * What we sent is kept in columns of plain arrays, one slot per key, so that
+ * comparing and remembering values does not create garbage.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class DeltaTracker {
+    /**
+     * The number of pushes between full pushes, if the server did not specify
+     * one.
+     */
+    static final int DEFAULT_INTERVAL = 10;
+
+    private static final byte NULL = 1;
+
+    private static final byte INTEGER = 2;
+
+    private static final byte DECIMAL = 3;
+
+    private static final byte BOOLEAN = 4;
+
+    private static final byte OBJECT = 5;
+
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    private Values sent = new Values();
+
+    private Values pending = new Values();
+
+    private int interval = 0;
+
+    private int deltas = 0;
+
+    private boolean full = true;
+
+    private boolean current = true;
+
+    /**
+     * Configure delta mode.
+     * 
+     * @param interval
+     *            The number of pushes between full pushes, or 0 to switch
+     *            delta mode off.
+     */
+    void configure(final int interval) {
+        if (this.interval != interval) {
+            this.interval = interval;
+            full = true;
+        }
+    }
+
+    /**
+     * Make sure the next push is a full push.
+     */
+    void requestFull() {
+        full = true;
+    }
+
+    /**
+     * Forget everything we sent, for example because we have a new session.
+     */
+    void reset() {
+        slots.clear();
+        sent.clear();
+        pending.clear();
+        full = true;
+    }
+
+    /**
+     * Start a new push.
+     * 
+     * @param forceFull
+     *            <code>true</code> if the caller knows that the set of item
+     *            values changed, so that the push has to be a full push.
+     * @return <code>true</code> if this push is a delta push, or
+     *         <code>false</code> if it is a full push.
+     */
+    boolean begin(final boolean forceFull) {
+        if (forceFull) {
+            full = true;
+        }
+        current = interval <= 0 || full || deltas >= interval;
+        pending.clear();
+
+        return !current;
+    }
+
+    /**
+     * Wrap the request writer for the current push, so that it leaves out
+     * unchanged values in a delta push.
+     * 
+     * @param out
+     *            The writer to wrap.
+     * @return The writer to write the item values to.
+     */
+    SampleWriter wrap(final SampleWriter out) {
+        return new DeltaWriter(out);
+    }
+
+    /**
+     * The current push was received by the collector server, so we remember
+     * what we sent.
+     */
+    void commit() {
+        if (current) {
+            final Values swap = sent;
+            sent = pending;
+            pending = swap;
+            deltas = 0;
+            full = false;
+        } else {
+            sent.putAll(pending);
+            deltas++;
+        }
+        pending.clear();
+    }
+
+    private int slot(final String key) {
+        final Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot.intValue();
+        }
+
+        final int newSlot = slots.size();
+        slots.put(key, newSlot);
+        return newSlot;
+    }
+
+    private final class DeltaWriter implements SampleWriter {
+        private final SampleWriter out;
+
+        private String summaryKey = null;
+
+        private int count;
+
+        private double min;
+
+        private double max;
+
+        private double avg;
+
+        DeltaWriter(final SampleWriter out) {
+            this.out = out;
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#property(java.lang.String,
+         *      java.lang.String)
+         */
+        public void property(final String key, final String value)
+                throws IOException {
+            out.property(key, value);
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#value(java.lang.String,
+         *      java.lang.Object, java.lang.String)
+         */
+        public void value(final String key, final Object value,
+                final String objectName) throws IOException {
+            if (value instanceof Byte || value instanceof Short
+                    || value instanceof Integer || value instanceof Long) {
+                value(key, ((Number) value).longValue(), objectName);
+            } else if (value instanceof Float || value instanceof Double) {
+                value(key, ((Number) value).doubleValue(), objectName);
+            } else if (value instanceof Boolean) {
+                value(key, ((Boolean) value).booleanValue(), objectName);
+            } else if (changed(key, value == null ? NULL : OBJECT, 0L, value,
+                    objectName)) {
+                out.value(key, value, objectName);
+            }
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#value(java.lang.String, long,
+         *      java.lang.String)
+         */
+        public void value(final String key, final long value,
+                final String objectName) throws IOException {
+            if (changed(key, INTEGER, value, null, objectName)) {
+                out.value(key, value, objectName);
+            }
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#value(java.lang.String, double,
+         *      java.lang.String)
+         */
+        public void value(final String key, final double value,
+                final String objectName) throws IOException {
+            if (changed(key, DECIMAL, Double.doubleToLongBits(value), null,
+                    objectName)) {
+                out.value(key, value, objectName);
+            }
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#value(java.lang.String, boolean,
+         *      java.lang.String)
+         */
+        public void value(final String key, final boolean value,
+                final String objectName) throws IOException {
+            if (changed(key, BOOLEAN, value ? 1L : 0L, null, objectName)) {
+                out.value(key, value, objectName);
+            }
+        }
+
+        /**
+         * Remember a value as pending and decide whether it has to go out.
+         * If it does, its summary goes out first.
+         */
+        private boolean changed(final String key, final byte type,
+                final long bits, final Object value, final String objectName)
+                throws IOException {
+            final boolean summarized = key.equals(summaryKey);
+            summaryKey = null;
+
+            // a value that moved between pushes has changed, even if it
+            // ended up where it was
+            final int slot = slot(key);
+            final boolean send = current
+                    || !sent.matches(slot, type, bits, value, objectName)
+                    || (summarized && min != max);
+            if (send && summarized) {
+                out.summary(key, count, min, max, avg);
+            }
+            pending.put(slot, type, bits, value, objectName);
+
+            return send;
+        }
+
+        /**
+         * We hold on to the summary until we know whether the value itself
+         * goes out.
+         * 
+         * @see com.javamonitor.SampleWriter#summary(java.lang.String, int,
+         *      double, double, double)
+         */
+        public void summary(final String key, final int count,
+                final double min, final double max, final double avg) {
+            this.summaryKey = key;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#error(java.lang.String,
+         *      java.lang.String)
+         */
+        public void error(final String key, final String error)
+                throws IOException {
+            out.error(key, error);
+        }
+
+        /**
+         * @see com.javamonitor.SampleWriter#close()
+         */
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The values we sent, or are about to send, by slot.
+     */
+    private static final class Values {
+        private boolean[] set = new boolean[16];
+
+        private byte[] types = new byte[16];
+
+        private long[] bits = new long[16];
+
+        private Object[] objects = new Object[16];
+
+        private String[] objectNames = new String[16];
+
+        boolean matches(final int slot, final byte type, final long value,
+                final Object object, final String objectName) {
+            return slot < set.length
+                    && set[slot]
+                    && types[slot] == type
+                    && bits[slot] == value
+                    && objectNames[slot].equals(objectName)
+                    && (object == null ? objects[slot] == null : object
+                            .equals(objects[slot]));
+        }
+
+        void put(final int slot, final byte type, final long value,
+                final Object object, final String objectName) {
+            if (slot >= set.length) {
+                grow(slot + 1);
+            }
+
+            set[slot] = true;
+            types[slot] = type;
+            bits[slot] = value;
+            objects[slot] = object;
+            objectNames[slot] = objectName;
+        }
+
+        void putAll(final Values other) {
+            for (int slot = 0; slot < other.set.length; slot++) {
+                if (other.set[slot]) {
+                    put(slot, other.types[slot], other.bits[slot],
+                            other.objects[slot], other.objectNames[slot]);
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(set, false);
+            Arrays.fill(objects, null);
+        }
+
+        private void grow(final int slots) {
+            int length = set.length;
+            while (length < slots) {
+                length *= 2;
+            }
+
+            final boolean[] grownSet = new boolean[length];
+            System.arraycopy(set, 0, grownSet, 0, set.length);
+            set = grownSet;
+
+            final byte[] grownTypes = new byte[length];
+            System.arraycopy(types, 0, grownTypes, 0, types.length);
+            types = grownTypes;
+
+            final long[] grownBits = new long[length];
+            System.arraycopy(bits, 0, grownBits, 0, bits.length);
+            bits = grownBits;
+
+            final Object[] grownObjects = new Object[length];
+            System.arraycopy(objects, 0, grownObjects, 0, objects.length);
+            objects = grownObjects;
+
+            final String[] grownObjectNames = new String[length];
+            System.arraycopy(objectNames, 0, grownObjectNames, 0,
+                    objectNames.length);
+            objectNames = grownObjectNames;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.javamonitor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The item errors that we reported in this session, by fingerprint. Items
+ * that fail tend to fail the same way on every try, and often many items fail
+ * in the same way. We send each distinct stack trace only once per session.
+ * After that, the error report carries just the exception and its message,
+ * refers to the first report by its number and tells how often we saw it.
+ * <p>
+ * The fingerprint of an error is the class of the exception and its causes,
+ * along with the top frames of its stack trace. The message is left out of
+ * the fingerprint, since it often holds the object name or attribute that
+ * failed. It still goes into every report, since it tells one item's error
+ * from another's.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ErrorFingerprints {
+    /**
+     * The number of stack frames that go into a fingerprint.
+     */
+    private static final int TOP_FRAMES = 5;
+
+    /**
+     * The most fingerprints we keep per session. Beyond these, we forget the
+     * errors that we have not seen for the longest time.
+     */
+    private static final int MAX_FINGERPRINTS = 1000;
+
+    private final Map<String, Seen> seen = new LinkedHashMap<String, Seen>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Seen> eldest) {
+            return size() > MAX_FINGERPRINTS;
+        }
+    };
+
+    private int lastReference = 0;
+
+    /**
+     * Write the error report for an exception. The first report of an error
+     * in the session carries the full stack trace, later reports only carry a
+     * reference to it.
+     *
+     * @param e
+     *            The exception to report.
+     * @return The error report.
+     */
+    String report(final Throwable e) {
+        final String fingerprint = fingerprint(e);
+        Seen error = seen.get(fingerprint);
+        if (error == null) {
+            error = new Seen(++lastReference);
+            seen.put(fingerprint, error);
+            return e.getClass().getName() + " #" + error.reference + ": "
+                    + trace(e);
+        }
+
+        error.count++;
+        final String message = e.getMessage();
+        return e.getClass().getName() + " #" + error.reference + ": "
+                + (message == null ? "" : message + " ") + "(seen "
+                + error.count + " times, see the first report of #"
+                + error.reference + " for the stack trace)";
+    }
+
+    /**
+     * Forget the errors we reported, for example because we have a new
+     * session.
+     */
+    void reset() {
+        seen.clear();
+        lastReference = 0;
+    }
+
+    private static String fingerprint(final Throwable e) {
+        final StringBuilder fingerprint = new StringBuilder();
+        // guard against causes that loop back
+        Throwable t = e;
+        for (int i = 0; t != null && i < TOP_FRAMES; i++) {
+            fingerprint.append(t.getClass().getName()).append('\n');
+            t = t.getCause();
+        }
+
+        final StackTraceElement[] frames = e.getStackTrace();
+        for (int i = 0; i < frames.length && i < TOP_FRAMES; i++) {
+            fingerprint.append(frames[i]).append('\n');
+        }
+
+        return fingerprint.toString();
+    }
+
+    private static String trace(final Throwable e) {
+        final StringWriter sw = new StringWriter();
+        e.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    private static final class Seen {
+        final int reference;
+
+        int count = 1;
+
+        Seen(final int reference) {
+            this.reference = reference;
+        }
+    }
+}
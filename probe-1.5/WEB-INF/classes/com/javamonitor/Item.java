@@ -13,7 +13,9 @@ final class Item {
 
     private final String attribute;
 
-    private final boolean periodic;
+    private final AttributePath path;
+
+    private final int interval;
 
     /**
      * Create a new item.
@@ -24,15 +26,24 @@ final class Item {
      *            The object name for the new item.
      * @param attribute
      *            The attribute for the new item.
-     * @param periodic
-     *            A flag that says if this is a periodic item.
+     * @param interval
+     *            The number of seconds between samples of this item, or 0 if
+     *            this item lives as long as a JVM.
      */
     Item(final String id, final String objectName, final String attribute,
-            final boolean periodic) {
+            final int interval) {
         this.id = id;
         this.objectName = objectName;
         this.attribute = attribute;
-        this.periodic = periodic;
+        this.interval = interval;
+
+        AttributePath compiled = null;
+        try {
+            compiled = AttributePath.compile(attribute);
+        } catch (IllegalArgumentException e) {
+            // reading the item will report the broken path
+        }
+        this.path = compiled;
     }
 
     /**
@@ -62,6 +73,16 @@ final class Item {
         return attribute;
     }
 
+    /**
+     * Find the compiled attribute path.
+     * 
+     * @return The compiled attribute path, or <code>null</code> if the
+     *         attribute path could not be parsed.
+     */
+    AttributePath getPath() {
+        return path;
+    }
+
     /**
      * Tell if this is a periodic item.
      * 
@@ -69,6 +90,16 @@ final class Item {
      *         <code>false</code> if it lives as long as a JVM.
      */
     boolean isPeriodic() {
-        return periodic;
+        return interval > 0;
+    }
+
+    /**
+     * Find out how often this item should be sampled.
+     * 
+     * @return The number of seconds between samples of this item, or 0 if
+     *         this item is sampled only once per session.
+     */
+    int getInterval() {
+        return interval;
     }
 }
@@ -0,0 +1,186 @@
+package com.javamonitor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The bookkeeping of what reading each item costs us, along with a circuit
+ * breaker per item. Items that are slow to read time and again are demoted to
+ * a lower sampling frequency, rather than dropped. Each demotion doubles the
+ * interval of the item. Once a demoted item reads quickly for a while, it is
+ * promoted again, one step at a time.
+ * <p>
+ * Reads are accounted per mbean, because we read all attributes on an mbean
+ * in one go. The cost of such a read is shared by the items on the mbean.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ItemCosts {
+    /**
+     * Reads that take longer than this many nanoseconds count as slow.
+     */
+    static final long SLOW = 1000L * 1000L * 1000L;
+
+    /**
+     * The number of slow reads in a row that demote an item.
+     */
+    private static final int STRIKES = 3;
+
+    /**
+     * The number of fast reads in a row that promote a demoted item.
+     */
+    private static final int RECOVERY = 10;
+
+    /**
+     * The longest interval we demote items to, in seconds.
+     */
+    private static final int MAX_INTERVAL = 60 * 60;
+
+    private final Map<Item, Cost> costs = new HashMap<Item, Cost>();
+
+    /**
+     * Account for the cost of reading an item.
+     *
+     * @param item
+     *            The item that was read.
+     * @param wallNanos
+     *            The item's share of the wall clock time of the read.
+     * @param cpuNanos
+     *            The item's share of the CPU time of the read, or 0 if the
+     *            JVM does not measure CPU time.
+     */
+    void add(final Item item, final long wallNanos, final long cpuNanos) {
+        final Cost cost = cost(item);
+        cost.reads++;
+        cost.wallNanos += wallNanos;
+        cost.cpuNanos += cpuNanos;
+    }
+
+    /**
+     * Tell the circuit breaker of an item how reading it went.
+     *
+     * @param item
+     *            The item that was read.
+     * @param slow
+     *            <code>true</code> if the read was slow or did not finish in
+     *            time.
+     * @return <code>true</code> if the item was demoted or promoted, so that
+     *         its interval changed.
+     */
+    boolean record(final Item item, final boolean slow) {
+        final Cost cost = cost(item);
+        if (slow) {
+            cost.fast = 0;
+            if (++cost.strikes >= STRIKES
+                    && interval(item, cost.level + 1) > interval(item,
+                            cost.level)) {
+                cost.strikes = 0;
+                cost.level++;
+                return true;
+            }
+        } else {
+            cost.strikes = 0;
+            if (cost.level > 0 && ++cost.fast >= RECOVERY) {
+                cost.fast = 0;
+                cost.level--;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Find the interval to sample an item at, taking demotions into account.
+     *
+     * @param item
+     *            The item.
+     * @return The number of seconds between samples of the item, or 0 if it
+     *         is sampled once per session.
+     */
+    int interval(final Item item) {
+        final Cost cost = costs.get(item);
+        return interval(item, cost == null ? 0 : cost.level);
+    }
+
+    private static int interval(final Item item, final int level) {
+        if (!item.isPeriodic()) {
+            return 0;
+        }
+
+        long interval = item.getInterval();
+        for (int i = 0; i < level && interval < MAX_INTERVAL; i++) {
+            interval *= 2L;
+        }
+
+        return (int) Math.min(interval, Math.max(item.getInterval(),
+                MAX_INTERVAL));
+    }
+
+    /**
+     * Copy the total cost of reading each item. The copies from an earlier
+     * call are updated in place, so that copying does not create garbage.
+     *
+     * @param copy
+     *            The copies of the costs, by item. Items that we no longer
+     *            know about are removed.
+     */
+    void copyTo(final Map<Item, Cost> copy) {
+        copy.keySet().retainAll(costs.keySet());
+        for (final Map.Entry<Item, Cost> entry : costs.entrySet()) {
+            Cost cost = copy.get(entry.getKey());
+            if (cost == null) {
+                cost = new Cost();
+                copy.put(entry.getKey(), cost);
+            }
+            entry.getValue().copyTo(cost);
+            cost.interval = interval(entry.getKey(), cost.level);
+        }
+    }
+
+    /**
+     * Forget everything, for example because we have a new session.
+     */
+    void reset() {
+        costs.clear();
+    }
+
+    private Cost cost(final Item item) {
+        Cost cost = costs.get(item);
+        if (cost == null) {
+            cost = new Cost();
+            costs.put(item, cost);
+        }
+
+        return cost;
+    }
+
+    /**
+     * The cost of reading an item, and the state of its circuit breaker.
+     */
+    static final class Cost {
+        long reads;
+
+        long wallNanos;
+
+        long cpuNanos;
+
+        int level;
+
+        /**
+         * The interval of the item, after demotions. Only set on copies.
+         */
+        int interval;
+
+        private int strikes;
+
+        private int fast;
+
+        private void copyTo(final Cost copy) {
+            copy.reads = reads;
+            copy.wallNanos = wallNanos;
+            copy.cpuNanos = cpuNanos;
+            copy.level = level;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.javamonitor;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * A compiled plan of what to read for a list of items. Expanding the wildcard
+ * object names of the items is expensive on servers with many mbeans, while
+ * the set of matching mbeans hardly ever changes. So we expand them once and
+ * keep the resulting mbeans, their mbean servers and the keys we report the
+ * values under. The plan goes stale as soon as any mbean is registered or
+ * unregistered.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ItemPlan {
+    private final RemoteJvm jvm;
+
+    private final long registrations;
+
+    private final List<Target> targets = new LinkedList<Target>();
+
+    private Map<Item, Throwable> failures = new HashMap<Item, Throwable>();
+
+    /**
+     * Compile a new plan for the specified items.
+     * 
+     * @param items
+     *            The items to make a plan for.
+     * @param jvm
+     *            The other JVM to read the items from, or <code>null</code>
+     *            to read them from the mbean servers in this JVM.
+     */
+    ItemPlan(final Collection<Item> items, final RemoteJvm jvm) {
+        this.jvm = jvm;
+        registrations = registrationCount(jvm);
+
+        final Map<ObjectName, Target> targetsByName = new LinkedHashMap<ObjectName, Target>();
+        for (final Item item : items) {
+            try {
+                final Set<ObjectName> names = new HashSet<ObjectName>();
+                final MBeanServerConnection server;
+                if (jvm == null) {
+                    server = JmxHelper.queryNames(item.getObjectName(), names);
+                } else {
+                    jvm.queryNames(item.getObjectName(), names);
+                    server = jvm.getConnection();
+                }
+
+                int uniquefier = 0;
+                for (final ObjectName objectName : names) {
+                    final String key = item.getId()
+                            + (uniquefier > 0 ? ":" + uniquefier : "");
+                    final String actualObjectName = item.getObjectName()
+                            .equals(objectName.toString()) ? "" : objectName
+                            .toString();
+
+                    Target target = targetsByName.get(objectName);
+                    if (target == null) {
+                        target = new Target(server, objectName);
+                        targetsByName.put(objectName, target);
+                    }
+                    target.add(new Read(item, key, actualObjectName));
+
+                    uniquefier++;
+                }
+            } catch (Throwable e) {
+                failures.put(item, e);
+            }
+        }
+
+        for (final Target target : targetsByName.values()) {
+            target.compile();
+            targets.add(target);
+        }
+    }
+
+    /**
+     * Tell if this plan no longer matches the registered mbeans.
+     * 
+     * @return <code>true</code> if mbeans were registered or unregistered
+     *         since this plan was made, or <code>false</code> if the plan is
+     *         still valid.
+     */
+    boolean isStale() {
+        return registrations != registrationCount(jvm);
+    }
+
+    private static long registrationCount(final RemoteJvm jvm) {
+        return jvm == null ? JmxHelper.getRegistrationCount() : jvm
+                .getRegistrationCount();
+    }
+
+    /**
+     * Find the items whose object names could not be expanded. Each failure is
+     * handed out only once, so that it gets reported only once.
+     * 
+     * @return The items that failed, along with the reason why.
+     */
+    Map<Item, Throwable> takeFailures() {
+        final Map<Item, Throwable> taken = failures;
+        failures = new HashMap<Item, Throwable>();
+        return taken;
+    }
+
+    /**
+     * Find the mbeans to read, in the order that the items were given.
+     * 
+     * @return The mbeans to read.
+     */
+    List<Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * A single mbean that we read one or more items from.
+     */
+    static final class Target {
+        final MBeanServerConnection server;
+
+        final ObjectName objectName;
+
+        final List<Read> reads = new LinkedList<Read>();
+
+        /**
+         * The distinct mbean attributes we need to read for the items on this
+         * mbean.
+         */
+        String[] attributeNames = null;
+
+        Target(final MBeanServerConnection server, final ObjectName objectName) {
+            this.server = server;
+            this.objectName = objectName;
+        }
+
+        private void add(final Read read) {
+            reads.add(read);
+        }
+
+        private void compile() {
+            attributeNames = attributeNames(reads);
+        }
+    }
+
+    /**
+     * Find the distinct mbean attributes to read for a number of reads.
+     * 
+     * @param reads
+     *            The reads on a single mbean.
+     * @return The mbean attributes to read.
+     */
+    static String[] attributeNames(final Collection<Read> reads) {
+        final Set<String> names = new LinkedHashSet<String>();
+        for (final Read read : reads) {
+            if (read.path != null) {
+                names.add(read.path.getAttributeName());
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * A single value to read for an item. Items with wildcard object names
+     * read a value from each of the matching mbeans.
+     */
+    static final class Read {
+        final Item item;
+
+        final String key;
+
+        final String actualObjectName;
+
+        /**
+         * The item's attribute path, compiled once rather than parsed on
+         * every read, or <code>null</code> if the path is broken.
+         */
+        final AttributePath path;
+
+        Read(final Item item, final String key, final String actualObjectName) {
+            this.item = item;
+            this.key = key;
+            this.actualObjectName = actualObjectName;
+
+            path = item.getPath();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.javamonitor;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The items that failed to read, waiting to be tried again. A misconfigured
+ * item fails on every read, so we do not retry failed items with every push.
+ * Instead, each failure in a row doubles the time until the next try, up to
+ * an hour. An item that reads fine again is forgotten about.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ItemRetries {
+    /**
+     * The time until we try a failed item for the first time, in
+     * milliseconds.
+     */
+    private static final long FIRST_RETRY = 60L * 1000L;
+
+    /**
+     * The longest time between tries of a failed item, in milliseconds.
+     */
+    private static final long MAX_RETRY = 60L * 60L * 1000L;
+
+    private final Map<Item, Retry> retries = new HashMap<Item, Retry>();
+
+    /**
+     * Record that an item failed, and work out when to try it again.
+     *
+     * @param item
+     *            The item that failed.
+     * @param now
+     *            The current time, in milliseconds since the epoch.
+     * @return The number of milliseconds until the item is tried again.
+     */
+    long failed(final Item item, final long now) {
+        Retry retry = retries.get(item);
+        if (retry == null) {
+            retry = new Retry();
+            retries.put(item, retry);
+            retry.wait = FIRST_RETRY;
+        } else {
+            retry.wait = Math.min(retry.wait * 2L, MAX_RETRY);
+        }
+        retry.waiting = true;
+        retry.due = now + retry.wait;
+
+        return retry.wait;
+    }
+
+    /**
+     * Record that an item was read fine, so that it starts afresh should it
+     * fail again.
+     *
+     * @param item
+     *            The item that was read.
+     */
+    void succeeded(final Item item) {
+        if (!retries.isEmpty()) {
+            retries.remove(item);
+        }
+    }
+
+    /**
+     * Find the failed items that are due to be tried again.
+     *
+     * @param now
+     *            The current time, in milliseconds since the epoch.
+     * @param due
+     *            The collection to add the items that are due to.
+     * @return <code>true</code> if any items were due.
+     */
+    boolean takeDue(final long now, final Collection<Item> due) {
+        if (retries.isEmpty()) {
+            return false;
+        }
+
+        boolean any = false;
+        for (final Map.Entry<Item, Retry> entry : retries.entrySet()) {
+            final Retry retry = entry.getValue();
+            if (retry.waiting && retry.due <= now) {
+                retry.waiting = false;
+                due.add(entry.getKey());
+                any = true;
+            }
+        }
+
+        return any;
+    }
+
+    /**
+     * Forget all failed items, for example because we have a new session.
+     */
+    void reset() {
+        retries.clear();
+    }
+
+    private static final class Retry {
+        /**
+         * The time between the last failure and the next try.
+         */
+        long wait;
+
+        /**
+         * The time of the next try.
+         */
+        long due;
+
+        /**
+         * Set while the item is left out of the samples.
+         */
+        boolean waiting;
+    }
+}
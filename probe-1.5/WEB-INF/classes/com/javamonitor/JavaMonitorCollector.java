@@ -6,13 +6,22 @@ import static com.javamonitor.JmxHelper.unregisterCoolMBeans;
 import static com.javamonitor.mbeans.Server.serverObjectName;
 import static java.lang.System.getProperty;
 import static java.lang.System.getenv;
-import static java.lang.Thread.sleep;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Logger.getLogger;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.javamonitor.mbeans.Probe;
 import com.javamonitor.mbeans.Server;
 
 /**
@@ -25,18 +34,63 @@ public class JavaMonitorCollector {
     private static final Logger log = getLogger(JavaMonitorCollector.class
             .getName());
 
-    private Thread collectorThread = null;
+    /**
+     * The sampling stage, which reads the item values on a steady schedule.
+     */
+    private ScheduledExecutorService sampler = null;
+
+    /**
+     * The push stage, which sends the samples to the collector server.
+     */
+    private Thread pushThread = null;
+
+    /**
+     * The samples that wait to be pushed. When the push stage falls behind,
+     * the oldest samples go into the spool.
+     */
+    private final BlockingQueue<SampleBatch> queue = new ArrayBlockingQueue<SampleBatch>(
+            QUEUE_SIZE);
+
+    private static final int QUEUE_SIZE = 4;
 
     private Collector collector = null;
 
+    /**
+     * The number of stages that have yet to let go of the collector before we
+     * close it: the push stage and the one that stops us. We may give up
+     * waiting for a push that is in flight, and then that push must still
+     * find its spool open when it fails.
+     */
+    private AtomicInteger holders = null;
+
     private boolean started = false;
 
-    private static final long ONE_MINUTE = 60L * 1000L;
+    private static final long ONE_MINUTE = Collector.PUSH_INTERVAL * 1000L;
+
+    /**
+     * The time we give the push stage to finish when we stop.
+     */
+    private static final long STOP_TIMEOUT = 1000L;
+
+    /**
+     * The time we give the container around us to become ready, after which
+     * we start sampling anyway. This is well over the time that Openfire gets
+     * to open its client port, so that its first push carries the port.
+     */
+    private static final long READY_TIMEOUT = 60000L;
+
+    /**
+     * The time we give the server around us to register its mbeans, when we
+     * start with the JVM. Servers such as JBoss take their time to boot.
+     */
+    private static final long EARLY_READY_TIMEOUT = 2L * 60000L;
 
     private static final String JAVA_MONITOR_ID = "javamonitor.uniqueid";
 
     private static final Server server = new Server();
 
+    private static final Probe probe = new Probe();
+
     /**
      * Create a new Java-monitor collector, which requires the URL to be
      * specified using the system property &quot;javamonitor.url&quot;.
@@ -73,9 +127,7 @@ public class JavaMonitorCollector {
             id = checkForEatJId();
         }
 
-        collector = new Collector(id);
-        collectorThread = new Thread(new CollectorDriver(),
-                "java-monitor collector");
+        collector = new Collector(id, probe);
     }
 
     /**
@@ -107,77 +159,256 @@ public class JavaMonitorCollector {
      *             When the helper MBeans could not be registered.
      */
     public synchronized void start() throws Exception {
+        start(false);
+    }
+
+    /**
+     * Start the collector in a JVM that is still starting up, for example
+     * from a Java agent that starts with the JVM. The server around us has not
+     * registered its mbeans yet, so instead of settling for a plain JVM, we
+     * wait for the server to show up before we start sampling.
+     * 
+     * @throws Exception
+     *             When the helper MBeans could not be registered.
+     */
+    public synchronized void startEarly() throws Exception {
+        start(true);
+    }
+
+    private void start(final boolean early) throws Exception {
         if (mbeanExists(serverObjectName)) {
             throw new OnHoldException(
                     "A Java-monitor probe is already running in this JVM. See http://java-monitor.com/duplicate-probe.html");
         }
 
-        if (!started && collectorThread != null) {
-            registerCoolMBeans(server);
+        if (!started && collector != null) {
+            registerCoolMBeans(server, probe);
+
+            sampler = newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                            "java-monitor sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-            collectorThread.start();
+            // the first push goes out as soon as the container around us has
+            // registered its connectors, because only then do we know its
+            // port. Should that never happen, we go without.
+            final StartSampling startSampling = new StartSampling(sampler);
+            if (early) {
+                sampler.schedule(startSampling, EARLY_READY_TIMEOUT,
+                        MILLISECONDS);
+                server.whenDetected(new Runnable() {
+                    public void run() {
+                        server.whenReady(startSampling);
+                    }
+                });
+            } else {
+                sampler.schedule(startSampling, READY_TIMEOUT, MILLISECONDS);
+                server.whenReady(startSampling);
+            }
+
+            holders = new AtomicInteger(2);
+            pushThread = new Thread(new Pusher(holders),
+                    "java-monitor collector");
+            pushThread.setDaemon(true);
+            pushThread.start();
             started = true;
         }
     }
 
     /**
-     * Stop the collector, if it was running.
+     * Stop the collector, if it was running. We abort any push that is in
+     * flight, rather than wait for a slow collector server. Samples that were
+     * not pushed yet go into the spool. If the push stage does not finish in
+     * time, it closes the collector itself once it does.
      */
     public synchronized void stop() {
-        if (started && collectorThread != null) {
-            collectorThread.interrupt();
+        if (started) {
+            sampler.shutdownNow();
+            pushThread.interrupt();
+            collector.abort();
             try {
-                collectorThread.join();
+                sampler.awaitTermination(STOP_TIMEOUT, MILLISECONDS);
+                pushThread.join(STOP_TIMEOUT);
             } catch (InterruptedException e) {
                 // ignore, we're going down anyway
             }
 
+            for (SampleBatch batch = queue.poll(); batch != null; batch = queue
+                    .poll()) {
+                collector.spool(batch);
+            }
+
+            release(holders);
             unregisterCoolMBeans();
             started = false;
         }
     }
 
-    private final class CollectorDriver implements Runnable {
+    /**
+     * Let go of the collector, closing it if nobody else holds on to it.
+     */
+    private void release(final AtomicInteger holders) {
+        if (holders.decrementAndGet() == 0) {
+            collector.close();
+        }
+    }
+
+    /**
+     * Find the item values and the values of the probe's own mbeans, for
+     * local scraping.
+     * 
+     * @return The values, as of the last sample.
+     */
+    OpenMetrics getMetrics() {
+        return collector.getMetrics();
+    }
+
+    /**
+     * Record a problem, logging it if it is the first one since the last
+     * successful push.
+     * 
+     * @param e
+     *            The problem.
+     */
+    private static void problem(final Throwable e) {
+        if (server.getLastException() == null) {
+            server.setLastException(e);
+            log.log(Level.SEVERE,
+                    "This probe was hit by an unexpected exception: "
+                            + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The task that starts the sampling stage, once the container is ready or
+     * once we got tired of waiting, whichever comes first.
+     */
+    private final class StartSampling implements Runnable {
+        private final ScheduledExecutorService sampler;
+
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        StartSampling(final ScheduledExecutorService sampler) {
+            this.sampler = sampler;
+        }
+
         /**
          * @see java.lang.Runnable#run()
          */
         public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+
+            // whatever we know about the server by now is what we go with
+            server.settle();
+
             try {
-                // give the container around us a little time to start up and
-                // (more importantly) register its mbeans.
-                sleep(2000L);
+                sampler.scheduleAtFixedRate(new Snapshot(), 0L, ONE_MINUTE,
+                        MILLISECONDS);
+                sampler.scheduleAtFixedRate(new Tick(), Collector.TICK,
+                        Collector.TICK, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // we were stopped before the container was ready
+            }
+        }
+    }
 
-                for (;;) {
+    /**
+     * The sampling stage task that takes the samples to push, once a minute.
+     */
+    private final class Snapshot implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                final SampleBatch batch = collector.snapshot();
+                while (!queue.offer(batch)) {
+                    final SampleBatch oldest = queue.poll();
+                    if (oldest != null) {
+                        collector.spool(oldest);
+                        collector.recycle(oldest);
+                    }
+                }
+            } catch (Throwable e) {
+                // an exception would cancel the schedule
+                problem(e);
+            }
+        }
+    }
+
+    /**
+     * The sampling stage task that samples the items that are due on their own
+     * schedule.
+     */
+    private final class Tick implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                collector.tick();
+            } catch (Throwable e) {
+                // an exception would cancel the schedule
+                problem(e);
+            }
+        }
+    }
+
+    /**
+     * The push stage, which pushes the samples as they come in. A slow
+     * collector server holds up only this stage.
+     */
+    private final class Pusher implements Runnable {
+        private final AtomicInteger holders;
+
+        Pusher(final AtomicInteger holders) {
+            this.holders = holders;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final SampleBatch batch = queue.take();
                     try {
-                        for (;;) {
-                            if (collector.push()) {
-                                collector.push();
+                        if (collector.push(batch)) {
+                            // a new session, so push the new items right away
+                            final SampleBatch first = collector.snapshot();
+                            try {
+                                collector.push(first);
+                            } finally {
+                                collector.recycle(first);
                             }
-                            server.setLastException(null);
-
-                            sleep(ONE_MINUTE);
                         }
-                    } catch (InterruptedException e) {
-                        throw e; // it ends up in the outer try block
+                        server.setLastException(null);
                     } catch (OnHoldException e) {
                         throw e; // it ends up in the outer try block
                     } catch (Throwable e) {
-                        if (server.getLastException() == null) {
-                            server.setLastException(e);
-                            log.log(Level.SEVERE,
-                                    "This probe was hit by an unexpected exception: "
-                                            + e.getMessage(), e);
+                        if (!Thread.currentThread().isInterrupted()) {
+                            problem(e);
                         }
-
-                        sleep(ONE_MINUTE);
+                    } finally {
+                        collector.recycle(batch);
                     }
                 }
             } catch (InterruptedException e) {
                 // ignore. we're exiting
             } catch (OnHoldException e) {
+                sampler.shutdownNow();
+                queue.clear();
                 log.log(SEVERE,
                         "This probe was put on hold by the collector (redeploy to try again): "
                                 + e.getOnHoldBecause());
+            } finally {
+                release(holders);
             }
         }
     }
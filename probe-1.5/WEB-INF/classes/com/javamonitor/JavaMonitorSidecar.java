@@ -0,0 +1,616 @@
+package com.javamonitor;
+
+import static com.javamonitor.JmxHelper.registerCoolMBeans;
+import static com.javamonitor.JmxHelper.unregisterCoolMBeans;
+import static com.javamonitor.mbeans.Server.serverObjectName;
+import static java.lang.System.getProperty;
+import static java.lang.System.nanoTime;
+import static java.lang.management.ManagementFactory.RUNTIME_MXBEAN_NAME;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
+import static java.lang.management.ManagementFactory.newPlatformMXBeanProxy;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+import java.io.IOException;
+import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import com.javamonitor.agent.Attach;
+import com.javamonitor.mbeans.Probe;
+import com.javamonitor.mbeans.Server;
+
+/**
+ * The Java-monitor sidecar, which monitors all the other JVMs on this machine
+ * from a JVM of its own. Hosts that run many small JVMs would otherwise run a
+ * probe in each of them, each with its own threads and its own pushes.
+ * <p>
+ * The sidecar finds the JVMs through the attach API and reads their mbeans
+ * over their local JMX connectors, keeping a connection open to each. A
+ * single sampler thread takes the samples of all JVMs, sharing one pool of
+ * readers. A single push thread pushes the samples of all JVMs, in one
+ * compressed multi-probe batch if the collector server accepts batches, or
+ * one after the other over a kept-alive connection if it does not.
+ * <p>
+ * JVMs that run a probe of their own are left alone, as is the sidecar
+ * itself. Each JVM is identified to the collector server by the system
+ * property &quot;javamonitor.uniqueid&quot; in that JVM, or by its main class
+ * and its working directory if that property is not set. A JVM that we cannot
+ * tell apart from one that we already monitor is left alone, with a warning.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class JavaMonitorSidecar {
+    private static final Logger log = getLogger(JavaMonitorCollector.class
+            .getName());
+
+    private static final long ONE_MINUTE = Collector.PUSH_INTERVAL * 1000L;
+
+    /**
+     * The number of threads that read mbeans in parallel, for all JVMs
+     * together.
+     */
+    private static final int READERS = 8;
+
+    /**
+     * The number of sampling rounds that may wait to be pushed.
+     */
+    private static final int QUEUE_SIZE = 4;
+
+    /**
+     * The time we give the sampler and the push stage to finish when we stop.
+     */
+    private static final long STOP_TIMEOUT = 10000L;
+
+    private static final String JAVA_MONITOR_ID = "javamonitor.uniqueid";
+
+    private static final String JAVA_MONITOR_KEEPALIVE = "javamonitor.keepalive";
+
+    private final Server server = new Server();
+
+    private final Probe probe = new Probe();
+
+    /**
+     * The JVMs we monitor, by process ID. Only the sampler touches these.
+     */
+    private final Map<String, Monitored> jvms = new LinkedHashMap<String, Monitored>();
+
+    /**
+     * The JVMs that we leave alone, by process ID. Only the sampler touches
+     * these.
+     */
+    private final Set<String> ignored = new HashSet<String>();
+
+    /**
+     * The sampling rounds that wait to be pushed.
+     */
+    private final BlockingQueue<List<Sample>> queue = new ArrayBlockingQueue<List<Sample>>(
+            QUEUE_SIZE);
+
+    private ScheduledExecutorService sampler = null;
+
+    private Readers readers = null;
+
+    private Thread pushThread = null;
+
+    private boolean started = false;
+
+    /**
+     * Set while the collector server accepts multi-probe batches.
+     */
+    private volatile boolean batches = false;
+
+    /**
+     * Start the sidecar and run until the JVM is stopped.
+     *
+     * @param args
+     *            ignored.
+     * @throws Exception
+     *             When the sidecar could not be started.
+     */
+    public static void main(final String args[]) throws Exception {
+        final JavaMonitorSidecar sidecar = new JavaMonitorSidecar();
+        Runtime.getRuntime().addShutdownHook(
+                new Thread("java-monitor shutdown") {
+                    @Override
+                    public void run() {
+                        sidecar.stop();
+                    }
+                });
+        sidecar.start();
+
+        // the sidecar's own threads are daemons
+        synchronized (sidecar) {
+            while (true) {
+                sidecar.wait();
+            }
+        }
+    }
+
+    /**
+     * Start the sidecar, if it was not already started.
+     *
+     * @throws Exception
+     *             When the helper MBeans could not be registered.
+     */
+    public synchronized void start() throws Exception {
+        if (started) {
+            return;
+        }
+
+        // all pushes go to the same server, so we keep one connection open
+        if (getProperty(JAVA_MONITOR_KEEPALIVE) == null) {
+            System.setProperty(JAVA_MONITOR_KEEPALIVE, "true");
+        }
+
+        registerCoolMBeans(server, probe);
+        readers = Collector.newReaders(READERS);
+        sampler = newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "java-monitor sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Snapshot(), 0L, ONE_MINUTE,
+                MILLISECONDS);
+        sampler.scheduleAtFixedRate(new Tick(), Collector.TICK,
+                Collector.TICK, MILLISECONDS);
+
+        pushThread = new Thread(new Pusher(), "java-monitor collector");
+        pushThread.setDaemon(true);
+        pushThread.start();
+        started = true;
+    }
+
+    /**
+     * Stop the sidecar, if it was running. Samples that were not pushed yet
+     * go into the spools.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        sampler.shutdownNow();
+        pushThread.interrupt();
+        try {
+            sampler.awaitTermination(STOP_TIMEOUT, MILLISECONDS);
+        } catch (InterruptedException e) {
+            // ignore, we're going down anyway
+        }
+        for (final Monitored monitored : jvms.values()) {
+            monitored.collector.abort();
+        }
+        try {
+            pushThread.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            // ignore, we're going down anyway
+        }
+
+        for (List<Sample> round = queue.poll(); round != null; round = queue
+                .poll()) {
+            for (final Sample sample : round) {
+                sample.collector.spool(sample.batch);
+                sample.monitored.release();
+            }
+        }
+        for (final Monitored monitored : jvms.values()) {
+            monitored.release();
+        }
+        jvms.clear();
+
+        readers.shutdownNow();
+        unregisterCoolMBeans();
+        started = false;
+    }
+
+    /**
+     * Look for JVMs that came or went. We attach to the ones that came and
+     * let go of the ones that went. A JVM that went is closed once its samples
+     * that wait to be pushed are pushed or spooled.
+     */
+    private void discover() {
+        final Map<String, String> running;
+        try {
+            running = Attach.list();
+        } catch (Exception e) {
+            log.log(WARNING, "unable to list the JVMs on this machine", e);
+            return;
+        }
+
+        final Iterator<Monitored> gone = jvms.values().iterator();
+        while (gone.hasNext()) {
+            final Monitored monitored = gone.next();
+            if (monitored.onHold) {
+                ignored.add(monitored.jvm.getPid());
+            }
+            if (monitored.onHold || monitored.jvm.isBroken()
+                    || !running.containsKey(monitored.jvm.getPid())) {
+                monitored.release();
+                gone.remove();
+            }
+        }
+        ignored.retainAll(running.keySet());
+
+        final String self = getRuntimeMXBean().getName().split("@")[0];
+        for (final Map.Entry<String, String> entry : running.entrySet()) {
+            final String pid = entry.getKey();
+            if (pid.equals(self) || jvms.containsKey(pid)
+                    || ignored.contains(pid)) {
+                continue;
+            }
+
+            try {
+                final Monitored monitored = monitor(pid, entry.getValue());
+                if (monitored != null) {
+                    jvms.put(pid, monitored);
+                    log.fine("monitoring JVM " + pid + " ("
+                            + entry.getValue() + ") as "
+                            + monitored.uniqueId);
+                }
+            } catch (Exception e) {
+                // it may not be ready for us yet, try again next time
+                log.log(FINE, "unable to monitor JVM " + pid + " ("
+                        + entry.getValue() + ")", e);
+            }
+        }
+    }
+
+    /**
+     * Connect to a JVM and set up a collector for it.
+     *
+     * @return The monitored JVM, or <code>null</code> if the JVM runs a probe
+     *         of its own.
+     */
+    private Monitored monitor(final String pid, final String displayName)
+            throws Exception {
+        final RemoteJvm jvm = RemoteJvm.connect(pid, displayName);
+        try {
+            if (jvm.getConnection().isRegistered(
+                    new ObjectName(serverObjectName))) {
+                ignored.add(pid);
+                jvm.close();
+                return null;
+            }
+
+            final String uniqueId = uniqueId(jvm);
+            if (uniqueId == null) {
+                log.warning("JVM " + pid + " (" + displayName + ") runs the "
+                        + "same main class in the same directory as a JVM "
+                        + "we already monitor, set the system property "
+                        + JAVA_MONITOR_ID + " in it to monitor it");
+                ignored.add(pid);
+                jvm.close();
+                return null;
+            }
+
+            return new Monitored(jvm, uniqueId, new Collector(uniqueId,
+                    probe, jvm, readers));
+        } catch (Exception e) {
+            jvm.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Work out a unique ID for a JVM. The process ID changes with every
+     * restart, so we use the JVM's own setting or, failing that, its main
+     * class and its working directory. Those stay the same from one restart
+     * to the next, no matter in what order we find the JVMs.
+     * 
+     * @return The unique ID, or <code>null</code> if a JVM that we already
+     *         monitor has the same one.
+     */
+    private String uniqueId(final RemoteJvm jvm) throws IOException {
+        final Map<String, String> properties = newPlatformMXBeanProxy(
+                jvm.getConnection(), RUNTIME_MXBEAN_NAME, RuntimeMXBean.class)
+                .getSystemProperties();
+        String uniqueId = properties.get(JAVA_MONITOR_ID);
+        if (uniqueId == null) {
+            uniqueId = jvm.getDisplayName().trim().split("\\s")[0] + " ("
+                    + properties.get("user.dir") + ")";
+        }
+
+        for (final Monitored monitored : jvms.values()) {
+            if (monitored.uniqueId.equals(uniqueId)) {
+                return null;
+            }
+        }
+
+        return uniqueId;
+    }
+
+    /**
+     * Push a sampling round to the collector server.
+     */
+    private void push(final List<Sample> round) throws InterruptedException {
+        if (batches && round.size() > 1) {
+            pushBatch(round);
+        } else {
+            for (final Sample sample : round) {
+                pushOne(sample);
+                if (sample.collector.isBatchAccepted()) {
+                    batches = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Push a sampling round to the collector server in a single batch. If the
+     * batch fails, we fall back to pushing the JVMs one by one, which also
+     * tells us if the server still accepts batches.
+     */
+    private void pushBatch(final List<Sample> round) {
+        final PushBatch batch = new PushBatch();
+        final List<Sample> sent = new ArrayList<Sample>(round.size());
+        for (final Sample sample : round) {
+            try {
+                batch.add(CompactFormat.CONTENT_TYPE, sample.collector
+                        .batchRequest(sample.batch));
+                sent.add(sample);
+            } catch (Exception e) {
+                sample.collector.pushFailed(sample.batch);
+                log.log(FINE, "unable to write the sample of "
+                        + sample.monitored.uniqueId, e);
+            }
+        }
+        if (sent.isEmpty()) {
+            return;
+        }
+
+        final List<PushBatch.Part> responses;
+        try {
+            final Collector first = sent.get(0).collector;
+            final long start = nanoTime();
+            responses = batch.post(first.getPushUrl(), first.getProxy(),
+                    true, probe);
+            probe.push(nanoTime() - start);
+        } catch (Exception e) {
+            batches = false;
+            for (final Sample sample : sent) {
+                sample.collector.pushFailed(sample.batch);
+            }
+            problem(e);
+            return;
+        }
+
+        for (int i = 0; i < sent.size(); i++) {
+            final Sample sample = sent.get(i);
+            try {
+                if (sample.collector.batchResponse(sample.batch, responses
+                        .get(i))) {
+                    pushFirst(sample.monitored);
+                }
+            } catch (OnHoldException e) {
+                onHold(sample.monitored, e);
+            } catch (Exception e) {
+                log.log(FINE, "collector did not accept the sample of "
+                        + sample.monitored.uniqueId, e);
+            }
+        }
+        server.setLastException(null);
+    }
+
+    /**
+     * Push the sample of a single JVM.
+     */
+    private void pushOne(final Sample sample) throws InterruptedException {
+        try {
+            if (sample.collector.push(sample.batch)) {
+                pushFirst(sample.monitored);
+            }
+            server.setLastException(null);
+        } catch (OnHoldException e) {
+            onHold(sample.monitored, e);
+        } catch (Throwable e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            problem(e);
+        }
+    }
+
+    /**
+     * A JVM got a new session, so we push its new items right away.
+     */
+    private void pushFirst(final Monitored monitored) throws Exception {
+        final SampleBatch first = monitored.collector.snapshot();
+        try {
+            monitored.collector.push(first);
+        } finally {
+            monitored.collector.recycle(first);
+        }
+    }
+
+    /**
+     * The collector server put a JVM on hold. We stop sampling it, and let go
+     * of it when we next look for JVMs. It stays on hold until the sidecar is
+     * restarted.
+     */
+    private void onHold(final Monitored monitored, final OnHoldException e) {
+        monitored.onHold = true;
+        log.log(SEVERE, "JVM " + monitored.uniqueId
+                + " was put on hold by the collector: " + e.getOnHoldBecause());
+    }
+
+    /**
+     * Record a problem, logging it if it is the first one since the last
+     * successful push.
+     */
+    private void problem(final Throwable e) {
+        if (server.getLastException() == null) {
+            server.setLastException(e);
+            log.log(SEVERE, "This sidecar was hit by an unexpected exception: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A JVM that we monitor.
+     */
+    private static final class Monitored {
+        final RemoteJvm jvm;
+
+        final String uniqueId;
+
+        final Collector collector;
+
+        volatile boolean onHold = false;
+
+        /**
+         * The number of holders of this JVM: the list of JVMs that we
+         * monitor, and each of its samples that waits to be pushed. The last
+         * one to let go closes the JVM, so that the push stage never pushes
+         * through a closed collector.
+         */
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        Monitored(final RemoteJvm jvm, final String uniqueId,
+                final Collector collector) {
+            this.jvm = jvm;
+            this.uniqueId = uniqueId;
+            this.collector = collector;
+        }
+
+        void hold() {
+            holders.incrementAndGet();
+        }
+
+        void release() {
+            if (holders.decrementAndGet() == 0) {
+                collector.close();
+                jvm.close();
+            }
+        }
+    }
+
+    /**
+     * The sample of a single JVM, waiting to be pushed.
+     */
+    private static final class Sample {
+        final Monitored monitored;
+
+        final Collector collector;
+
+        final SampleBatch batch;
+
+        Sample(final Monitored monitored, final SampleBatch batch) {
+            this.monitored = monitored;
+            this.collector = monitored.collector;
+            this.batch = batch;
+            monitored.hold();
+        }
+    }
+
+    /**
+     * The sampling task that looks for JVMs and takes the samples of all of
+     * them, once a minute.
+     */
+    private final class Snapshot implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                discover();
+
+                final List<Sample> round = new ArrayList<Sample>(jvms.size());
+                for (final Monitored monitored : jvms.values()) {
+                    if (monitored.onHold) {
+                        continue;
+                    }
+
+                    try {
+                        round.add(new Sample(monitored, monitored.collector
+                                .snapshot()));
+                    } catch (Exception e) {
+                        log.log(FINE, "unable to sample JVM "
+                                + monitored.uniqueId, e);
+                    }
+                }
+
+                while (!queue.offer(round)) {
+                    final List<Sample> oldest = queue.poll();
+                    if (oldest != null) {
+                        for (final Sample sample : oldest) {
+                            sample.collector.spool(sample.batch);
+                            sample.collector.recycle(sample.batch);
+                            sample.monitored.release();
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                // an exception would cancel the schedule
+                problem(e);
+            }
+        }
+    }
+
+    /**
+     * The sampling task that samples the items of all JVMs that are due on
+     * their own schedule.
+     */
+    private final class Tick implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            for (final Monitored monitored : jvms.values()) {
+                if (!monitored.onHold) {
+                    try {
+                        monitored.collector.tick();
+                    } catch (Throwable e) {
+                        // an exception would cancel the schedule
+                        problem(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The push stage, which pushes the sampling rounds as they come in.
+     */
+    private final class Pusher implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final List<Sample> round = queue.take();
+                    try {
+                        push(round);
+                    } finally {
+                        for (final Sample sample : round) {
+                            sample.collector.recycle(sample.batch);
+                            sample.monitored.release();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // ignore. we're exiting
+            }
+        }
+    }
+}
@@ -5,18 +5,34 @@ import static java.lang.Integer.parseInt;
 import static java.lang.Long.parseLong;
 import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
 import javax.management.MBeanServerFactory;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
-import javax.management.openmbean.CompositeData;
 
 import com.javamonitor.mbeans.DNSCachePolicy;
+import com.javamonitor.mbeans.Probe;
 import com.javamonitor.mbeans.Server;
 import com.javamonitor.mbeans.Threading;
 
@@ -34,7 +50,191 @@ public class JmxHelper {
      */
     public static final String objectNameBase = "com.javamonitor:type=";
 
+    /**
+     * The object name of the delegate that sends out the mbean registration
+     * and unregistration notifications for an mbean server.
+     */
+    static final String delegateObjectName = "JMImplementation:type=MBeanServerDelegate";
+
+    /**
+     * A counter that we bump every time an mbean is registered or
+     * unregistered, and every time an mbean server comes or goes.
+     */
+    private static final AtomicLong registrations = new AtomicLong();
+
+    /**
+     * An index of the mbean server that each mbean lives in. Names that are
+     * not registered anywhere map to the platform mbean server, just like
+     * <code>findMBeanServer()</code> does. Registration and unregistration
+     * notifications drop the affected names from the index, so that the next
+     * lookup finds them afresh.
+     */
+    private static final ConcurrentMap<ObjectName, MBeanServer> servers = new ConcurrentHashMap<ObjectName, MBeanServer>();
+
+    private static final NotificationListener registrationListener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                final ObjectName name = ((MBeanServerNotification) notification)
+                        .getMBeanName();
+                servers.remove(name);
+                registrations.incrementAndGet();
+
+                if (MBeanServerNotification.REGISTRATION_NOTIFICATION
+                        .equals(notification.getType())) {
+                    for (final Arrival arrival : arrivals) {
+                        arrival.registered(name);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * The futures that wait for mbeans to be registered.
+     */
+    private static final List<Arrival> arrivals = new CopyOnWriteArrayList<Arrival>();
+
+    /**
+     * The mbean servers that we listen to for registrations.
+     */
+    private static final Set<MBeanServer> watched = new HashSet<MBeanServer>();
+
+    private static volatile boolean watching = false;
+
+    /**
+     * Make sure we listen to the mbean registrations of all mbean servers, and
+     * stop listening to mbean servers that were released. When the set of mbean
+     * servers changes, the index of mbean servers is no longer valid.
+     */
+    private static synchronized void watchMBeanServers() {
+        getPlatformMBeanServer(); // make sure it exists
+
+        boolean complete = true;
+        boolean changed = false;
+        final List<MBeanServer> found = MBeanServerFactory
+                .findMBeanServer(null);
+        for (int i = 0; i < found.size(); i++) {
+            if (!watched.contains(found.get(i))) {
+                try {
+                    found.get(i).addNotificationListener(
+                            new ObjectName(delegateObjectName),
+                            registrationListener, null, null);
+                    watched.add(found.get(i));
+                } catch (Exception e) {
+                    // we'll just try again next time...
+                    complete = false;
+                }
+                changed = true;
+            }
+        }
+
+        if (watched.retainAll(found)) {
+            changed = true;
+        }
+
+        if (changed) {
+            servers.clear();
+            registrations.incrementAndGet();
+        }
+        watching = complete;
+    }
+
+    /**
+     * Stop listening to mbean registrations. We have to do this to avoid
+     * keeping our class loader alive from the mbean servers after the probe
+     * was stopped.
+     */
+    private static synchronized void unwatchMBeanServers() {
+        watching = false;
+
+        final Iterator<MBeanServer> unwatch = watched.iterator();
+        while (unwatch.hasNext()) {
+            try {
+                unwatch.next().removeNotificationListener(
+                        new ObjectName(delegateObjectName),
+                        registrationListener);
+            } catch (Exception e) {
+                // ignore, this was just to clean up
+            }
+            unwatch.remove();
+        }
+
+        servers.clear();
+
+        for (final Arrival arrival : arrivals) {
+            arrival.cancel(false);
+        }
+    }
+
+    /**
+     * Find the number of mbean registration changes we have seen so far. Any
+     * change in the set of registered mbeans in any of the mbean servers
+     * changes this number, so callers can use it to see if the results of
+     * earlier <code>queryNames()</code> calls are still valid.
+     * 
+     * @return The number of mbean registrations changes so far.
+     */
+    public static long getRegistrationCount() {
+        watchMBeanServers();
+        return registrations.get();
+    }
+
+    /**
+     * Wait for an mbean to be registered, without blocking. Containers such as
+     * Tomcat register their connector mbeans only when they are ready to take
+     * requests, which may well be after the probe started. Rather than poll
+     * for them, we have the mbean servers tell us when they arrive.
+     * 
+     * @param query
+     *            The wildcarded object name of the mbean to wait for.
+     * @param then
+     *            The task to run once the mbean is registered, or
+     *            <code>null</code> for none. It runs in the thread that
+     *            registered the mbean, so it should be quick.
+     * @return A future that completes with the name of the first matching
+     *         mbean, right away if there already is one.
+     * @throws MalformedObjectNameException
+     *             When the query could not be parsed.
+     */
+    public static Future<ObjectName> whenRegistered(final String query,
+            final Runnable then) throws MalformedObjectNameException {
+        final Arrival arrival = new Arrival(new ObjectName(query), then);
+        arrivals.add(arrival);
+        watchMBeanServers();
+
+        // it may have been registered before we listened
+        final Set<ObjectName> names = queryNames(query);
+        if (!names.isEmpty()) {
+            arrival.registered(names.iterator().next());
+        }
+
+        return arrival;
+    }
+
     private static MBeanServer findMBeanServer(final ObjectName objectName) {
+        if (!watching) {
+            watchMBeanServers();
+        }
+
+        MBeanServer server = servers.get(objectName);
+        if (server == null) {
+            final long before = registrations.get();
+            server = lookupMBeanServer(objectName);
+            if (watching) {
+                servers.put(objectName, server);
+
+                // registrations during the lookup may have invalidated it
+                if (registrations.get() != before) {
+                    servers.remove(objectName);
+                }
+            }
+        }
+
+        return server;
+    }
+
+    private static MBeanServer lookupMBeanServer(final ObjectName objectName) {
         final List<MBeanServer> servers = MBeanServerFactory
                 .findMBeanServer(null);
         for (int i = 0; i < servers.size(); i++) {
@@ -206,27 +406,120 @@ public class JmxHelper {
      */
     public static Object query(final ObjectName objectName,
             final String attribute) throws Exception {
-        final int dot = attribute.indexOf('.');
-        if (dot < 0) {
-            return findMBeanServer(objectName).getAttribute(objectName,
-                    attribute);
-        }
+        return query(findMBeanServer(objectName), objectName, attribute);
+    }
+
+    /**
+     * Query a JMX attribute on a known mbean server.
+     * 
+     * @param server
+     *            The mbean server that the mbean lives in.
+     * @param objectName
+     *            The name of the mbean to query.
+     * @param attribute
+     *            The attribute to query on that mbean.
+     * @return The value of the attribute on the named object.
+     * @throws Exception
+     *             When there was a problem querying.
+     */
+    public static Object query(final MBeanServerConnection server,
+            final ObjectName objectName, final String attribute)
+            throws Exception {
+        final AttributePath path = AttributePath.compile(attribute);
+        return path.resolve(server.getAttribute(objectName, path
+                .getAttributeName()));
+    }
 
-        return resolveFields((CompositeData) findMBeanServer(objectName)
-                .getAttribute(objectName, attribute.substring(0, dot)),
-                attribute.substring(dot + 1));
+    /**
+     * Query a number of JMX attributes on a single mbean in one go. This saves
+     * us a round-trip through the mbean server for every attribute, which adds
+     * up quickly on servers that do a lot of work per invocation. Attributes
+     * may be composite paths, in which case the composite attribute is fetched
+     * only once.
+     * <p>
+     * Attributes that could not be read are left out of the result, just like
+     * MBeanServer.getAttributes() does. Use <code>query()</code> to find out
+     * what went wrong with those.
+     * 
+     * @param objectName
+     *            The name of the mbean to query.
+     * @param attributes
+     *            The attribute names to query on that mbean, without any
+     *            composite fields.
+     * @return The values of the attributes that could be read, by attribute
+     *         name.
+     * @throws Exception
+     *             When there was a problem querying.
+     */
+    public static Map<String, Object> queryAttributes(
+            final ObjectName objectName, final String[] attributes)
+            throws Exception {
+        return queryAttributes(findMBeanServer(objectName), objectName,
+                attributes);
     }
 
-    private static Object resolveFields(final CompositeData attribute,
-            final String field) {
-        final int dot = field.indexOf('.');
-        if (dot < 0) {
-            final Object ret = attribute.get(field);
-            return ret == null ? null : ret;
+    /**
+     * Query a number of JMX attributes on a single mbean in one go, on a known
+     * mbean server.
+     * 
+     * @param server
+     *            The mbean server that the mbean lives in.
+     * @param objectName
+     *            The name of the mbean to query.
+     * @param attributes
+     *            The attribute names to query on that mbean, without any
+     *            composite fields.
+     * @return The values of the attributes that could be read, by attribute
+     *         name.
+     * @throws Exception
+     *             When there was a problem querying.
+     * @see #queryAttributes(ObjectName, String[])
+     */
+    public static Map<String, Object> queryAttributes(
+            final MBeanServerConnection server, final ObjectName objectName,
+            final String[] attributes) throws Exception {
+        final AttributeList list = server.getAttributes(objectName,
+                attributes);
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (final Object attribute : list) {
+            values.put(((Attribute) attribute).getName(),
+                    ((Attribute) attribute).getValue());
         }
 
-        return resolveFields((CompositeData) attribute.get(field.substring(0,
-                dot)), field.substring(dot + 1));
+        return values;
+    }
+
+    /**
+     * Find the name of the mbean attribute that an attribute path starts with.
+     * For plain attributes, that is the attribute itself. For paths such as
+     * <code>HeapMemoryUsage.used</code> or
+     * <code>MemoryPoolUsage[Old Gen].used</code> it is the part before the
+     * first dot or bracket.
+     * 
+     * @param attribute
+     *            The attribute path.
+     * @return The name of the mbean attribute.
+     */
+    public static String attributeName(final String attribute) {
+        return AttributePath.compile(attribute).getAttributeName();
+    }
+
+    /**
+     * Resolve an attribute path against the value of its mbean attribute, as
+     * it was fetched using <code>queryAttributes()</code>. Paths may step
+     * into composite data fields, tabular data rows, map entries and array or
+     * list elements.
+     * 
+     * @param value
+     *            The value of the mbean attribute named by
+     *            <code>attributeName(attribute)</code>.
+     * @param attribute
+     *            The attribute path.
+     * @return The value that the attribute path points to.
+     */
+    public static Object resolve(final Object value, final String attribute) {
+        return AttributePath.compile(attribute).resolve(value);
     }
 
     /**
@@ -240,17 +533,126 @@ public class JmxHelper {
      */
     public static Set<ObjectName> queryNames(final String query)
             throws MalformedObjectNameException {
+        final Set<ObjectName> names = new HashSet<ObjectName>();
+        queryNames(query, names);
+        return names;
+    }
+
+    /**
+     * Find a list of object names, as well as the mbean server that they live
+     * in.
+     * 
+     * @param query
+     *            The wildcarded object name to list.
+     * @param names
+     *            The set to add the matching object names to.
+     * @return The mbean server that the matching mbeans live in.
+     * @throws MalformedObjectNameException
+     *             When the query could not be parsed.
+     */
+    public static MBeanServer queryNames(final String query,
+            final Set<ObjectName> names) throws MalformedObjectNameException {
         final ObjectName objectNameQuery = new ObjectName(query);
-        Set<ObjectName> names = new HashSet<ObjectName>();
 
         final List<MBeanServer> servers = MBeanServerFactory
                 .findMBeanServer(null);
-        for (int i = 0; names.size() == 0 && i < servers.size(); i++) {
-            names = servers.get(i).queryNames(objectNameQuery, null);
+        for (int i = 0; i < servers.size(); i++) {
+            final Set<ObjectName> found = servers.get(i).queryNames(
+                    objectNameQuery, null);
+            if (found.size() > 0) {
+                names.addAll(found);
+                return servers.get(i);
+            }
+        }
+
+        final MBeanServer platform = getPlatformMBeanServer();
+        names.addAll(platform.queryNames(objectNameQuery, null));
+        return platform;
+    }
+
+    /**
+     * Test if an object name matches a wildcarded object name. This is what
+     * <code>ObjectName.apply()</code> does, but that was added in Java 6.
+     * Like Java 5, we support wildcards in the domain and a trailing
+     * <code>*</code> in the key properties, but not wildcards in the values
+     * of the key properties.
+     * 
+     * @param pattern
+     *            The wildcarded object name.
+     * @param name
+     *            The object name to test.
+     * @return <code>true</code> if the name matches the pattern, or
+     *         <code>false</code> otherwise.
+     */
+    public static boolean matches(final ObjectName pattern,
+            final ObjectName name) {
+        if (!pattern.isPattern()) {
+            return pattern.equals(name);
+        }
+
+        if (pattern.isDomainPattern() ? !wildcardMatches(pattern.getDomain(),
+                0, name.getDomain(), 0) : !pattern.getDomain().equals(
+                name.getDomain())) {
+            return false;
+        }
+
+        final Map<?, ?> wanted = pattern.getKeyPropertyList();
+        final Map<?, ?> properties = name.getKeyPropertyList();
+        for (final Map.Entry<?, ?> property : wanted.entrySet()) {
+            if (!property.getValue().equals(properties.get(property.getKey()))) {
+                return false;
+            }
+        }
+
+        return pattern.isPropertyPattern()
+                || wanted.size() == properties.size();
+    }
+
+    private static boolean wildcardMatches(final String pattern, final int p,
+            final String text, final int t) {
+        if (p == pattern.length()) {
+            return t == text.length();
+        }
+
+        final char c = pattern.charAt(p);
+        if (c == '*') {
+            for (int i = t; i <= text.length(); i++) {
+                if (wildcardMatches(pattern, p + 1, text, i)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        if (names.size() == 0) {
-            names = getPlatformMBeanServer().queryNames(objectNameQuery, null);
+        return t < text.length() && (c == '?' || c == text.charAt(t))
+                && wildcardMatches(pattern, p + 1, text, t + 1);
+    }
+
+    /**
+     * Find the names of the mbeans that match any of a number of object names,
+     * in any of the mbean servers. Object names without wildcards are looked
+     * up directly, which is a lot cheaper than a query on servers with many
+     * mbeans.
+     * 
+     * @param objectNames
+     *            The object names to look for, which may be patterns.
+     * @return The names of the matching mbeans.
+     */
+    public static Set<ObjectName> queryNames(
+            final Collection<ObjectName> objectNames) {
+        final Set<ObjectName> names = new HashSet<ObjectName>();
+
+        getPlatformMBeanServer(); // make sure it exists
+        final List<MBeanServer> servers = MBeanServerFactory
+                .findMBeanServer(null);
+        for (int i = 0; i < servers.size(); i++) {
+            for (final ObjectName objectName : objectNames) {
+                if (objectName.isPattern()) {
+                    names.addAll(servers.get(i).queryNames(objectName, null));
+                } else if (servers.get(i).isRegistered(objectName)) {
+                    names.add(objectName);
+                }
+            }
         }
 
         return names;
@@ -261,23 +663,31 @@ public class JmxHelper {
      * 
      * @param server
      *            The server mbean to register.
+     * @param probe
+     *            The probe mbean to register.
      * @throws Exception
      *             When one of the MBeans could not be registered.
      */
-    public static void registerCoolMBeans(final Server server) throws Exception {
+    public static void registerCoolMBeans(final Server server,
+            final Probe probe) throws Exception {
         register(server, serverObjectName);
         register(new Threading(), Threading.objectName);
         register(new DNSCachePolicy(), DNSCachePolicy.objectName);
+        register(probe, Probe.objectName);
     }
 
     /**
      * Unregister all the useful mbeans from the JMX registry. We assume that
-     * the registered beans were registered in the platform mbean server.
+     * the registered beans were registered in the platform mbean server. We
+     * also stop listening for mbean registrations.
      */
     public static void unregisterCoolMBeans() {
         unregister(serverObjectName);
         unregister(Threading.objectName);
         unregister(DNSCachePolicy.objectName);
+        unregister(Probe.objectName);
+
+        unwatchMBeanServers();
     }
 
     /**
@@ -296,4 +706,43 @@ public class JmxHelper {
             // ignore, this was just to clean up
         }
     }
+
+    /**
+     * A future that completes when an mbean that matches its query is
+     * registered.
+     */
+    private static final class Arrival extends FutureTask<ObjectName> {
+        private static final Runnable NOTHING = new Runnable() {
+            public void run() {
+                // we are completed by registrations, not by running
+            }
+        };
+
+        private final ObjectName query;
+
+        private final Runnable then;
+
+        Arrival(final ObjectName query, final Runnable then) {
+            super(NOTHING, null);
+            this.query = query;
+            this.then = then;
+        }
+
+        void registered(final ObjectName name) {
+            if (matches(query, name)) {
+                set(name);
+            }
+        }
+
+        /**
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            arrivals.remove(this);
+            if (then != null && !isCancelled()) {
+                then.run();
+            }
+        }
+    }
 }
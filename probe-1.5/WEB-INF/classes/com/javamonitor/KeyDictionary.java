@@ -0,0 +1,71 @@
+package com.javamonitor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The dictionary of item keys and object names that we share with the
+ * collector server for the compact wire format. The server builds the same
+ * dictionary as it reads our messages, so we have to start over whenever we
+ * are not sure that the server saw everything we sent.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class KeyDictionary {
+    /**
+     * We start over when the dictionary grows larger than this, so that items
+     * with many changing object names cannot grow it without bound.
+     */
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    private boolean fresh = true;
+
+    /**
+     * Look up the number of a string.
+     * 
+     * @param value
+     *            The string to look up.
+     * @return The number of the string, or 0 if the string is not in the
+     *         dictionary yet. In that case the string is added with the next
+     *         free number.
+     */
+    int lookup(final String value) {
+        final Integer id = ids.get(value);
+        if (id != null) {
+            return id.intValue();
+        }
+
+        ids.put(value, ids.size() + 1);
+        return 0;
+    }
+
+    /**
+     * Start a new message. If the dictionary was reset since the last message
+     * or if it grew too large, the new message has to start with an empty
+     * dictionary.
+     * 
+     * @return <code>true</code> if the message starts with an empty
+     *         dictionary, or <code>false</code> if it continues where the
+     *         last message left off.
+     */
+    boolean begin() {
+        if (ids.size() > MAX_SIZE) {
+            reset();
+        }
+
+        final boolean wasFresh = fresh;
+        fresh = false;
+        return wasFresh;
+    }
+
+    /**
+     * Forget all strings. We do this on every new session and whenever a
+     * message may not have reached the server in full.
+     */
+    void reset() {
+        ids.clear();
+        fresh = true;
+    }
+}
@@ -0,0 +1,139 @@
+package com.javamonitor;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.System.getProperty;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Enumeration;
+
+/**
+ * The local IP address of this JVM, as seen from the collector server. If we
+ * just used InetAddress.getLocalhost() we end up with 127.0.0.1 in many cases,
+ * so instead we open a connection to the Java-monitor servers and use the
+ * local IP address of that connection.
+ * <p>
+ * Opening that connection on every push doubles the number of connections we
+ * make, so we remember the address. The JVM may be running on a laptop that
+ * moves from network to network, though. We look at the network interfaces and
+ * their addresses before each push, and look up the local IP address again
+ * when they changed. That check does not touch the network.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class LocalIp {
+    private final int timeout;
+
+    private String localIp = null;
+
+    private String interfaces = null;
+
+    /**
+     * Create a new local IP address lookup.
+     * 
+     * @param timeout
+     *            The socket timeout to use when we look up the address.
+     */
+    LocalIp(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Retrieve the local IP address.
+     * 
+     * @param pushUrl
+     *            The URL we push to.
+     * @return The local IP address of this JVM.
+     * @throws UnknownHostException
+     *             When we could not determine the local IP address.
+     * @throws IOException
+     *             When we could not determine the local IP address.
+     */
+    String get(final URL pushUrl) throws UnknownHostException, IOException {
+        final String current = describeInterfaces();
+        if (localIp == null || current == null || !current.equals(interfaces)) {
+            localIp = lookup(pushUrl);
+            interfaces = current;
+        }
+
+        return localIp;
+    }
+
+    /**
+     * Forget the local IP address, so that the next push looks it up again. We
+     * do this when a push fails, because that may be caused by a change in the
+     * network that did not show up in the interfaces.
+     */
+    void reset() {
+        localIp = null;
+    }
+
+    private String lookup(final URL pushUrl) throws UnknownHostException,
+            IOException {
+        Socket s = null;
+        try {
+            if (getProperty("http.proxyHost") != null) {
+                s = new Socket(getProperty("http.proxyHost"),
+                        parseInt(getProperty("http.proxyPort", "80")));
+            } else {
+                int port = pushUrl.getDefaultPort();
+                if (pushUrl.getPort() != -1) {
+                    port = pushUrl.getPort();
+                }
+                s = new Socket(pushUrl.getHost(), port);
+            }
+
+            s.setSoTimeout(timeout);
+            return s.getLocalAddress().getHostAddress();
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // ignore errors here...
+                }
+            }
+        }
+    }
+
+    /**
+     * Describe the network interfaces and their addresses.
+     * 
+     * @return A description of the network interfaces that changes when the
+     *         network configuration changes, or <code>null</code> if we could
+     *         not list the interfaces.
+     */
+    private static String describeInterfaces() {
+        try {
+            final Enumeration<NetworkInterface> networkInterfaces = NetworkInterface
+                    .getNetworkInterfaces();
+            if (networkInterfaces == null) {
+                return null;
+            }
+
+            final StringBuilder description = new StringBuilder();
+            while (networkInterfaces.hasMoreElements()) {
+                final NetworkInterface networkInterface = networkInterfaces
+                        .nextElement();
+                description.append(networkInterface.getName()).append('=');
+
+                final Enumeration<InetAddress> addresses = networkInterface
+                        .getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    description.append(addresses.nextElement()
+                            .getHostAddress()).append(',');
+                }
+                description.append(';');
+            }
+
+            return description.toString();
+        } catch (SocketException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.javamonitor;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A scrape endpoint that serves the item values and the values of the probe's
+ * own mbeans in the OpenMetrics text format, for pulling the data locally in
+ * addition to pushing it to the collector server.
+ * <p>
+ * The values come from the snapshot that the collector renders when it samples
+ * the items, so a scrape does not touch JMX.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest,
+     *      javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    protected void doGet(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        final JavaMonitorCollector collector = (JavaMonitorCollector) getServletContext()
+                .getAttribute(CollectorServlet.COLLECTOR_ATTRIBUTE);
+        if (collector == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "the Java-monitor collector is not running");
+            return;
+        }
+
+        final byte[] snapshot = collector.getMetrics().getSnapshot();
+        response.setContentType(OpenMetrics.CONTENT_TYPE);
+        response.setContentLength(snapshot.length);
+        response.getOutputStream().write(snapshot);
+    }
+}
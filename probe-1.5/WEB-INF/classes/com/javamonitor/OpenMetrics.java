@@ -0,0 +1,457 @@
+package com.javamonitor;
+
+import static java.util.logging.Logger.getLogger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The item values and the values of our own mbeans, in the OpenMetrics text
+ * format, so that the probe can be scraped locally by Prometheus and friends.
+ * <p>
+ * Scrapes are served from a snapshot of the values as they were when the items
+ * were last sampled for a push. The snapshot is rendered by the first scrape
+ * that needs it, so that a probe that nobody scrapes does not spend anything
+ * on rendering. Later scrapes of the same snapshot cost no more than copying
+ * the rendered bytes. Scrapes never touch JMX: our own mbeans are read when
+ * the snapshot is published, on the sampling thread, and only once the probe
+ * has been scraped.
+ * <p>
+ * Numeric and boolean item values go into the <code>javamonitor_item</code>
+ * gauge family, labelled with the item key, the mbean and the attribute.
+ * String item values go into the <code>javamonitor_item_text</code> info
+ * family, with the value as a label. Our own mbeans each get a gauge family
+ * per numeric attribute and an info family for their string attributes.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class OpenMetrics {
+    private static final Logger log = getLogger(OpenMetrics.class.getName());
+
+    /**
+     * The content type of the OpenMetrics text format.
+     */
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The longest string value that we put into a label. Longer strings, such
+     * as stack traces, are left out.
+     */
+    private static final int MAX_LABEL_LENGTH = 256;
+
+    private static final String EOF = "# EOF\n";
+
+    private static final String PROBE_DOMAIN = "com.javamonitor";
+
+    private final Map<String, Sample> items = new TreeMap<String, Sample>();
+
+    private final Map<Item, ItemCosts.Cost> costs = new HashMap<Item, ItemCosts.Cost>();
+
+    /**
+     * The rendered snapshot, or <code>null</code> if the values changed since
+     * it was rendered.
+     */
+    private volatile byte[] rendered = null;
+
+    /**
+     * Set by the first scrape, after which we read our own mbeans for every
+     * snapshot.
+     */
+    private volatile boolean scraped = false;
+
+    /**
+     * Our own mbeans as they were when the snapshot was published, rendered.
+     */
+    private String probeMBeans = "";
+
+    /**
+     * Record the latest value of an item. We keep the values of static items
+     * around, even though they are read only once per session. Recording a
+     * value for a key that we already know updates it in place.
+     *
+     * @param key
+     *            The key of the item value.
+     * @param item
+     *            The item that the value was read for.
+     * @param objectName
+     *            The actual object name the value was read from, or an empty
+     *            string if that is the item's own object name.
+     * @param value
+     *            The value.
+     */
+    synchronized void item(final String key, final Item item,
+            final String objectName, final Object value) {
+        final String actualObjectName = objectName.length() == 0 ? item
+                .getObjectName() : objectName;
+        final Sample sample = items.get(key);
+        if (sample == null) {
+            items.put(key, new Sample(actualObjectName, item.getAttribute(),
+                    value));
+        } else {
+            sample.objectName = actualObjectName;
+            sample.attribute = item.getAttribute();
+            sample.value = value;
+        }
+    }
+
+    /**
+     * Forget the values of an item that we stopped reading.
+     *
+     * @param id
+     *            The id of the item.
+     */
+    synchronized void forget(final String id) {
+        final Iterator<String> keys = items.keySet().iterator();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (key.equals(id) || key.startsWith(id + ":")) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget all item values, for example because we have a new session.
+     */
+    synchronized void reset() {
+        items.clear();
+    }
+
+    /**
+     * Publish the values recorded so far as the new snapshot for the scrapes
+     * to serve. Once the probe has been scraped, this reads our own mbeans.
+     * 
+     * @param itemCosts
+     *            The cost of reading each item.
+     */
+    void publish(final ItemCosts itemCosts) {
+        String mbeans = null;
+        if (scraped) {
+            final StringBuilder text = new StringBuilder();
+            renderProbeMBeans(text);
+            mbeans = text.toString();
+        }
+
+        synchronized (this) {
+            itemCosts.copyTo(costs);
+            if (mbeans != null) {
+                probeMBeans = mbeans;
+            }
+            rendered = null;
+        }
+    }
+
+    /**
+     * Find the latest snapshot, rendering it if needed.
+     *
+     * @return The latest snapshot, in the OpenMetrics text format. The caller
+     *         must not change the array.
+     */
+    byte[] getSnapshot() {
+        scraped = true;
+        final byte[] snapshot = rendered;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        final StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            renderItems(text);
+            renderCosts(text, costs);
+            text.append(probeMBeans);
+            text.append(EOF);
+
+            rendered = encode(text.toString());
+            return rendered;
+        }
+    }
+
+    private void renderItems(final StringBuilder text) {
+        boolean first = true;
+        for (final Map.Entry<String, Sample> entry : items.entrySet()) {
+            final String number = toNumber(entry.getValue().value);
+            if (number != null) {
+                if (first) {
+                    family(text, "javamonitor_item", "gauge",
+                            "Item values, as pushed to the Java-monitor collector server.");
+                    first = false;
+                }
+                text.append("javamonitor_item");
+                itemLabels(text, entry.getKey(), entry.getValue());
+                text.append('}').append(' ').append(number).append('\n');
+            }
+        }
+
+        first = true;
+        for (final Map.Entry<String, Sample> entry : items.entrySet()) {
+            final Object value = entry.getValue().value;
+            if (value instanceof String && isLabel((String) value)) {
+                if (first) {
+                    family(text, "javamonitor_item_text", "info",
+                            "Textual item values, as pushed to the Java-monitor collector server.");
+                    first = false;
+                }
+                text.append("javamonitor_item_text_info");
+                itemLabels(text, entry.getKey(), entry.getValue());
+                label(text.append(','), "value", (String) value);
+                text.append("} 1\n");
+            }
+        }
+    }
+
+    private static void renderCosts(final StringBuilder text,
+            final Map<Item, ItemCosts.Cost> costs) {
+        if (costs.isEmpty()) {
+            return;
+        }
+
+        family(text, "javamonitor_item_read_seconds", "counter",
+                "Time spent reading items, by clock.");
+        for (final Map.Entry<Item, ItemCosts.Cost> entry : costs.entrySet()) {
+            final ItemCosts.Cost cost = entry.getValue();
+            costLine(text, "javamonitor_item_read_seconds_total", entry
+                    .getKey(), "clock", "wall", seconds(cost.wallNanos));
+            costLine(text, "javamonitor_item_read_seconds_total", entry
+                    .getKey(), "clock", "cpu", seconds(cost.cpuNanos));
+        }
+
+        family(text, "javamonitor_item_reads", "counter",
+                "Number of times items were read.");
+        for (final Map.Entry<Item, ItemCosts.Cost> entry : costs.entrySet()) {
+            costLine(text, "javamonitor_item_reads_total", entry.getKey(),
+                    null, null, Long.toString(entry.getValue().reads));
+        }
+
+        family(text, "javamonitor_item_interval_seconds", "gauge",
+                "Sampling interval of items, after demotion of slow items.");
+        for (final Map.Entry<Item, ItemCosts.Cost> entry : costs.entrySet()) {
+            costLine(text, "javamonitor_item_interval_seconds", entry
+                    .getKey(), null, null, Integer.toString(entry
+                    .getValue().interval));
+        }
+    }
+
+    private static void costLine(final StringBuilder text, final String name,
+            final Item item, final String label, final String labelValue,
+            final String number) {
+        text.append(name).append('{');
+        label(text, "id", item.getId());
+        if (label != null) {
+            label(text.append(','), label, labelValue);
+        }
+        text.append("} ").append(number).append('\n');
+    }
+
+    private static String seconds(final long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static void itemLabels(final StringBuilder text, final String key,
+            final Sample sample) {
+        text.append('{');
+        label(text, "key", key);
+        label(text.append(','), "mbean", sample.objectName);
+        label(text.append(','), "attribute", sample.attribute);
+    }
+
+    private static void renderProbeMBeans(final StringBuilder text) {
+        final Set<ObjectName> names = new HashSet<ObjectName>();
+        final MBeanServer server;
+        try {
+            // property value wildcards need Java 6, so we list the domain
+            server = JmxHelper.queryNames(PROBE_DOMAIN + ":*", names);
+        } catch (Exception e) {
+            log.log(Level.FINE, "unable to list the probe's mbeans", e);
+            return;
+        }
+
+        for (final ObjectName name : names) {
+            try {
+                renderMBean(text, server, name);
+            } catch (Exception e) {
+                log.log(Level.FINE, "unable to read " + name, e);
+            }
+        }
+    }
+
+    private static void renderMBean(final StringBuilder text,
+            final MBeanServer server, final ObjectName name) throws Exception {
+        final List<String> attributes = new ArrayList<String>();
+        for (final MBeanAttributeInfo info : server.getMBeanInfo(name)
+                .getAttributes()) {
+            if (info.isReadable()) {
+                attributes.add(info.getName());
+            }
+        }
+        final Map<String, Object> values = new TreeMap<String, Object>(
+                JmxHelper.queryAttributes(server, name, attributes
+                        .toArray(new String[attributes.size()])));
+
+        final String type = name.getKeyProperty("type");
+        final String prefix = "javamonitor_"
+                + snakeCase(type == null ? "probe" : type);
+        final StringBuilder info = new StringBuilder();
+        for (final Map.Entry<String, Object> value : values.entrySet()) {
+            final String number = toNumber(value.getValue());
+            if (number != null) {
+                final String family = prefix + "_"
+                        + snakeCase(value.getKey());
+                family(text, family, "gauge", value.getKey() + " of " + name
+                        + ".");
+                text.append(family).append(' ').append(number).append('\n');
+            } else if (value.getValue() instanceof String
+                    && isLabel((String) value.getValue())) {
+                label(info.append(info.length() == 0 ? "" : ","),
+                        snakeCase(value.getKey()), (String) value.getValue());
+            }
+        }
+
+        if (info.length() > 0) {
+            family(text, prefix, "info", "The textual attributes of " + name
+                    + ".");
+            text.append(prefix).append("_info{").append(info).append("} 1\n");
+        }
+    }
+
+    private static void family(final StringBuilder text, final String name,
+            final String type, final String help) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append(
+                '\n');
+        text.append("# HELP ").append(name).append(' ');
+        escape(text, help);
+        text.append('\n');
+    }
+
+    private static void label(final StringBuilder text, final String name,
+            final String value) {
+        text.append(name).append("=\"");
+        escape(text, value);
+        text.append('"');
+    }
+
+    private static void escape(final StringBuilder text, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                text.append("\\\\");
+                break;
+            case '"':
+                text.append("\\\"");
+                break;
+            case '\n':
+                text.append("\\n");
+                break;
+            default:
+                text.append(c);
+            }
+        }
+    }
+
+    private static boolean isLabel(final String value) {
+        return value.length() <= MAX_LABEL_LENGTH && value.indexOf('\n') < 0;
+    }
+
+    /**
+     * Format a value as an OpenMetrics number.
+     *
+     * @param value
+     *            The value to format.
+     * @return The number, or <code>null</code> if the value is not a number
+     *         or a boolean.
+     */
+    private static String toNumber(final Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? "1" : "0";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            final double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d)) {
+                return "NaN";
+            }
+            if (Double.isInfinite(d)) {
+                return d > 0.0 ? "+Inf" : "-Inf";
+            }
+            return value.toString();
+        }
+        if (SampleAggregator.isNumeric(value)) {
+            return value.toString();
+        }
+
+        return null;
+    }
+
+    /**
+     * Turn a camel case JMX name into a lower case metric name, so that
+     * <code>DNSCachePolicy</code> becomes <code>dns_cache_policy</code>.
+     * Characters that are not allowed in metric names become underscores.
+     *
+     * @param name
+     *            The camel case name.
+     * @return The metric name.
+     */
+    private static String snakeCase(final String name) {
+        final StringBuilder snake = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                final boolean afterLower = i > 0
+                        && !Character.isUpperCase(name.charAt(i - 1));
+                final boolean beforeLower = i > 0 && i + 1 < name.length()
+                        && Character.isLowerCase(name.charAt(i + 1));
+                if (snake.length() > 0 && (afterLower || beforeLower)
+                        && snake.charAt(snake.length() - 1) != '_') {
+                    snake.append('_');
+                }
+                snake.append(Character.toLowerCase(c));
+            } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                snake.append(c);
+            } else {
+                snake.append('_');
+            }
+        }
+
+        return snake.toString();
+    }
+
+    private static byte[] encode(final String text) {
+        final ByteBuffer buffer = UTF_8.encode(text);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * The latest value of an item.
+     */
+    private static final class Sample {
+        String objectName;
+
+        String attribute;
+
+        Object value;
+
+        Sample(final String objectName, final String attribute,
+                final Object value) {
+            this.objectName = objectName;
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.javamonitor;
+
+import static com.javamonitor.Collector.TWO_MINUTES;
+import static java.util.Collections.emptyMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.javamonitor.mbeans.Probe;
+
+/**
+ * A multi-probe batch: the pushes of a number of probes, sent to the
+ * collector server in a single compressed request. The server answers each
+ * push in the batch as if it had come in on its own.
+ *
+ * @see CompactFormat#BATCH_CONTENT_TYPE
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class PushBatch {
+    private final List<Part> parts = new ArrayList<Part>();
+
+    private Map<String, List<String>> headers = emptyMap();
+
+    /**
+     * Add a push to the batch.
+     *
+     * @param contentType
+     *            The content type of the push.
+     * @param body
+     *            The uncompressed body of the push.
+     */
+    void add(final String contentType, final byte[] body) {
+        parts.add(new Part(0, contentType, body));
+    }
+
+    /**
+     * Find the number of pushes in the batch.
+     *
+     * @return The number of pushes.
+     */
+    int size() {
+        return parts.size();
+    }
+
+    /**
+     * Post the batch to the collector server.
+     *
+     * @param url
+     *            The URL to post to.
+     * @param proxy
+     *            The proxy to post through.
+     * @param keepAlive
+     *            <code>true</code> to leave the connection open for the next
+     *            batch.
+     * @param probe
+     *            The probe mbean to report the bytes we transferred to.
+     * @return The responses to the pushes, in the order they were added.
+     * @throws IOException
+     *             When the batch could not be posted, or when the server did
+     *             not answer with a batch.
+     */
+    List<Part> post(final URL url, final Proxy proxy, final boolean keepAlive,
+            final Probe probe) throws IOException {
+        HttpURLConnection connection = null;
+        Collector.CountingOutputStream sent = null;
+        Collector.CountingInputStream received = null;
+        InputStream in = null;
+        boolean failed = true;
+        try {
+            connection = (HttpURLConnection) url.openConnection(proxy);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TWO_MINUTES);
+            connection.setReadTimeout(TWO_MINUTES);
+            if (!keepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            connection.setRequestProperty(CompactFormat.BATCH_HEADER,
+                    CompactFormat.BATCH);
+            connection.setRequestProperty("Content-Type",
+                    CompactFormat.BATCH_CONTENT_TYPE);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            connection.setChunkedStreamingMode(0);
+
+            sent = new Collector.CountingOutputStream(connection
+                    .getOutputStream());
+            final GZIPOutputStream zipped = new GZIPOutputStream(sent);
+            final OutputStream out = new BufferedOutputStream(zipped);
+            write(out, parts, false);
+            out.flush();
+            zipped.finish();
+
+            final int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("collector rejected the batch ("
+                        + status + ")");
+            }
+            headers = connection.getHeaderFields();
+            final String contentType = connection.getContentType();
+            if (contentType == null
+                    || !contentType.startsWith(CompactFormat.BATCH_CONTENT_TYPE)) {
+                throw new IOException("collector did not answer the batch "
+                        + "with a batch, but with " + contentType);
+            }
+
+            received = new Collector.CountingInputStream(connection
+                    .getInputStream());
+            in = new BufferedInputStream(Collector.decode(received,
+                    connection.getContentEncoding()));
+            final List<Part> responses = read(in, true, parts.size(),
+                    Integer.MAX_VALUE);
+            if (responses.size() != parts.size()) {
+                throw new IOException("collector answered " + responses.size()
+                        + " of the " + parts.size() + " pushes in the batch");
+            }
+
+            // read to the end, so that the connection can be reused
+            while (in.read() >= 0) {
+                // discard
+            }
+
+            failed = false;
+            return responses;
+        } finally {
+            probe.transferred(sent == null ? 0L : sent.count,
+                    received == null ? 0L : received.count);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+            if (connection != null && (failed || !keepAlive)) {
+                try {
+                    connection.disconnect();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+        }
+    }
+
+    /**
+     * Find a header of the collector server's response to the batch, such as
+     * the headers that tell what formats the server accepts.
+     *
+     * @param name
+     *            The name of the header.
+     * @return The value of the header, or <code>null</code> if the server did
+     *         not send it or the batch was not posted yet.
+     */
+    String getHeaderField(final String name) {
+        for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())
+                    && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the parts of a batch, either the pushes of a request or the
+     * responses to them.
+     *
+     * @param out
+     *            The stream to write to.
+     * @param parts
+     *            The parts to write.
+     * @param responses
+     *            <code>true</code> if the parts are responses, which carry a
+     *            status.
+     * @throws IOException
+     *             When the parts could not be written.
+     */
+    static void write(final OutputStream out, final List<Part> parts,
+            final boolean responses) throws IOException {
+        CompactFormat.writeVarLong(out, parts.size());
+        for (final Part part : parts) {
+            if (responses) {
+                CompactFormat.writeVarLong(out, part.status);
+            }
+            CompactFormat.writeString(out, part.contentType == null ? ""
+                    : part.contentType);
+            CompactFormat.writeBytes(out, part.body);
+        }
+    }
+
+    /**
+     * Read the parts of a batch.
+     *
+     * @param in
+     *            The stream to read from.
+     * @param responses
+     *            <code>true</code> if the parts are responses, which carry a
+     *            status.
+     * @param maxParts
+     *            The largest number of parts we read.
+     * @param maxLength
+     *            The longest part we read.
+     * @return The parts that were read.
+     * @throws IOException
+     *             When the parts could not be read, or when there were too
+     *             many of them or one was too long.
+     */
+    static List<Part> read(final InputStream in, final boolean responses,
+            final int maxParts, final int maxLength) throws IOException {
+        final long count = CompactFormat.readVarLong(in);
+        if (count > maxParts) {
+            throw new TooLargeException("too many parts in the batch: "
+                    + count);
+        }
+
+        final List<Part> parts = new ArrayList<Part>();
+        for (long i = 0; i < count; i++) {
+            final int status = responses ? (int) CompactFormat
+                    .readVarLong(in) : 0;
+            final String contentType = new String(CompactFormat.readBytes(
+                    in, maxLength), "UTF-8");
+            parts.add(new Part(status, contentType.length() == 0 ? null
+                    : contentType, CompactFormat.readBytes(in, maxLength)));
+        }
+
+        return parts;
+    }
+
+    /**
+     * A single push in a batch, or the response to it.
+     */
+    static final class Part {
+        /**
+         * The HTTP status of a response, or 0 for a push.
+         */
+        final int status;
+
+        final String contentType;
+
+        final byte[] body;
+
+        Part(final int status, final String contentType, final byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package com.javamonitor;
+
+import static com.javamonitor.Collector.TWO_MINUTES;
+import static java.lang.System.currentTimeMillis;
+import static java.net.HttpURLConnection.HTTP_BAD_GATEWAY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Logger.getLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import com.javamonitor.mbeans.Probe;
+
+/**
+ * The forwarding end of the relay. Probes on the LAN push to the relay
+ * instead of to the collector server, and the relay forwards their pushes.
+ * Pushes that arrive around the same time go out together, in one compressed
+ * multi-probe batch, if the collector server accepts batches. Pushes that
+ * cannot go into a batch, such as XML pushes or those that come in before we
+ * know that the server accepts batches, are forwarded one by one from a small
+ * pool of threads, so that they do not have to wait for each other.
+ * <p>
+ * The relay does not look inside the pushes. Each probe gets the collector
+ * server's response to its own push, so sessions, item lists and being put on
+ * hold work just as they do without the relay. If a push cannot be forwarded,
+ * the probe gets an error and spools the sample, as it would if it could not
+ * reach the collector server itself.
+ *
+ * @see RelayServlet
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class PushRelay {
+    private static final Logger log = getLogger(PushRelay.class.getName());
+
+    /**
+     * The time we hold on to a push, so that the pushes of other probes may
+     * join it in the same batch.
+     */
+    private static final long LINGER = 1000L;
+
+    /**
+     * The number of pushes we put into a single batch, at most.
+     */
+    static final int MAX_BATCH = 500;
+
+    /**
+     * The number of pushes that may wait to be forwarded. Probes that push
+     * when the queue is full are turned away, and spool their samples.
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * The total size of the pushes that may wait to be forwarded. Probes
+     * that push when there is more than this waiting are turned away too.
+     */
+    private static final long MAX_QUEUED_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * The longest push we forward.
+     */
+    static final int MAX_PUSH = 4 * 1024 * 1024;
+
+    /**
+     * The number of threads that forward pushes one by one.
+     */
+    private static final int FORWARDERS = 16;
+
+    /**
+     * The time a push may wait to be forwarded one by one. Pushes that
+     * waited longer are turned away, rather than forwarded so late that their
+     * probe may have given up on them already.
+     */
+    private static final long MAX_WAIT = 30000L;
+
+    /**
+     * The answer to pushes that could not be forwarded.
+     */
+    private static final PushBatch.Part FAILED = new PushBatch.Part(
+            HTTP_BAD_GATEWAY, null, new byte[0]);
+
+    private final BlockingQueue<Forward> queue = new ArrayBlockingQueue<Forward>(
+            QUEUE_SIZE);
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final Probe probe = new Probe();
+
+    private final URL pushUrl;
+
+    private final Proxy proxy;
+
+    private Thread forwarder = null;
+
+    private ThreadPoolExecutor forwarders = null;
+
+    /**
+     * Set when the collector server told us that it accepts multi-probe
+     * batches.
+     */
+    private volatile boolean batches = false;
+
+    /**
+     * Set when the collector server told us that it accepts gzip compressed
+     * requests.
+     */
+    private volatile boolean gzip = false;
+
+    private volatile String format = null;
+
+    private volatile String replay = null;
+
+    private volatile String summary = null;
+
+    /**
+     * Create a new relay, which forwards to the collector server that the
+     * probe would push to.
+     *
+     * @throws IOException
+     *             When the push URL could not be found.
+     */
+    PushRelay() throws IOException {
+        pushUrl = Collector.findPushUrl();
+        proxy = Collector.findProxy();
+    }
+
+    /**
+     * Start forwarding.
+     */
+    synchronized void start() {
+        if (forwarder != null) {
+            return;
+        }
+
+        forwarders = new ThreadPoolExecutor(FORWARDERS, FORWARDERS, 0L,
+                MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "java-monitor relay forwarder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        forwarder = new Thread(new Forwarder(), "java-monitor relay");
+        forwarder.setDaemon(true);
+        forwarder.start();
+    }
+
+    /**
+     * Stop forwarding. The pushes that were not forwarded yet fail.
+     */
+    synchronized void stop() {
+        if (forwarder == null) {
+            return;
+        }
+
+        forwarder.interrupt();
+        try {
+            forwarder.join(TWO_MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forwarder = null;
+
+        final List<Forward> left = new ArrayList<Forward>();
+        queue.drainTo(left);
+        for (final Runnable task : forwarders.shutdownNow()) {
+            left.add(((ForwardOne) task).forward);
+        }
+        forwarders = null;
+        for (final Forward forward : left) {
+            forward.answer(FAILED);
+        }
+    }
+
+    /**
+     * Queue a push to be forwarded to the collector server.
+     *
+     * @param contentType
+     *            The content type of the push, or <code>null</code> if it had
+     *            none.
+     * @param body
+     *            The uncompressed body of the push.
+     * @param compact
+     *            <code>true</code> if the probe said it reads compact
+     *            responses.
+     * @param replay
+     *            <code>true</code> if the probe said it sends replay batches.
+     * @param summary
+     *            <code>true</code> if the probe said it sends summaries in XML
+     *            requests.
+     * @return The queued push, or <code>null</code> if the queue is full.
+     */
+    Forward forward(final String contentType, final byte[] body,
+            final boolean compact, final boolean replay,
+            final boolean summary) {
+        if (queuedBytes.addAndGet(body.length) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-body.length);
+            return null;
+        }
+
+        final Forward forward = new Forward(contentType, body, compact,
+                replay, summary);
+        if (!queue.offer(forward)) {
+            queuedBytes.addAndGet(-body.length);
+            return null;
+        }
+        return forward;
+    }
+
+    /**
+     * Find the value of the format header that the collector server sent us
+     * last, to pass on to the probes.
+     *
+     * @return The format header, or <code>null</code> if the server sent
+     *         none.
+     */
+    String getFormat() {
+        return format;
+    }
+
+    /**
+     * Find the value of the replay header that the collector server sent us
+     * last, to pass on to the probes.
+     *
+     * @return The replay header, or <code>null</code> if the server sent
+     *         none.
+     */
+    String getReplay() {
+        return replay;
+    }
+
+    /**
+     * Find the value of the summary header that the collector server sent us
+     * last, to pass on to the probes. Only pushes that are not batched ask
+     * for it, because the probes that send XML never get batched.
+     *
+     * @return The summary header, or <code>null</code> if the server sent
+     *         none.
+     */
+    String getSummary() {
+        return summary;
+    }
+
+    /**
+     * Forward a set of pushes. Only pushes from probes that read compact
+     * responses go into a batch, because the collector server cannot see the
+     * headers of the probes in a batch.
+     */
+    private void forward(final List<Forward> forwards) {
+        final List<Forward> batch = new ArrayList<Forward>();
+        for (final Forward forward : forwards) {
+            if (batches && forward.compact) {
+                batch.add(forward);
+            } else {
+                forwardLater(forward);
+            }
+        }
+
+        if (batch.size() == 1) {
+            forwardLater(batch.get(0));
+        } else if (batch.size() > 1) {
+            forwardBatch(batch);
+        }
+    }
+
+    /**
+     * Hand a push to the pool of threads that forward pushes one by one.
+     */
+    private void forwardLater(final Forward forward) {
+        try {
+            forwarders.execute(new ForwardOne(forward));
+        } catch (RejectedExecutionException e) {
+            forward.answer(FAILED);
+        }
+    }
+
+    private void forwardBatch(final List<Forward> batch) {
+        final PushBatch pushBatch = new PushBatch();
+        for (final Forward forward : batch) {
+            pushBatch.add(forward.contentType, forward.body);
+        }
+
+        final List<PushBatch.Part> responses;
+        try {
+            responses = pushBatch.post(pushUrl, proxy, true, probe);
+        } catch (IOException e) {
+            // forward one by one until the server says it takes batches again
+            batches = false;
+            log.log(FINE, "unable to forward a batch of " + batch.size()
+                    + " pushes", e);
+            for (final Forward forward : batch) {
+                forward.answer(FAILED);
+            }
+            return;
+        }
+
+        learn(pushBatch.getHeaderField(CompactFormat.FORMAT_HEADER), pushBatch
+                .getHeaderField(CompactFormat.REPLAY_HEADER), pushBatch
+                .getHeaderField("Accept-Encoding"), pushBatch
+                .getHeaderField(CompactFormat.BATCH_HEADER));
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).answer(responses.get(i));
+        }
+    }
+
+    private void forwardOne(final Forward forward) {
+        if (currentTimeMillis() - forward.queued > MAX_WAIT) {
+            forward.answer(FAILED);
+            return;
+        }
+
+        HttpURLConnection connection = null;
+        Collector.CountingOutputStream sent = null;
+        Collector.CountingInputStream received = null;
+        InputStream in = null;
+        boolean failed = true;
+        try {
+            connection = (HttpURLConnection) pushUrl.openConnection(proxy);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TWO_MINUTES);
+            connection.setReadTimeout(TWO_MINUTES);
+            if (forward.compact) {
+                connection.setRequestProperty(CompactFormat.FORMAT_HEADER,
+                        CompactFormat.FORMAT);
+            }
+            if (forward.replay) {
+                connection.setRequestProperty(CompactFormat.REPLAY_HEADER,
+                        CompactFormat.REPLAY);
+            }
+            if (forward.summary) {
+                connection.setRequestProperty(CompactFormat.SUMMARY_HEADER,
+                        CompactFormat.SUMMARIES);
+            }
+            connection.setRequestProperty(CompactFormat.BATCH_HEADER,
+                    CompactFormat.BATCH);
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (forward.contentType != null) {
+                connection.setRequestProperty("Content-Type",
+                        forward.contentType);
+            }
+            final boolean sentGzip = gzip;
+            if (sentGzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+            } else {
+                connection.setFixedLengthStreamingMode(forward.body.length);
+            }
+
+            sent = new Collector.CountingOutputStream(connection
+                    .getOutputStream());
+            if (sentGzip) {
+                final GZIPOutputStream zipped = new GZIPOutputStream(sent);
+                zipped.write(forward.body);
+                zipped.finish();
+            } else {
+                sent.write(forward.body);
+            }
+            sent.flush();
+
+            final int status = connection.getResponseCode();
+            learn(connection.getHeaderField(CompactFormat.FORMAT_HEADER),
+                    connection.getHeaderField(CompactFormat.REPLAY_HEADER),
+                    connection.getHeaderField("Accept-Encoding"), connection
+                            .getHeaderField(CompactFormat.BATCH_HEADER));
+            if (forward.summary) {
+                summary = connection
+                        .getHeaderField(CompactFormat.SUMMARY_HEADER);
+            }
+
+            final InputStream raw = status < 400 ? connection.getInputStream()
+                    : connection.getErrorStream();
+            final byte[] body;
+            if (raw == null) {
+                body = new byte[0];
+            } else {
+                received = new Collector.CountingInputStream(raw);
+                in = Collector.decode(received, connection
+                        .getContentEncoding());
+                body = readFully(in, Integer.MAX_VALUE);
+            }
+
+            forward.answer(new PushBatch.Part(status, connection
+                    .getContentType(), body));
+            failed = false;
+        } catch (IOException e) {
+            log.log(FINE, "unable to forward a push", e);
+            forward.answer(FAILED);
+        } finally {
+            probe.transferred(sent == null ? 0L : sent.count,
+                    received == null ? 0L : received.count);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+            if (connection != null && failed) {
+                try {
+                    connection.disconnect();
+                } catch (Exception e) {
+                    // ignore...
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember what the collector server told us it accepts.
+     */
+    private void learn(final String format, final String replay,
+            final String acceptEncoding, final String batch) {
+        this.format = format;
+        this.replay = replay;
+        gzip = Collector.acceptsGzip(acceptEncoding);
+        batches = CompactFormat.BATCH.equals(batch);
+    }
+
+    /**
+     * Read a stream to its end.
+     *
+     * @param in
+     *            The stream to read.
+     * @param maxLength
+     *            The most bytes we read.
+     * @return The bytes that were read.
+     * @throws IOException
+     *             When the stream could not be read, or when it was longer
+     *             than the maximum length.
+     */
+    static byte[] readFully(final InputStream in, final int maxLength)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            if (read > maxLength - bytes.size()) {
+                throw new TooLargeException("more than " + maxLength
+                        + " bytes");
+            }
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The task that forwards a single push, in the pool of forwarding
+     * threads.
+     */
+    private final class ForwardOne implements Runnable {
+        final Forward forward;
+
+        ForwardOne(final Forward forward) {
+            this.forward = forward;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            forwardOne(forward);
+        }
+    }
+
+    /**
+     * The forwarding thread. It waits for a push, gives other probes a moment
+     * to push too if the collector server accepts batches, and forwards all
+     * pushes that are waiting by then.
+     */
+    private final class Forwarder implements Runnable {
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            final List<Forward> forwards = new ArrayList<Forward>();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final Forward first = queue.take();
+                    forwards.add(first);
+                    if (batches) {
+                        final long linger = first.queued + LINGER
+                                - currentTimeMillis();
+                        if (linger > 0L) {
+                            Thread.sleep(linger);
+                        }
+                        queue.drainTo(forwards, MAX_BATCH - 1);
+                    }
+
+                    forward(forwards);
+                    forwards.clear();
+                }
+            } catch (InterruptedException e) {
+                // we were stopped
+            } finally {
+                for (final Forward forward : forwards) {
+                    forward.answer(FAILED);
+                }
+            }
+        }
+    }
+
+    /**
+     * A push from a probe, waiting for the collector server's response.
+     */
+    final class Forward {
+        final String contentType;
+
+        final byte[] body;
+
+        final boolean compact;
+
+        final boolean replay;
+
+        final boolean summary;
+
+        final long queued = currentTimeMillis();
+
+        private final CountDownLatch answered = new CountDownLatch(1);
+
+        private volatile PushBatch.Part response = null;
+
+        Forward(final String contentType, final byte[] body,
+                final boolean compact, final boolean replay,
+                final boolean summary) {
+            this.contentType = contentType;
+            this.body = body;
+            this.compact = compact;
+            this.replay = replay;
+            this.summary = summary;
+        }
+
+        synchronized void answer(final PushBatch.Part response) {
+            if (this.response == null) {
+                this.response = response;
+                queuedBytes.addAndGet(-body.length);
+                answered.countDown();
+            }
+        }
+
+        /**
+         * Wait for the collector server's response.
+         *
+         * @param timeout
+         *            The time to wait, in milliseconds.
+         * @return The response, or <code>null</code> if none came in time.
+         * @throws InterruptedException
+         *             When we were interrupted while waiting.
+         */
+        PushBatch.Part await(final long timeout) throws InterruptedException {
+            answered.await(timeout, MILLISECONDS);
+            return response;
+        }
+    }
+}
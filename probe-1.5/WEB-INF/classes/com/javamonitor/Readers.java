@@ -0,0 +1,72 @@
+package com.javamonitor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The pool of threads that read the mbeans. A getter may hang, for example
+ * on a connection pool whose database went away. A reader that is stuck in
+ * such a getter is replaced by a fresh one, so that the other mbeans still
+ * get read. The pool shrinks back once the stuck readers come free.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Readers extends ThreadPoolExecutor {
+    /**
+     * The most stuck readers that we replace. Beyond this, reads wait for a
+     * reader to come free.
+     */
+    private static final int MAX_STUCK = 16;
+
+    /**
+     * How long a spare reader waits for work before it goes away, in
+     * milliseconds.
+     */
+    private static final long IDLE = 60L * 1000L;
+
+    private final int readers;
+
+    private int stuck = 0;
+
+    /**
+     * Start a pool of readers.
+     *
+     * @param readers
+     *            The number of readers.
+     */
+    Readers(final int readers) {
+        super(readers, readers + MAX_STUCK, IDLE, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "java-monitor reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.readers = readers;
+    }
+
+    /**
+     * Note that a reader is stuck in a getter, and start one to replace it.
+     */
+    synchronized void stuck() {
+        stuck++;
+        resize();
+    }
+
+    /**
+     * Note that a stuck reader came free again.
+     */
+    synchronized void unstuck() {
+        stuck--;
+        resize();
+    }
+
+    private void resize() {
+        setCorePoolSize(readers + Math.min(Math.max(stuck, 0), MAX_STUCK));
+    }
+}
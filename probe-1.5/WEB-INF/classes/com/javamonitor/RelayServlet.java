@@ -0,0 +1,230 @@
+package com.javamonitor;
+
+import static com.javamonitor.Collector.TWO_MINUTES;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The receiving end of the relay. Probes on the LAN that have their
+ * &quot;javamonitor.url&quot; pointed at this servlet push here, and the
+ * relay forwards their pushes to the collector server, batched together over
+ * a single connection. That saves the datacenter's egress proxy from a
+ * connection per probe per minute.
+ * <p>
+ * The relay is off unless the system property &quot;javamonitor.relay&quot;
+ * is set to <code>true</code>. Both plain pushes from probes and multi-probe
+ * batches from sidecars are accepted.
+ * <p>
+ * Anyone on the LAN can push to the relay, inside the application server that
+ * it runs in. So we read no more than we are willing to hold in memory, and
+ * turn away larger requests as too large.
+ *
+ * @see PushRelay
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class RelayServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Set this system property to <code>true</code> to relay the pushes of
+     * other probes.
+     */
+    private static final String JAVA_MONITOR_RELAY = "javamonitor.relay";
+
+    /**
+     * The largest request we read, after decompression.
+     */
+    private static final int MAX_REQUEST = 16 * 1024 * 1024;
+
+    private transient PushRelay relay = null;
+
+    /**
+     * @see javax.servlet.GenericServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+
+        if (Boolean.getBoolean(JAVA_MONITOR_RELAY)) {
+            try {
+                relay = new PushRelay();
+            } catch (IOException e) {
+                throw new ServletException(
+                        "Unable to start Java-monitor relay: ", e);
+            }
+            relay.start();
+        }
+    }
+
+    /**
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    @Override
+    public void destroy() {
+        if (relay != null) {
+            relay.stop();
+            relay = null;
+        }
+
+        super.destroy();
+    }
+
+    /**
+     * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest,
+     *      javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    protected void doPost(final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
+        final PushRelay relay = this.relay;
+        if (relay == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "the Java-monitor relay is not enabled");
+            return;
+        }
+
+        if (request.getContentLength() > MAX_REQUEST) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        final String contentType = request.getContentType();
+        final boolean batch = contentType != null
+                && contentType.startsWith(CompactFormat.BATCH_CONTENT_TYPE);
+        final boolean compact = CompactFormat.FORMAT.equals(request
+                .getHeader(CompactFormat.FORMAT_HEADER));
+        final boolean replay = CompactFormat.REPLAY.equals(request
+                .getHeader(CompactFormat.REPLAY_HEADER));
+        final boolean summary = CompactFormat.SUMMARIES.equals(request
+                .getHeader(CompactFormat.SUMMARY_HEADER));
+
+        final byte[] body;
+        List<PushBatch.Part> parts = null;
+        try {
+            body = PushRelay.readFully(Collector.decode(request
+                    .getInputStream(), request.getHeader("Content-Encoding")),
+                    batch ? MAX_REQUEST : PushRelay.MAX_PUSH);
+            if (batch) {
+                parts = PushBatch.read(new ByteArrayInputStream(body), false,
+                        PushRelay.MAX_BATCH, PushRelay.MAX_PUSH);
+            }
+        } catch (TooLargeException e) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    e.getMessage());
+            return;
+        }
+
+        try {
+            if (batch) {
+                relayBatch(relay, parts, replay, response);
+            } else {
+                relayPush(relay, contentType, body, compact, replay, summary,
+                        response);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "the Java-monitor relay is stopping");
+        }
+    }
+
+    private void relayPush(final PushRelay relay, final String contentType,
+            final byte[] body, final boolean compact, final boolean replay,
+            final boolean summary, final HttpServletResponse response)
+            throws IOException, InterruptedException {
+        final PushRelay.Forward forward = relay.forward(contentType, body,
+                compact, replay, summary);
+        if (forward == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "the Java-monitor relay is too busy");
+            return;
+        }
+
+        final PushBatch.Part answer = forward.await(TWO_MINUTES);
+        if (answer == null) {
+            response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                    "the collector server did not answer in time");
+            return;
+        }
+
+        writeHeaders(relay, response);
+        response.setStatus(answer.status);
+        if (answer.contentType != null) {
+            response.setContentType(answer.contentType);
+        }
+        response.setContentLength(answer.body.length);
+        response.getOutputStream().write(answer.body);
+    }
+
+    /**
+     * Relay a sidecar's batch. Its pushes are forwarded just like those of
+     * other probes, possibly in a different batch, and the answers go back to
+     * the sidecar as a batch of its own.
+     */
+    private void relayBatch(final PushRelay relay,
+            final List<PushBatch.Part> parts, final boolean replay,
+            final HttpServletResponse response) throws IOException,
+            InterruptedException {
+        final List<PushRelay.Forward> forwards = new ArrayList<PushRelay.Forward>();
+        for (final PushBatch.Part part : parts) {
+            forwards.add(relay.forward(part.contentType, part.body, true,
+                    replay, false));
+        }
+
+        final long deadline = System.currentTimeMillis() + TWO_MINUTES;
+        final List<PushBatch.Part> answers = new ArrayList<PushBatch.Part>();
+        for (final PushRelay.Forward forward : forwards) {
+            PushBatch.Part answer = null;
+            if (forward != null) {
+                answer = forward.await(Math.max(1L, deadline
+                        - System.currentTimeMillis()));
+            }
+            if (answer == null) {
+                answer = new PushBatch.Part(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, null,
+                        new byte[0]);
+            }
+            answers.add(answer);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PushBatch.write(bytes, answers, true);
+
+        writeHeaders(relay, response);
+        response.setContentType(CompactFormat.BATCH_CONTENT_TYPE);
+        response.setContentLength(bytes.size());
+        bytes.writeTo(response.getOutputStream());
+    }
+
+    /**
+     * Tell the probe what it may send us. The formats are those that the
+     * collector server accepts, because we pass the pushes on as they are.
+     * Compression and batches we deal with ourselves.
+     */
+    private void writeHeaders(final PushRelay relay,
+            final HttpServletResponse response) {
+        final String format = relay.getFormat();
+        if (format != null) {
+            response.setHeader(CompactFormat.FORMAT_HEADER, format);
+        }
+        final String replay = relay.getReplay();
+        if (replay != null) {
+            response.setHeader(CompactFormat.REPLAY_HEADER, replay);
+        }
+        final String summary = relay.getSummary();
+        if (summary != null) {
+            response.setHeader(CompactFormat.SUMMARY_HEADER, summary);
+        }
+        response.setHeader(CompactFormat.BATCH_HEADER, CompactFormat.BATCH);
+        response.setHeader("Accept-Encoding", "gzip");
+    }
+}
@@ -0,0 +1,187 @@
+package com.javamonitor;
+
+import static com.javamonitor.JmxHelper.delegateObjectName;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.javamonitor.agent.Attach;
+
+/**
+ * Another JVM on this machine, that we read the mbeans of over its local JMX
+ * connector. The connection is opened once and kept for as long as the JVM
+ * lives, so that reading its mbeans does not cost a connection setup.
+ * <p>
+ * Just like <code>JmxHelper</code> does for the mbeans in our own JVM, we
+ * listen to the mbean registrations in the other JVM, so that item plans go
+ * stale only when its mbeans change.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class RemoteJvm {
+    private final String pid;
+
+    private final String displayName;
+
+    private final JMXConnector connector;
+
+    private final MBeanServerConnection connection;
+
+    private final AtomicLong registrations = new AtomicLong();
+
+    private volatile boolean broken = false;
+
+    private final NotificationListener registrationListener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                registrations.incrementAndGet();
+            }
+        }
+    };
+
+    private final NotificationListener connectionListener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            final String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type)
+                    || JMXConnectionNotification.CLOSED.equals(type)) {
+                broken = true;
+            } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+                // we may have missed registrations
+                registrations.incrementAndGet();
+            }
+        }
+    };
+
+    private RemoteJvm(final String pid, final String displayName,
+            final JMXConnector connector) throws Exception {
+        this.pid = pid;
+        this.displayName = displayName;
+        this.connector = connector;
+
+        connector.addConnectionNotificationListener(connectionListener, null,
+                null);
+        connection = connector.getMBeanServerConnection();
+        connection.addNotificationListener(new ObjectName(delegateObjectName),
+                registrationListener, null, null);
+    }
+
+    /**
+     * Attach to a JVM on this machine and connect to its local JMX connector.
+     *
+     * @param pid
+     *            The process ID of the JVM.
+     * @param displayName
+     *            The name the JVM goes by, usually its main class and
+     *            arguments.
+     * @return The connected JVM.
+     * @throws Exception
+     *             When we could not attach or connect.
+     */
+    static RemoteJvm connect(final String pid, final String displayName)
+            throws Exception {
+        final String address;
+        final Attach vm = Attach.attach(pid);
+        try {
+            address = vm.localConnectorAddress();
+        } finally {
+            vm.detach();
+        }
+
+        final JMXConnector connector = JMXConnectorFactory
+                .connect(new JMXServiceURL(address));
+        try {
+            return new RemoteJvm(pid, displayName, connector);
+        } catch (Exception e) {
+            connector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Find the process ID of the JVM.
+     *
+     * @return The process ID.
+     */
+    String getPid() {
+        return pid;
+    }
+
+    /**
+     * Find the name that the JVM goes by.
+     *
+     * @return The display name of the JVM.
+     */
+    String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Find the connection to the JVM's mbean server.
+     *
+     * @return The connection.
+     */
+    MBeanServerConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Tell if the connection to the JVM failed or was closed, usually
+     * because the JVM exited.
+     *
+     * @return <code>true</code> if the connection can no longer be used.
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Find the number of mbean registration changes we have seen so far in
+     * the JVM.
+     *
+     * @return The number of mbean registrations changes so far.
+     * @see JmxHelper#getRegistrationCount()
+     */
+    long getRegistrationCount() {
+        return registrations.get();
+    }
+
+    /**
+     * Find a list of object names in the JVM.
+     *
+     * @param query
+     *            The wildcarded object name to list.
+     * @param names
+     *            The set to add the matching object names to.
+     * @throws Exception
+     *             When the query could not be parsed or the JVM could not be
+     *             asked.
+     */
+    void queryNames(final String query, final Set<ObjectName> names)
+            throws Exception {
+        names.addAll(connection.queryNames(new ObjectName(query), null));
+    }
+
+    /**
+     * Close the connection to the JVM.
+     */
+    void close() {
+        try {
+            connector.close();
+        } catch (IOException e) {
+            // ignore, we are done with it
+        }
+    }
+}
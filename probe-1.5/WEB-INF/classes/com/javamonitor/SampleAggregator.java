@@ -0,0 +1,145 @@
+package com.javamonitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running aggregates of the numeric item values that we sample between
+ * pushes. Sampling more often than we push lets us see the spikes that happen
+ * between pushes, without sending more data. For each key we keep the number
+ * of samples, the lowest and highest value and the sum, in plain arrays so
+ * that taking a sample does not create garbage.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SampleAggregator {
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    private int[] counts = new int[16];
+
+    private double[] mins = new double[16];
+
+    private double[] maxs = new double[16];
+
+    private double[] sums = new double[16];
+
+    /**
+     * Test if a value is a number we can aggregate.
+     * 
+     * @param value
+     *            The value to test.
+     * @return <code>true</code> if the value is a number.
+     */
+    static boolean isNumeric(final Object value) {
+        return value instanceof Byte || value instanceof Short
+                || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Double;
+    }
+
+    /**
+     * Add a sample.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param value
+     *            The sampled value.
+     */
+    void add(final String key, final double value) {
+        final int slot = slot(key);
+        if (counts[slot] == 0) {
+            mins[slot] = value;
+            maxs[slot] = value;
+            sums[slot] = value;
+        } else {
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            sums[slot] += value;
+        }
+        counts[slot]++;
+    }
+
+    /**
+     * Test if we have samples for a key.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @return <code>true</code> if the key was sampled since the last push.
+     */
+    boolean contains(final String key) {
+        final Integer slot = slots.get(key);
+        return slot != null && counts[slot.intValue()] > 0;
+    }
+
+    /**
+     * Write the summary of the samples for a key, if there is more than one
+     * sample.
+     * 
+     * @param out
+     *            The writer to write the summary to.
+     * @param key
+     *            The key of the item value.
+     * @throws IOException
+     *             When the summary could not be written.
+     */
+    void writeSummary(final SampleWriter out, final String key)
+            throws IOException {
+        final Integer slot = slots.get(key);
+        if (slot == null) {
+            return;
+        }
+
+        final int i = slot.intValue();
+        if (counts[i] > 1) {
+            out.summary(key, counts[i], mins[i], maxs[i], sums[i] / counts[i]);
+        }
+    }
+
+    /**
+     * Start a new push interval. We keep the keys, since they tend to come
+     * back in the next interval.
+     */
+    void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * Forget all keys, for example because we have a new session.
+     */
+    void reset() {
+        slots.clear();
+        clear();
+    }
+
+    private int slot(final String key) {
+        final Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot.intValue();
+        }
+
+        final int newSlot = slots.size();
+        if (newSlot == counts.length) {
+            counts = grow(counts);
+            mins = grow(mins);
+            maxs = grow(maxs);
+            sums = grow(sums);
+        }
+        slots.put(key, newSlot);
+
+        return newSlot;
+    }
+
+    private static int[] grow(final int[] array) {
+        final int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static double[] grow(final double[] array) {
+        final double[] grown = new double[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
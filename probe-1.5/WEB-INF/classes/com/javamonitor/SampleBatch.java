@@ -0,0 +1,297 @@
+package com.javamonitor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sample of the item values, as taken by the sampling stage and waiting to
+ * be pushed. The batch records the calls made to it, so that the push stage
+ * can replay them into the writer for the wire format of its choice, long
+ * after the mbeans were read.
+ * <p>
+ * The records are kept in columns of plain arrays, one row per call. Numbers
+ * and booleans are unboxed into the <code>long</code> column as they come in,
+ * with decimals stored as their bit pattern. Keys and object names are the
+ * strings from the item plan, so they are shared and not copied. Batches are
+ * meant to be reused: once a batch has been pushed or spooled,
+ * <code>reset()</code> empties it and keeps the columns. A reused batch does
+ * not create garbage unless it holds more rows than ever before.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SampleBatch implements SampleWriter {
+    private static final byte PROPERTY = 0;
+
+    private static final byte NULL = 1;
+
+    private static final byte INTEGER = 2;
+
+    private static final byte DECIMAL = 3;
+
+    private static final byte BOOLEAN = 4;
+
+    private static final byte TEXT = 5;
+
+    private static final byte SUMMARY = 6;
+
+    private static final byte ERROR = 7;
+
+    private static final int INITIAL_ROWS = 64;
+
+    private long timestamp;
+
+    private boolean replanned;
+
+    private int size = 0;
+
+    private byte[] types = new byte[INITIAL_ROWS];
+
+    private String[] keys = new String[INITIAL_ROWS];
+
+    private String[] objectNames = new String[INITIAL_ROWS];
+
+    /**
+     * Property values, error reports and text values.
+     */
+    private String[] texts = new String[INITIAL_ROWS];
+
+    /**
+     * Whole numbers, booleans as 0 or 1, the bits of decimals and the sample
+     * counts of summaries.
+     */
+    private long[] longs = new long[INITIAL_ROWS];
+
+    /**
+     * The minimum, maximum and average of summaries, three per row.
+     */
+    private double[] stats = new double[INITIAL_ROWS * 3];
+
+    /**
+     * Create a new, empty batch.
+     *
+     * @param timestamp
+     *            The time the sample was taken.
+     * @param replanned
+     *            <code>true</code> if the item plan changed since the
+     *            previous sample.
+     */
+    SampleBatch(final long timestamp, final boolean replanned) {
+        reset(timestamp, replanned);
+    }
+
+    /**
+     * Empty the batch, so that it can be used for a new sample.
+     *
+     * @param timestamp
+     *            The time the new sample was taken.
+     * @param replanned
+     *            <code>true</code> if the item plan changed since the
+     *            previous sample.
+     */
+    void reset(final long timestamp, final boolean replanned) {
+        this.timestamp = timestamp;
+        this.replanned = replanned;
+
+        // let go of the error reports, which can be large
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Find the time the sample was taken.
+     *
+     * @return The time the sample was taken.
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Find out if the set of item values may be different from the previous
+     * sample, so that the batch cannot be sent as a delta push.
+     *
+     * @return <code>true</code> if the item plan changed since the previous
+     *         sample.
+     */
+    boolean isReplanned() {
+        return replanned;
+    }
+
+    /**
+     * Write the recorded data into a writer. The writer is not closed.
+     *
+     * @param out
+     *            The writer to write the data into.
+     * @throws IOException
+     *             When the data could not be written.
+     */
+    void replay(final SampleWriter out) throws IOException {
+        for (int i = 0; i < size; i++) {
+            switch (types[i]) {
+            case PROPERTY:
+                out.property(keys[i], texts[i]);
+                break;
+            case NULL:
+                out.value(keys[i], (Object) null, objectNames[i]);
+                break;
+            case INTEGER:
+                out.value(keys[i], longs[i], objectNames[i]);
+                break;
+            case DECIMAL:
+                out.value(keys[i], Double.longBitsToDouble(longs[i]),
+                        objectNames[i]);
+                break;
+            case BOOLEAN:
+                out.value(keys[i], longs[i] != 0L, objectNames[i]);
+                break;
+            case TEXT:
+                out.value(keys[i], texts[i], objectNames[i]);
+                break;
+            case SUMMARY:
+                out.summary(keys[i], (int) longs[i], stats[i * 3],
+                        stats[i * 3 + 1], stats[i * 3 + 2]);
+                break;
+            case ERROR:
+                out.error(keys[i], texts[i]);
+                break;
+            default:
+                throw new IllegalStateException("unknown record type "
+                        + types[i]);
+            }
+        }
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#property(java.lang.String,
+     *      java.lang.String)
+     */
+    public void property(final String key, final String value) {
+        final int i = add(PROPERTY, key, null);
+        texts[i] = value;
+    }
+
+    /**
+     * Values that are numbers or booleans are unboxed. Other values are kept
+     * as text, since that is all the wire formats do with them.
+     *
+     * @see com.javamonitor.SampleWriter#value(java.lang.String,
+     *      java.lang.Object, java.lang.String)
+     */
+    public void value(final String key, final Object value,
+            final String objectName) {
+        if (value == null) {
+            add(NULL, key, objectName);
+        } else if (value instanceof Byte || value instanceof Short
+                || value instanceof Integer || value instanceof Long) {
+            value(key, ((Number) value).longValue(), objectName);
+        } else if (value instanceof Float) {
+            // widened through its text, so that 0.1f stays 0.1
+            value(key, Double.parseDouble(value.toString()), objectName);
+        } else if (value instanceof Double) {
+            value(key, ((Double) value).doubleValue(), objectName);
+        } else if (value instanceof Boolean) {
+            value(key, ((Boolean) value).booleanValue(), objectName);
+        } else {
+            final int i = add(TEXT, key, objectName);
+            texts[i] = value.toString();
+        }
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, long,
+     *      java.lang.String)
+     */
+    public void value(final String key, final long value,
+            final String objectName) {
+        final int i = add(INTEGER, key, objectName);
+        longs[i] = value;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, double,
+     *      java.lang.String)
+     */
+    public void value(final String key, final double value,
+            final String objectName) {
+        final int i = add(DECIMAL, key, objectName);
+        longs[i] = Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, boolean,
+     *      java.lang.String)
+     */
+    public void value(final String key, final boolean value,
+            final String objectName) {
+        final int i = add(BOOLEAN, key, objectName);
+        longs[i] = value ? 1L : 0L;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#summary(java.lang.String, int, double,
+     *      double, double)
+     */
+    public void summary(final String key, final int count, final double min,
+            final double max, final double avg) {
+        final int i = add(SUMMARY, key, null);
+        longs[i] = count;
+        stats[i * 3] = min;
+        stats[i * 3 + 1] = max;
+        stats[i * 3 + 2] = avg;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#error(java.lang.String,
+     *      java.lang.String)
+     */
+    public void error(final String key, final String error) {
+        final int i = add(ERROR, key, null);
+        texts[i] = error;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#close()
+     */
+    public void close() {
+        // nothing to do
+    }
+
+    private int add(final byte type, final String key, final String objectName) {
+        if (size == types.length) {
+            grow();
+        }
+
+        types[size] = type;
+        keys[size] = key;
+        objectNames[size] = objectName;
+        return size++;
+    }
+
+    private void grow() {
+        final int rows = types.length * 2;
+
+        final byte[] grownTypes = new byte[rows];
+        System.arraycopy(types, 0, grownTypes, 0, size);
+        types = grownTypes;
+
+        final String[] grownKeys = new String[rows];
+        System.arraycopy(keys, 0, grownKeys, 0, size);
+        keys = grownKeys;
+
+        final String[] grownObjectNames = new String[rows];
+        System.arraycopy(objectNames, 0, grownObjectNames, 0, size);
+        objectNames = grownObjectNames;
+
+        final String[] grownTexts = new String[rows];
+        System.arraycopy(texts, 0, grownTexts, 0, size);
+        texts = grownTexts;
+
+        final long[] grownLongs = new long[rows];
+        System.arraycopy(longs, 0, grownLongs, 0, size);
+        longs = grownLongs;
+
+        final double[] grownStats = new double[rows * 3];
+        System.arraycopy(stats, 0, grownStats, 0, size * 3);
+        stats = grownStats;
+    }
+}
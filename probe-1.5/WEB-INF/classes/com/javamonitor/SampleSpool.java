@@ -0,0 +1,416 @@
+package com.javamonitor;
+
+import static com.javamonitor.CompactFormat.writeVarLong;
+import static java.util.logging.Logger.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.logging.Logger;
+
+/**
+ * A bounded spool file for the samples that we could not push, for example
+ * during network maintenance. Once the collector server is reachable again we
+ * replay the spooled samples to it in batches.
+ * <p>
+ * The spool file lives in a spool directory and is memory-mapped. It
+ * starts with a small header that holds the positions of the oldest and the
+ * newest entries. Each entry holds the time the sample was taken, the length of
+ * the sample and the sample itself, as a self-contained compact message.
+ * Entries are only ever appended. Replayed entries are skipped by moving the
+ * head position. We write an entry before we move the tail position over it, so
+ * that a JVM that dies halfway through an append leaves a spool that is still
+ * consistent.
+ * <p>
+ * When the spool is full, we make room by moving the entries to the top of the
+ * file, or by dropping the oldest entries. Entries are moved in place, so a JVM
+ * that dies while it moves them may leave damaged entries behind. When we open
+ * a spool file, we check that its entries add up and start afresh if they
+ * don't. That catches damaged lengths, but not damaged samples.
+ * <p>
+ * The spool directory is private to the account that runs the probe, so that
+ * other users cannot plant a symbolic link where we expect the spool file and
+ * have us write over a file of their choosing. We make the directory
+ * accessible to its owner only. On Unix, a directory that we did not just
+ * create and that we cannot make private, for example on Java 5, is not used.
+ * Neither is a directory or spool file that is a symbolic link or not a plain
+ * file.
+ * <p>
+ * Each spool file is locked by the JVM that uses it. The file name holds the
+ * identity of the probe, so that a probe that is restarted picks up the spool
+ * file it left behind, and not that of another probe. Probes with the same
+ * identity on the same host use a spool file each.
+ * <p>
+ * The spool is shared by the sampling and push stages of the probe, so all
+ * access is synchronized.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SampleSpool {
+    private static final Logger log = getLogger(SampleSpool.class.getName());
+
+    private static final int MAGIC = ('J' << 24) | ('M' << 16) | ('S' << 8)
+            | 1;
+
+    /**
+     * The header holds the magic number, the head position and the tail
+     * position.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    private static final int MAGIC_POSITION = 0;
+
+    private static final int HEAD_POSITION = 4;
+
+    private static final int TAIL_POSITION = 8;
+
+    /**
+     * An entry holds the time of the sample, its length and the sample itself.
+     */
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    /**
+     * The number of spool files we try to lock, before we give up.
+     */
+    private static final int MAX_FILES = 8;
+
+    private final RandomAccessFile file;
+
+    private final FileLock lock;
+
+    private final MappedByteBuffer buffer;
+
+    private int head;
+
+    private int tail;
+
+    /**
+     * The sequence number of the entry at the head of the spool. Each entry
+     * that is dropped moves it up by one.
+     */
+    private long sequence = 0L;
+
+    private boolean closed = false;
+
+    private SampleSpool(final RandomAccessFile file, final FileLock lock,
+            final int capacity) throws IOException {
+        this.file = file;
+        this.lock = lock;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                capacity);
+
+        head = buffer.getInt(HEAD_POSITION);
+        tail = buffer.getInt(TAIL_POSITION);
+        if (buffer.getInt(MAGIC_POSITION) != MAGIC || head < HEADER_SIZE
+                || tail < head || tail > capacity || !entriesAddUp()) {
+            buffer.putInt(MAGIC_POSITION, MAGIC);
+            setPositions(HEADER_SIZE, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Check that the entries between the head and the tail follow each other
+     * and end exactly at the tail.
+     */
+    private boolean entriesAddUp() {
+        int position = head;
+        while (position < tail) {
+            if (tail - position < ENTRY_HEADER_SIZE) {
+                return false;
+            }
+            final int length = buffer.getInt(position + 8);
+            if (length < 0 || length > tail - position - ENTRY_HEADER_SIZE) {
+                return false;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+        }
+
+        return position == tail;
+    }
+
+    /**
+     * Open a spool file that no other probe is using.
+     *
+     * @param directory
+     *            The private directory to keep the spool file in. It is
+     *            created if it does not exist.
+     * @param name
+     *            The name that the spool file is based on.
+     * @param capacity
+     *            The size of the spool file, in bytes.
+     * @return The spool, or <code>null</code> if we could not find a spool
+     *         file that was not in use.
+     * @throws IOException
+     *             When the spool file could not be opened, or when the spool
+     *             directory is not private.
+     */
+    static SampleSpool open(final File directory, final String name,
+            final int capacity) throws IOException {
+        final File home = privateDirectory(directory);
+        for (int i = 0; i < MAX_FILES; i++) {
+            final File spoolFile = new File(home, "javamonitor-" + name
+                    + (i == 0 ? "" : "-" + i) + ".spool");
+            if (spoolFile.exists()
+                    && (!spoolFile.isFile() || !spoolFile.getCanonicalFile()
+                            .equals(spoolFile))) {
+                throw new IOException(spoolFile + " is not a plain file");
+            }
+            final RandomAccessFile file = new RandomAccessFile(spoolFile, "rw");
+            boolean opened = false;
+            try {
+                FileLock lock = null;
+                try {
+                    lock = file.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // in use by another collector in this JVM, the sidecar
+                }
+                if (lock != null) {
+                    final SampleSpool spool = new SampleSpool(file, lock,
+                            capacity);
+                    opened = true;
+                    log.fine("spooling samples to " + spoolFile);
+                    return spool;
+                }
+            } finally {
+                if (!opened) {
+                    file.close();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Make sure that the spool directory exists and that only we can use it.
+     *
+     * @param directory
+     *            The spool directory.
+     * @return The canonical spool directory.
+     * @throws IOException
+     *             When the directory is a symbolic link, or when it is not
+     *             private.
+     */
+    private static File privateDirectory(final File directory)
+            throws IOException {
+        final File parent = directory.getAbsoluteFile().getParentFile();
+        final File home = new File(parent == null ? null : parent
+                .getCanonicalFile(), directory.getName());
+        final boolean created = home.mkdirs();
+        if (!home.isDirectory() || !home.getCanonicalFile().equals(home)) {
+            throw new IOException(directory + " is not a plain directory");
+        }
+
+        // Windows has no such access bits, its temporary directory is per user
+        if (File.separatorChar == '/' && !ownerOnly(home) && !created) {
+            throw new IOException("unable to make " + directory
+                    + " private to its owner");
+        }
+
+        return home;
+    }
+
+    /**
+     * Take all access to a file away from everyone but its owner. We can only
+     * change the access of a file that we own, so this also tells us that the
+     * file is ours. The methods for this arrived in Java 6, so we look them up
+     * when we need them.
+     *
+     * @param file
+     *            The file to make private.
+     * @return <code>true</code> if the file is now private, or
+     *         <code>false</code> if it is not ours or if we cannot tell.
+     */
+    private static boolean ownerOnly(final File file) {
+        try {
+            for (final String access : new String[] { "setReadable",
+                    "setWritable", "setExecutable" }) {
+                final Method method = File.class.getMethod(access,
+                        boolean.class, boolean.class);
+                if (!(Boolean) method.invoke(file, false, false)
+                        || !(Boolean) method.invoke(file, true, true)) {
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * See if there are spooled samples.
+     *
+     * @return <code>true</code> if there are no spooled samples.
+     */
+    synchronized boolean isEmpty() {
+        return closed || head == tail;
+    }
+
+    /**
+     * Add a sample to the spool, dropping the oldest samples if the spool is
+     * full.
+     *
+     * @param timestamp
+     *            The time the sample was taken.
+     * @param sample
+     *            The sample, as a self-contained compact message.
+     * @return <code>false</code> if the sample did not fit in the spool at
+     *         all.
+     */
+    synchronized boolean append(final long timestamp, final byte[] sample) {
+        final int size = ENTRY_HEADER_SIZE + sample.length;
+        if (closed || size > buffer.capacity() - HEADER_SIZE) {
+            return false;
+        }
+
+        while (tail + size > buffer.capacity()) {
+            if (head > HEADER_SIZE) {
+                compact();
+            } else {
+                drop(1);
+            }
+        }
+
+        buffer.putLong(tail, timestamp);
+        buffer.putInt(tail + 8, sample.length);
+        buffer.position(tail + ENTRY_HEADER_SIZE);
+        buffer.put(sample);
+        setPositions(head, tail + size);
+        return true;
+    }
+
+    /**
+     * Write the oldest spooled samples to a replay batch. Each sample is
+     * written as the time it was taken and its length, both as variable length
+     * integers, followed by the sample itself. The samples stay in the spool
+     * until they are dropped.
+     *
+     * @param out
+     *            The stream to write the batch to.
+     * @param maxBytes
+     *            The maximum number of sample bytes to put in the batch. We
+     *            always write at least one sample.
+     * @return The sequence number just past the last sample in the batch, to
+     *         drop the batch with.
+     * @throws IOException
+     *             When the batch could not be written.
+     * @see #dropUntil(long)
+     */
+    synchronized long writeBatch(final OutputStream out, final int maxBytes)
+            throws IOException {
+        int count = 0;
+        int bytes = 0;
+        for (int position = closed ? tail : head; position < tail;) {
+            final long timestamp = buffer.getLong(position);
+            final int length = buffer.getInt(position + 8);
+            if (count > 0 && bytes + length > maxBytes) {
+                break;
+            }
+
+            final byte[] sample = new byte[length];
+            buffer.position(position + ENTRY_HEADER_SIZE);
+            buffer.get(sample);
+            writeVarLong(out, timestamp);
+            writeVarLong(out, length);
+            out.write(sample);
+
+            position += ENTRY_HEADER_SIZE + length;
+            bytes += length;
+            count++;
+        }
+
+        return sequence + count;
+    }
+
+    /**
+     * Drop the samples of a replay batch from the spool. The spool may have
+     * dropped some or all of them already to make room for new samples, so we
+     * go by sequence number rather than by count.
+     *
+     * @param end
+     *            The sequence number just past the last sample in the batch,
+     *            as returned by {@link #writeBatch(OutputStream, int)}.
+     * @return The number of samples that were dropped.
+     */
+    synchronized int dropUntil(final long end) {
+        if (closed || end <= sequence) {
+            return 0;
+        }
+
+        final int count = (int) (end - sequence);
+        drop(count);
+        return count;
+    }
+
+    /**
+     * Drop the oldest samples from the spool.
+     *
+     * @param count
+     *            The number of samples to drop.
+     */
+    private void drop(final int count) {
+        int position = head;
+        for (int i = 0; i < count && position < tail; i++) {
+            position += ENTRY_HEADER_SIZE + buffer.getInt(position + 8);
+            sequence++;
+        }
+
+        if (position >= tail) {
+            // start from the top, so that we rarely need to compact
+            setPositions(HEADER_SIZE, HEADER_SIZE);
+        } else {
+            setPositions(position, tail);
+        }
+    }
+
+    /**
+     * Release the spool file. We leave unsent samples in the file, for the
+     * next time the probe starts.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        buffer.force();
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // ignore...
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // ignore...
+        }
+    }
+
+    /**
+     * Move the spooled samples to the top of the spool file, to make room at
+     * the end.
+     */
+    private void compact() {
+        final byte[] entries = new byte[tail - head];
+        buffer.position(head);
+        buffer.get(entries);
+        buffer.position(HEADER_SIZE);
+        buffer.put(entries);
+        setPositions(HEADER_SIZE, HEADER_SIZE + entries.length);
+    }
+
+    private void setPositions(final int head, final int tail) {
+        this.head = head;
+        this.tail = tail;
+        buffer.putInt(HEAD_POSITION, head);
+        buffer.putInt(TAIL_POSITION, tail);
+    }
+}
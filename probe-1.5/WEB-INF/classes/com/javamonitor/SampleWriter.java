@@ -0,0 +1,129 @@
+package com.javamonitor;
+
+import java.io.IOException;
+
+/**
+ * The receiving end of the data that we push to the collector server. The
+ * collector writes the request into one of these as it queries the items, so
+ * that the implementation can stream the data straight to the server in its
+ * own wire format.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+interface SampleWriter {
+    /**
+     * Write a request property, such as the account or the session.
+     * 
+     * @param key
+     *            The name of the property.
+     * @param value
+     *            The value of the property.
+     * @throws IOException
+     *             When the property could not be written.
+     */
+    void property(String key, String value) throws IOException;
+
+    /**
+     * Write the value of an item.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param value
+     *            The value we read, or <code>null</code> if the attribute was
+     *            <code>null</code>.
+     * @param objectName
+     *            The actual object name the value was read from, or an empty
+     *            string if that is the item's own object name.
+     * @throws IOException
+     *             When the value could not be written.
+     */
+    void value(String key, Object value, String objectName)
+            throws IOException;
+
+    /**
+     * Write the value of an item that is a whole number, without boxing it.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param value
+     *            The value we read.
+     * @param objectName
+     *            The actual object name the value was read from, or an empty
+     *            string if that is the item's own object name.
+     * @throws IOException
+     *             When the value could not be written.
+     */
+    void value(String key, long value, String objectName) throws IOException;
+
+    /**
+     * Write the value of an item that is a decimal number, without boxing it.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param value
+     *            The value we read.
+     * @param objectName
+     *            The actual object name the value was read from, or an empty
+     *            string if that is the item's own object name.
+     * @throws IOException
+     *             When the value could not be written.
+     */
+    void value(String key, double value, String objectName) throws IOException;
+
+    /**
+     * Write the value of an item that is a boolean, without boxing it.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param value
+     *            The value we read.
+     * @param objectName
+     *            The actual object name the value was read from, or an empty
+     *            string if that is the item's own object name.
+     * @throws IOException
+     *             When the value could not be written.
+     */
+    void value(String key, boolean value, String objectName)
+            throws IOException;
+
+    /**
+     * Write the summary of the samples of an item value that were taken since
+     * the last push. The summary comes right before the value itself, which
+     * is the last sample.
+     * 
+     * @param key
+     *            The key of the item value.
+     * @param count
+     *            The number of samples taken, including the last one.
+     * @param min
+     *            The lowest sampled value.
+     * @param max
+     *            The highest sampled value.
+     * @param avg
+     *            The average sampled value.
+     * @throws IOException
+     *             When the summary could not be written.
+     */
+    void summary(String key, int count, double min, double max, double avg)
+            throws IOException;
+
+    /**
+     * Write the reason why an item could not be read.
+     * 
+     * @param key
+     *            The key of the item.
+     * @param error
+     *            The exception and stack trace, in human readable form.
+     * @throws IOException
+     *             When the error could not be written.
+     */
+    void error(String key, String error) throws IOException;
+
+    /**
+     * Finish the request. The writer may not be used afterwards.
+     * 
+     * @throws IOException
+     *             When the request could not be finished.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,276 @@
+package com.javamonitor;
+
+import static java.util.logging.Logger.getLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * An exporter that sends the sampled numeric item values as StatsD gauges to
+ * a local agent, over UDP. StatsD lines are plain text, so any StatsD or
+ * DogStatsD agent accepts them.
+ * <p>
+ * The metric name of an item is made from its mbean and attribute, so that
+ * <code>HeapMemoryUsage.used</code> on <code>java.lang:type=Memory</code>
+ * becomes <code>javamonitor.java.lang.Memory.HeapMemoryUsage.used</code>.
+ * <p>
+ * We pack as many lines as fit into a single datagram, sized so that it does
+ * not get fragmented on an Ethernet network. The datagrams are sent from a
+ * single non-blocking channel with a direct buffer. Sending is fire and
+ * forget: if the agent is not there or cannot keep up, the values are lost.
+ * <p>
+ * StatsD reads a gauge value with a leading sign as a change to the gauge,
+ * rather than as its value. We set negative gauges by sending a zero first.
+ * Values that are not a number or infinite are not sent at all.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class StatsdExporter {
+    private static final Logger log = getLogger(StatsdExporter.class
+            .getName());
+
+    /**
+     * The largest datagram we send. This fits in the 1500 byte Ethernet MTU,
+     * with room to spare for the IP and UDP headers and any tunnelling.
+     */
+    private static final int MAX_DATAGRAM = 1432;
+
+    private static final int DEFAULT_PORT = 8125;
+
+    private final DatagramChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private final String prefix;
+
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    /**
+     * Create a new exporter.
+     *
+     * @param agent
+     *            The host and port of the StatsD agent, as
+     *            <code>host:port</code> or just <code>host</code> for the
+     *            default port.
+     * @param prefix
+     *            The prefix to put in front of every metric name.
+     * @throws IOException
+     *             When the channel could not be opened.
+     */
+    StatsdExporter(final String agent, final String prefix)
+            throws IOException {
+        this.prefix = prefix;
+
+        final int colon = agent.lastIndexOf(':');
+        final InetSocketAddress address;
+        if (colon < 0) {
+            address = new InetSocketAddress(agent, DEFAULT_PORT);
+        } else {
+            address = new InetSocketAddress(agent.substring(0, colon), Integer
+                    .parseInt(agent.substring(colon + 1)));
+        }
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        log.fine("sending StatsD gauges to " + address);
+    }
+
+    /**
+     * Send an item value as a gauge, if it is a finite number or a boolean.
+     * The gauge may be held back until the datagram is full or until we flush.
+     *
+     * @param read
+     *            The read the value came from.
+     * @param value
+     *            The value.
+     */
+    void gauge(final ItemPlan.Read read, final Object value) {
+        if (value instanceof Boolean) {
+            gauge(read, ((Boolean) value).booleanValue() ? 1L : 0L, null);
+        } else if (value instanceof Float || value instanceof Double) {
+            final double decimal = ((Number) value).doubleValue();
+            if (!Double.isNaN(decimal) && !Double.isInfinite(decimal)) {
+                gauge(read, decimal < 0.0 ? -1L : 0L, value.toString());
+            }
+        } else if (SampleAggregator.isNumeric(value)) {
+            // whole numbers are written digit by digit, without a string
+            gauge(read, ((Number) value).longValue(), null);
+        }
+    }
+
+    /**
+     * Send a gauge, either a whole number or a decimal. For a decimal, only
+     * the sign of the whole number counts.
+     */
+    private void gauge(final ItemPlan.Read read, final long whole,
+            final String decimal) {
+        final String name = name(read);
+        int length = name.length()
+                + (decimal == null ? digits(whole) : decimal.length()) + 4;
+        if (whole < 0L) {
+            // room for the zero that we send first
+            length += name.length() + 5;
+        }
+        if (length > buffer.capacity()) {
+            return;
+        }
+        if (length > buffer.remaining()) {
+            flush();
+        }
+
+        if (whole < 0L) {
+            line(name, 0L, null);
+        }
+        line(name, whole, decimal);
+    }
+
+    private void line(final String name, final long whole,
+            final String decimal) {
+        if (buffer.position() > 0) {
+            buffer.put((byte) '\n');
+        }
+        put(name);
+        buffer.put((byte) ':');
+        if (decimal == null) {
+            put(whole);
+        } else {
+            put(decimal);
+        }
+        buffer.put((byte) '|').put((byte) 'g');
+    }
+
+    /**
+     * Send the gauges that were held back.
+     */
+    void flush() {
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        buffer.flip();
+        try {
+            channel.write(buffer);
+        } catch (IOException e) {
+            // fire and forget, for example when no agent is listening
+            log.log(Level.FINEST, "unable to send StatsD datagram", e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Forget the metric names, for example because we have a new session and
+     * the item keys mean something else.
+     */
+    void reset() {
+        names.clear();
+    }
+
+    /**
+     * Close the channel.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore...
+        }
+    }
+
+    /**
+     * Write a metric name or value. Both consist of ASCII characters only.
+     */
+    private void put(final String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            buffer.put((byte) ascii.charAt(i));
+        }
+    }
+
+    private void put(final long whole) {
+        if (whole == Long.MIN_VALUE) {
+            // cannot be negated
+            put(Long.toString(whole));
+            return;
+        }
+
+        long value = whole;
+        if (value < 0L) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+
+        final int end = buffer.position() + digits(value);
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10L));
+            value /= 10L;
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Count the characters it takes to write a whole number, including the
+     * minus sign.
+     */
+    private static int digits(final long whole) {
+        if (whole == Long.MIN_VALUE) {
+            return 20;
+        }
+
+        int digits = whole < 0L ? 2 : 1;
+        for (long value = Math.abs(whole); value >= 10L; value /= 10L) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private String name(final ItemPlan.Read read) {
+        String name = names.get(read.key);
+        if (name == null) {
+            final String objectName = read.actualObjectName.length() == 0 ? read.item
+                    .getObjectName()
+                    : read.actualObjectName;
+            final StringBuilder path = new StringBuilder(prefix);
+            try {
+                final ObjectName parsed = new ObjectName(objectName);
+                path.append(parsed.getDomain());
+                for (final String property : parsed.getKeyPropertyListString()
+                        .split(",")) {
+                    path.append('.').append(
+                            property.substring(property.indexOf('=') + 1));
+                }
+            } catch (Exception e) {
+                path.append(objectName);
+            }
+            path.append('.').append(read.item.getAttribute());
+
+            name = sanitize(path);
+            names.put(read.key, name);
+        }
+
+        return name;
+    }
+
+    /**
+     * Replace the characters that have a meaning in StatsD lines, or that are
+     * not ASCII, by underscores.
+     */
+    private static String sanitize(final StringBuilder name) {
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '_')) {
+                name.setCharAt(i, '_');
+            }
+        }
+
+        return name.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package com.javamonitor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel for things that recur on their own interval. The
+ * wheel has a fixed number of slots, one per tick. Each entry sits in the slot
+ * of the tick it is due in, with a count of the full turns of the wheel it
+ * still has to wait. Advancing the wheel by one tick only looks at a single
+ * slot, no matter how many entries there are. Entries that are due in the
+ * same tick are handed out together. Advancing the wheel does not create
+ * garbage, because the entries and the lists are reused.
+ * <p>
+ * Timing wheels are not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ * @param <T>
+ *            The type of things to schedule.
+ */
+final class TimingWheel<T> {
+    private final List<List<Entry<T>>> slots;
+
+    private final List<Entry<T>> dueEntries = new ArrayList<Entry<T>>();
+
+    private final List<T> due = new ArrayList<T>();
+
+    private int cursor = 0;
+
+    /**
+     * Create a new, empty timing wheel.
+     *
+     * @param size
+     *            The number of slots on the wheel.
+     */
+    TimingWheel(final int size) {
+        slots = new ArrayList<List<Entry<T>>>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+    }
+
+    /**
+     * Schedule something to recur.
+     *
+     * @param value
+     *            The thing to schedule.
+     * @param interval
+     *            The number of ticks between occurrences. It is first due
+     *            this many ticks from now.
+     */
+    void schedule(final T value, final int interval) {
+        add(new Entry<T>(value, Math.max(1, interval)));
+    }
+
+    /**
+     * Stop something from recurring.
+     *
+     * @param value
+     *            The thing to stop.
+     */
+    void cancel(final T value) {
+        for (final List<Entry<T>> slot : slots) {
+            final Iterator<Entry<T>> entries = slot.iterator();
+            while (entries.hasNext()) {
+                if (entries.next().value.equals(value)) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove everything from the wheel.
+     */
+    void clear() {
+        for (final List<Entry<T>> slot : slots) {
+            slot.clear();
+        }
+    }
+
+    /**
+     * Advance the wheel by one tick.
+     *
+     * @return The things that are due in this tick. They are scheduled again
+     *         for their next occurrence. The list is reused by the next
+     *         advance.
+     */
+    List<T> advance() {
+        cursor = (cursor + 1) % slots.size();
+        due.clear();
+
+        final List<Entry<T>> slot = slots.get(cursor);
+        if (slot.isEmpty()) {
+            return due;
+        }
+
+        // compact the slot in place, keeping the entries that wait
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            final Entry<T> entry = slot.get(i);
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                slot.set(kept++, entry);
+            } else {
+                dueEntries.add(entry);
+            }
+        }
+        while (slot.size() > kept) {
+            slot.remove(slot.size() - 1);
+        }
+
+        for (int i = 0; i < dueEntries.size(); i++) {
+            final Entry<T> entry = dueEntries.get(i);
+            due.add(entry.value);
+            add(entry);
+        }
+        dueEntries.clear();
+
+        return due;
+    }
+
+    private void add(final Entry<T> entry) {
+        entry.rounds = (entry.interval - 1) / slots.size();
+        slots.get((cursor + entry.interval) % slots.size()).add(entry);
+    }
+
+    private static final class Entry<T> {
+        final T value;
+
+        final int interval;
+
+        int rounds;
+
+        Entry(final T value, final int interval) {
+            this.value = value;
+            this.interval = interval;
+        }
+    }
+}
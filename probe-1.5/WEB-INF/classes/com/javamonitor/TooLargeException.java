@@ -0,0 +1,21 @@
+package com.javamonitor;
+
+import java.io.IOException;
+
+/**
+ * An exception to indicate that a request was larger than we are willing to
+ * read.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+class TooLargeException extends IOException {
+    private static final long serialVersionUID = 4511943626014218301L;
+
+    /**
+     * @param message
+     *            What was too large.
+     */
+    public TooLargeException(final String message) {
+        super(message);
+    }
+}
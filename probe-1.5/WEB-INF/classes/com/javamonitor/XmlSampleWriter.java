@@ -0,0 +1,147 @@
+package com.javamonitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The original wire format, a Java properties XML file in which each item value
+ * is encoded as a string. Every collector server understands this format, so
+ * we use it until the server tells us it can handle something more compact.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class XmlSampleWriter implements SampleWriter {
+    private final Properties request = new Properties();
+
+    private final OutputStream out;
+
+    /**
+     * Set if the server told us it reads summaries in XML requests.
+     */
+    private final boolean summaries;
+
+    private String summaryKey = null;
+
+    private String summary = null;
+
+    /**
+     * Create a new XML writer.
+     * 
+     * @param out
+     *            The stream to write the XML to when the request is complete.
+     * @param summaries
+     *            <code>true</code> if the server reads summaries, or
+     *            <code>false</code> to leave them out.
+     */
+    XmlSampleWriter(final OutputStream out, final boolean summaries) {
+        this.out = out;
+        this.summaries = summaries;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#property(java.lang.String,
+     *      java.lang.String)
+     */
+    public void property(final String key, final String value) {
+        request.put(key, value);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String,
+     *      java.lang.Object, java.lang.String)
+     */
+    public void value(final String key, final Object value,
+            final String objectName) {
+        if (value == null) {
+            put(key, "", 0, objectName);
+        } else {
+            put(key, value.toString(), getClassId(value), objectName);
+        }
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, long,
+     *      java.lang.String)
+     */
+    public void value(final String key, final long value,
+            final String objectName) {
+        put(key, Long.toString(value), 1, objectName);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, double,
+     *      java.lang.String)
+     */
+    public void value(final String key, final double value,
+            final String objectName) {
+        put(key, Double.toString(value), 2, objectName);
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#value(java.lang.String, boolean,
+     *      java.lang.String)
+     */
+    public void value(final String key, final boolean value,
+            final String objectName) {
+        put(key, Boolean.toString(value), 3, objectName);
+    }
+
+    private void put(final String key, final String value, final int classId,
+            final String objectName) {
+        final String suffix = key.equals(summaryKey) ? summary : "";
+        summaryKey = null;
+        summary = null;
+
+        request.put(key, value + "|" + classId + "||" + objectName + suffix);
+    }
+
+    /**
+     * We add the summary to the end of the value, as
+     * <code>|count|min|max|avg</code>. Servers that did not tell us they read
+     * summaries would take these for part of the object name, so they get
+     * none.
+     * 
+     * @see com.javamonitor.SampleWriter#summary(java.lang.String, int, double,
+     *      double, double)
+     */
+    public void summary(final String key, final int count, final double min,
+            final double max, final double avg) {
+        if (!summaries) {
+            return;
+        }
+
+        summaryKey = key;
+        summary = "|" + count + "|" + min + "|" + max + "|" + avg;
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#error(java.lang.String,
+     *      java.lang.String)
+     */
+    public void error(final String key, final String error) {
+        request.put(key, "||" + error + "|");
+    }
+
+    /**
+     * @see com.javamonitor.SampleWriter#close()
+     */
+    public void close() throws IOException {
+        request.storeToXML(out, null);
+        out.flush();
+    }
+
+    private static int getClassId(final Object value) {
+        if (value instanceof Byte || value instanceof Short
+                || value instanceof Integer || value instanceof Long) {
+            return 1;
+        }
+        if (value instanceof Float || value instanceof Double) {
+            return 2;
+        }
+        if (value instanceof Boolean) {
+            return 3;
+        }
+        return 4; // String
+    }
+}
@@ -0,0 +1,198 @@
+package com.javamonitor.agent;
+
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Logger.getLogger;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.util.logging.Logger;
+
+import com.javamonitor.JavaMonitorCollector;
+
+/**
+ * The starting point for running the Java-monitor probe as a Java agent. The
+ * probe can be started with the JVM, using
+ * <code>-javaagent:java-monitor-agent.jar</code>, or it can be loaded into a
+ * JVM that is already running, using
+ * <code>java -jar java-monitor-agent.jar &lt;pid&gt;</code>.
+ * <p>
+ * Either way, the probe does not depend on a servlet container. It runs in
+ * its own daemon threads, so it never keeps the JVM from exiting.
+ * <p>
+ * The agent options are a comma-separated list of settings, which are the
+ * same as the system properties that configure the probe, without the
+ * &quot;javamonitor.&quot; prefix. For example,
+ * <code>-javaagent:java-monitor-agent.jar=uniqueid=shop,spool=1024</code>
+ * sets the system properties &quot;javamonitor.uniqueid&quot; and
+ * &quot;javamonitor.spool&quot;.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class Agent {
+    private static final String PREFIX = "javamonitor.";
+
+    private static JavaMonitorCollector collector = null;
+
+    private static boolean loaded = false;
+
+    private Agent() {
+        // not to be instantiated
+    }
+
+    /**
+     * The entry point for agents that start with the JVM.
+     *
+     * @param options
+     *            The agent options, may be <code>null</code>.
+     * @param instrumentation
+     *            ignored.
+     */
+    public static void premain(final String options,
+            final Instrumentation instrumentation) {
+        start(options, true);
+    }
+
+    /**
+     * The entry point for agents that are loaded into a running JVM.
+     *
+     * @param options
+     *            The agent options, may be <code>null</code>.
+     * @param instrumentation
+     *            ignored.
+     */
+    public static void agentmain(final String options,
+            final Instrumentation instrumentation) {
+        start(options, false);
+    }
+
+    /**
+     * Load the agent into a running JVM, using the attach API.
+     *
+     * @param args
+     *            The process ID of the JVM to load the agent into, optionally
+     *            followed by the agent options.
+     * @throws Exception
+     *             When the agent could not be loaded.
+     */
+    public static void main(final String args[]) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: java -jar java-monitor-agent.jar "
+                    + "<pid> [uniqueid=...,url=...]");
+            System.exit(1);
+        }
+
+        attach(args[0], args.length > 1 ? args[1] : null);
+    }
+
+    /**
+     * Load the agent into a running JVM, using the attach API.
+     *
+     * @param pid
+     *            The process ID of the JVM to load the agent into.
+     * @param options
+     *            The agent options, may be <code>null</code>.
+     * @throws Exception
+     *             When the agent could not be loaded.
+     */
+    public static void attach(final String pid, final String options)
+            throws Exception {
+        final Attach vm = Attach.attach(pid);
+        try {
+            vm.loadAgent(agentJar(), options);
+        } finally {
+            vm.detach();
+        }
+    }
+
+    private static Logger log() {
+        return getLogger(Agent.class.getName());
+    }
+
+    private static String agentJar() throws Exception {
+        return new File(Agent.class.getProtectionDomain().getCodeSource()
+                .getLocation().toURI()).getAbsolutePath();
+    }
+
+    /**
+     * Start the probe, unless it already runs. We start it from a thread of
+     * its own, so that we do not hold up the start of the JVM or the attach
+     * that loaded us.
+     * <p>
+     * That thread runs alongside the main method of the JVM, so it may set up
+     * logging and JMX before the container does. Containers such as JBoss,
+     * which install a log manager of their own, need the setup that they
+     * document for running with Java agents, which usually comes down to
+     * naming their log manager in the system property
+     * &quot;java.util.logging.manager&quot;.
+     * 
+     * @param options
+     *            The agent options, may be <code>null</code>.
+     * @param early
+     *            <code>true</code> if we start with the JVM, before the
+     *            container registered its mbeans.
+     */
+    private static synchronized void start(final String options,
+            final boolean early) {
+        final boolean again = loaded;
+        loaded = true;
+
+        final Thread starter = new Thread(new Runnable() {
+            public void run() {
+                if (again) {
+                    log().warning("The Java-monitor agent is already "
+                            + "loaded, ignoring options " + options);
+                    return;
+                }
+
+                configure(options);
+                startCollector(early);
+            }
+        }, "java-monitor agent");
+        starter.setDaemon(true);
+        starter.start();
+    }
+
+    private static synchronized void startCollector(final boolean early) {
+        collector = new JavaMonitorCollector();
+        try {
+            if (early) {
+                collector.startEarly();
+            } else {
+                collector.start();
+            }
+        } catch (Exception e) {
+            log().log(SEVERE, "Unable to start Java-monitor agent", e);
+            return;
+        }
+
+        // spool the samples that were not pushed yet when the JVM exits
+        Runtime.getRuntime().addShutdownHook(
+                new Thread("java-monitor shutdown") {
+                    @Override
+                    public void run() {
+                        collector.stop();
+                    }
+                });
+    }
+
+    /**
+     * Turn the agent options into system properties.
+     */
+    private static void configure(final String options) {
+        if (options == null) {
+            return;
+        }
+
+        for (final String option : options.split(",")) {
+            final int equals = option.indexOf('=');
+            if (equals > 0) {
+                System.setProperty(PREFIX
+                        + option.substring(0, equals).trim(), option
+                        .substring(equals + 1).trim());
+            } else if (option.trim().length() > 0) {
+                log().warning("Ignoring Java-monitor agent option " + option
+                        + ", expected name=value");
+            }
+        }
+    }
+}
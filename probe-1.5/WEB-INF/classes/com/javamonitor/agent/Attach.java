@@ -0,0 +1,193 @@
+package com.javamonitor.agent;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The JDK's attach API, used through reflection. The attach API lives in the
+ * JDK's tools.jar up to Java 8, and in the jdk.attach module after that. It
+ * does not exist at all on Java 5. Using it through reflection means that the
+ * probe does not need the JDK to build or to run, only to attach.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public final class Attach {
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+
+    private static final String DESCRIPTOR = "com.sun.tools.attach.VirtualMachineDescriptor";
+
+    /**
+     * The agent property that holds the address of the local JMX connector
+     * of a JVM, once its management agent runs.
+     */
+    private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+    private static ClassLoader loader = null;
+
+    private final Object vm;
+
+    private Attach(final Object vm) {
+        this.vm = vm;
+    }
+
+    /**
+     * Attach to a JVM on this machine.
+     *
+     * @param pid
+     *            The process ID of the JVM.
+     * @return The attached JVM.
+     * @throws Exception
+     *             When the attach API is missing, or when we could not attach.
+     */
+    public static Attach attach(final String pid) throws Exception {
+        return new Attach(invoke(null, virtualMachine().getMethod("attach",
+                String.class), pid));
+    }
+
+    /**
+     * List the JVMs on this machine that we may attach to.
+     *
+     * @return The display names of the JVMs, by process ID.
+     * @throws Exception
+     *             When the attach API is missing.
+     */
+    public static Map<String, String> list() throws Exception {
+        final Class<?> descriptor = Class.forName(DESCRIPTOR, true,
+                loader());
+        final Method id = descriptor.getMethod("id");
+        final Method displayName = descriptor.getMethod("displayName");
+
+        final Map<String, String> jvms = new LinkedHashMap<String, String>();
+        for (final Object jvm : (List<?>) invoke(null, virtualMachine()
+                .getMethod("list"))) {
+            jvms.put((String) invoke(jvm, id), (String) invoke(jvm,
+                    displayName));
+        }
+
+        return jvms;
+    }
+
+    /**
+     * Load a Java agent into the attached JVM.
+     *
+     * @param agentJar
+     *            The path of the agent's jar file.
+     * @param options
+     *            The agent options, may be <code>null</code>.
+     * @throws Exception
+     *             When the agent could not be loaded.
+     */
+    public void loadAgent(final String agentJar, final String options)
+            throws Exception {
+        invoke(vm, virtualMachine().getMethod("loadAgent", String.class,
+                String.class), agentJar, options);
+    }
+
+    /**
+     * Find the address of the local JMX connector of the attached JVM,
+     * starting its management agent if needed. Java 8 and later start the
+     * agent on request. Older JVMs get the JDK's management agent jar loaded
+     * into them.
+     *
+     * @return The JMX service URL of the connector.
+     * @throws Exception
+     *             When the management agent could not be started.
+     */
+    public String localConnectorAddress() throws Exception {
+        String address = agentProperty(LOCAL_CONNECTOR_ADDRESS);
+        if (address != null) {
+            return address;
+        }
+
+        try {
+            return (String) invoke(vm, virtualMachine().getMethod(
+                    "startLocalManagementAgent"));
+        } catch (NoSuchMethodException e) {
+            // before Java 8, load the management agent ourselves
+        }
+
+        final String javaHome = (String) ((Properties) invoke(vm,
+                virtualMachine().getMethod("getSystemProperties")))
+                .get("java.home");
+        loadAgent(new File(javaHome, "lib" + File.separator
+                + "management-agent.jar").getPath(), null);
+
+        address = agentProperty(LOCAL_CONNECTOR_ADDRESS);
+        if (address == null) {
+            throw new IllegalStateException(
+                    "management agent started, but no local connector address");
+        }
+
+        return address;
+    }
+
+    /**
+     * Detach from the JVM.
+     */
+    public void detach() {
+        try {
+            invoke(vm, virtualMachine().getMethod("detach"));
+        } catch (Exception e) {
+            // ignore, we are done with it
+        }
+    }
+
+    private String agentProperty(final String name) throws Exception {
+        return ((Properties) invoke(vm, virtualMachine().getMethod(
+                "getAgentProperties"))).getProperty(name);
+    }
+
+    private static Class<?> virtualMachine() throws Exception {
+        return Class.forName(VIRTUAL_MACHINE, true, loader());
+    }
+
+    /**
+     * Find the class loader for the attach API. That is our own class loader
+     * on Java 9 and later, and a class loader for the JDK's tools.jar before
+     * that. java.home points to the JDK's jre directory there.
+     */
+    private static synchronized ClassLoader loader() throws Exception {
+        if (loader == null) {
+            try {
+                Class.forName(VIRTUAL_MACHINE);
+                loader = Attach.class.getClassLoader();
+            } catch (ClassNotFoundException e) {
+                final File toolsJar = new File(System
+                        .getProperty("java.home"), ".." + File.separator
+                        + "lib" + File.separator + "tools.jar");
+                if (!toolsJar.exists()) {
+                    throw new ClassNotFoundException(VIRTUAL_MACHINE
+                            + ", attaching needs a JDK rather than a JRE");
+                }
+
+                loader = new URLClassLoader(new URL[] { toolsJar.toURI()
+                        .toURL() });
+            }
+        }
+
+        return loader;
+    }
+
+    /**
+     * Invoke a method, unwrapping the exceptions it throws.
+     */
+    private static Object invoke(final Object target, final Method method,
+            final Object... args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+}
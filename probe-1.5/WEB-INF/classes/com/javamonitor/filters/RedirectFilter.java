@@ -1,25 +1,37 @@
 package com.javamonitor.filters;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A simple filter that redirects all traffic.
+ * A simple filter that redirects all traffic, except for the paths listed in
+ * the comma separated <code>exclude</code> init parameter.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class RedirectFilter implements Filter {
+    private final Set<String> excluded = new HashSet<String>();
+
     /**
      * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
      */
     public void init(final FilterConfig config) {
-        // nothing to do...
+        final String exclude = config.getInitParameter("exclude");
+        if (exclude != null) {
+            for (final String path : exclude.split(",")) {
+                excluded.add(path.trim());
+            }
+        }
     }
 
     /**
@@ -28,7 +40,12 @@ public class RedirectFilter implements Filter {
      */
     public void doFilter(final ServletRequest request,
             final ServletResponse response, final FilterChain chain)
-            throws IOException {
+            throws IOException, ServletException {
+        if (excluded.contains(((HttpServletRequest) request).getServletPath())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
         ((HttpServletResponse) response)
                 .sendRedirect("http://www.java-monitor.com/forum/");
     }
@@ -0,0 +1,304 @@
+package com.javamonitor.mbeans;
+
+import static com.javamonitor.JmxHelper.objectNameBase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * The probe self-instrumentation mbean. The collector tells this mbean what
+ * it does and what that costs.
+ * <p>
+ * Allocated bytes can only be measured on JVMs that have
+ * <code>com.sun.management.ThreadMXBean</code>, which appeared in Java 6. We
+ * look it up using reflection, so that the probe still runs on Java 5.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class Probe implements ProbeMBean {
+    /**
+     * The object name for the probe mbean.
+     */
+    public static final String objectName = objectNameBase + "Probe";
+
+    private static final long[] BOUNDS = { 1L, 2L, 5L, 10L, 20L, 50L, 100L,
+            200L, 500L, 1000L, 2000L, 5000L, 10000L, 30000L };
+
+    private static final long MILLISECOND = 1000L * 1000L;
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory
+            .getThreadMXBean();
+
+    private static final boolean cpuTimeSupported = threadMXBean
+            .isCurrentThreadCpuTimeSupported()
+            && threadMXBean.isThreadCpuTimeEnabled();
+
+    private static Method getThreadAllocatedBytes = null;
+    static {
+        try {
+            final Class<?> sunThreadMXBean = Class
+                    .forName("com.sun.management.ThreadMXBean");
+            if (sunThreadMXBean.isInstance(threadMXBean)
+                    && Boolean.TRUE.equals(sunThreadMXBean.getMethod(
+                            "isThreadAllocatedMemoryEnabled").invoke(
+                            threadMXBean))) {
+                getThreadAllocatedBytes = sunThreadMXBean.getMethod(
+                        "getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception ignored) {
+            // not a Sun JVM, or one older than Java 6
+        }
+    }
+
+    private final long[] histogram = new long[BOUNDS.length + 1];
+
+    private long cycles = 0L;
+
+    private long cycleMax = 0L;
+
+    private int items = 0;
+
+    private int objectNames = 0;
+
+    private int pendingItems = 0;
+
+    private int pendingObjectNames = 0;
+
+    private long bytesSent = 0L;
+
+    private long bytesReceived = 0L;
+
+    private long pushes = 0L;
+
+    private long roundTrip = 0L;
+
+    private long roundTripMax = 0L;
+
+    private long cpuTime = 0L;
+
+    private long allocatedBytes = 0L;
+
+    /**
+     * Find the CPU time of the current thread.
+     *
+     * @return The CPU time of the current thread, in nanoseconds, or 0 if the
+     *         JVM does not measure thread CPU time.
+     */
+    public static long threadCpuTime() {
+        return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0L;
+    }
+
+    /**
+     * Find the number of bytes that the current thread allocated on the heap.
+     *
+     * @return The number of bytes allocated by the current thread, or 0 if the
+     *         JVM does not measure thread allocations.
+     */
+    public static long threadAllocatedBytes() {
+        if (getThreadAllocatedBytes == null) {
+            return 0L;
+        }
+
+        try {
+            return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread
+                    .currentThread().getId());
+        } catch (Exception e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Record the items that were queried on a number of mbeans. The counts add
+     * up until the collection cycle ends.
+     *
+     * @param itemCount
+     *            The number of items queried.
+     * @param objectNameCount
+     *            The number of mbeans queried.
+     */
+    public synchronized void queried(final int itemCount,
+            final int objectNameCount) {
+        pendingItems += itemCount;
+        pendingObjectNames += objectNameCount;
+    }
+
+    /**
+     * Record the end of a collection cycle.
+     *
+     * @param nanos
+     *            The latency of the cycle, in nanoseconds.
+     */
+    public synchronized void cycle(final long nanos) {
+        final long millis = nanos / MILLISECOND;
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+        cycles++;
+        cycleMax = Math.max(cycleMax, millis);
+
+        items = pendingItems;
+        objectNames = pendingObjectNames;
+        pendingItems = 0;
+        pendingObjectNames = 0;
+    }
+
+    /**
+     * Record the bytes that went over the wire to and from the collector
+     * server.
+     *
+     * @param sent
+     *            The number of bytes sent.
+     * @param received
+     *            The number of bytes received.
+     */
+    public synchronized void transferred(final long sent, final long received) {
+        bytesSent += sent;
+        bytesReceived += received;
+    }
+
+    /**
+     * Record a successful push.
+     *
+     * @param nanos
+     *            The round-trip time of the push, in nanoseconds.
+     */
+    public synchronized void push(final long nanos) {
+        pushes++;
+        roundTrip = nanos / MILLISECOND;
+        roundTripMax = Math.max(roundTripMax, roundTrip);
+    }
+
+    /**
+     * Record the work done by one of the probe's threads.
+     *
+     * @param cpuNanos
+     *            The CPU time used, in nanoseconds.
+     * @param allocated
+     *            The number of bytes allocated.
+     */
+    public synchronized void work(final long cpuNanos, final long allocated) {
+        cpuTime += cpuNanos;
+        allocatedBytes += allocated;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycles()
+     */
+    public synchronized long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycleLatencyBounds()
+     */
+    public long[] getCycleLatencyBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycleLatencyHistogram()
+     */
+    public synchronized long[] getCycleLatencyHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycleLatencyMedian()
+     */
+    public synchronized long getCycleLatencyMedian() {
+        return percentile(50);
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycleLatency99thPercentile()
+     */
+    public synchronized long getCycleLatency99thPercentile() {
+        return percentile(99);
+    }
+
+    private long percentile(final int percent) {
+        final long rank = (cycles * percent + 99L) / 100L;
+        long seen = 0L;
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[bucket], cycleMax);
+            }
+        }
+
+        return cycleMax;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCycleLatencyMax()
+     */
+    public synchronized long getCycleLatencyMax() {
+        return cycleMax;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getItemsQueried()
+     */
+    public synchronized int getItemsQueried() {
+        return items;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getObjectNamesQueried()
+     */
+    public synchronized int getObjectNamesQueried() {
+        return objectNames;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getBytesSent()
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getBytesReceived()
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getPushes()
+     */
+    public synchronized long getPushes() {
+        return pushes;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getPushRoundTripTime()
+     */
+    public synchronized long getPushRoundTripTime() {
+        return roundTrip;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getPushRoundTripTimeMax()
+     */
+    public synchronized long getPushRoundTripTimeMax() {
+        return roundTripMax;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getCpuTime()
+     */
+    public synchronized long getCpuTime() {
+        return cpuTimeSupported ? cpuTime : -1L;
+    }
+
+    /**
+     * @see com.javamonitor.mbeans.ProbeMBean#getAllocatedBytes()
+     */
+    public synchronized long getAllocatedBytes() {
+        return getThreadAllocatedBytes == null ? -1L : allocatedBytes;
+    }
+}
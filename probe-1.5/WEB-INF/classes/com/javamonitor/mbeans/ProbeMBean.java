@@ -0,0 +1,130 @@
+package com.javamonitor.mbeans;
+
+/**
+ * The interface to the probe mbean. This mbean tells us what the probe itself
+ * costs the JVM that it runs in, so that the overhead of the probe can be
+ * shown on production hosts.
+ * <p>
+ * A collection cycle is a single sampling of the items that are due, either
+ * for a push or on the items' own schedule.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface ProbeMBean {
+    /**
+     * Find the number of collection cycles the probe ran.
+     *
+     * @return The number of collection cycles.
+     */
+    long getCycles();
+
+    /**
+     * Find the upper bounds of the buckets of the collection cycle latency
+     * histogram.
+     *
+     * @return The upper bounds of the buckets, in milliseconds. The histogram
+     *         has one more bucket than there are bounds, for the cycles that
+     *         took longer than the last bound.
+     */
+    long[] getCycleLatencyBounds();
+
+    /**
+     * Find the collection cycle latency histogram.
+     *
+     * @return The number of collection cycles per bucket.
+     */
+    long[] getCycleLatencyHistogram();
+
+    /**
+     * Estimate the median collection cycle latency from the histogram.
+     *
+     * @return The upper bound of the bucket that holds the median, in
+     *         milliseconds.
+     */
+    long getCycleLatencyMedian();
+
+    /**
+     * Estimate the 99th percentile of the collection cycle latency from the
+     * histogram.
+     *
+     * @return The upper bound of the bucket that holds the 99th percentile, in
+     *         milliseconds.
+     */
+    long getCycleLatency99thPercentile();
+
+    /**
+     * Find the longest collection cycle.
+     *
+     * @return The latency of the longest collection cycle, in milliseconds.
+     */
+    long getCycleLatencyMax();
+
+    /**
+     * Find the number of items that were queried in the last collection
+     * cycle.
+     *
+     * @return The number of items queried.
+     */
+    int getItemsQueried();
+
+    /**
+     * Find the number of mbeans that were queried in the last collection
+     * cycle.
+     *
+     * @return The number of object names queried.
+     */
+    int getObjectNamesQueried();
+
+    /**
+     * Find the number of bytes sent to the collector server, as they went
+     * over the wire.
+     *
+     * @return The number of bytes sent.
+     */
+    long getBytesSent();
+
+    /**
+     * Find the number of bytes received from the collector server, as they
+     * came over the wire.
+     *
+     * @return The number of bytes received.
+     */
+    long getBytesReceived();
+
+    /**
+     * Find the number of successful pushes to the collector server.
+     *
+     * @return The number of pushes.
+     */
+    long getPushes();
+
+    /**
+     * Find the round-trip time of the last successful push.
+     *
+     * @return The round-trip time, in milliseconds.
+     */
+    long getPushRoundTripTime();
+
+    /**
+     * Find the round-trip time of the slowest successful push.
+     *
+     * @return The round-trip time, in milliseconds.
+     */
+    long getPushRoundTripTimeMax();
+
+    /**
+     * Find the CPU time that the probe's threads used.
+     *
+     * @return The CPU time, in nanoseconds, or -1 if the JVM does not measure
+     *         thread CPU time.
+     */
+    long getCpuTime();
+
+    /**
+     * Find the number of bytes that the probe's threads allocated on the heap.
+     *
+     * @return The number of bytes allocated, or -1 if the JVM does not measure
+     *         thread allocations.
+     */
+    long getAllocatedBytes();
+}
@@ -1,7 +1,30 @@
 package com.javamonitor.mbeans;
 
 import static com.javamonitor.JmxHelper.objectNameBase;
+import static com.javamonitor.JmxHelper.queryNames;
+import static com.javamonitor.JmxHelper.whenRegistered;
 import static java.lang.System.getProperty;
+import static java.util.logging.Level.WARNING;
+import static java.util.logging.Logger.getLogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.javamonitor.JmxHelper;
 
 /**
  * The application server helper mbean. This mbean is responsible for
@@ -10,9 +33,59 @@ import static java.lang.System.getProperty;
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class Server implements ServerMBean {
+    private static final Logger log = getLogger(Server.class.getName());
+
+    /**
+     * The resource that lists the detectors for servers that the probe does
+     * not know about itself.
+     */
+    private static final String SERVICES = "META-INF/services/"
+            + ServerDetector.class.getName();
+
     private Throwable lastException = null;
 
-    private final ServerMBean actualServer;
+    /**
+     * Set once we stopped looking for the server we run in.
+     */
+    private boolean settled = false;
+
+    /**
+     * Set while we wait for the server to register its mbeans, so that we do
+     * not settle for not knowing the server.
+     */
+    private boolean searching = false;
+
+    /**
+     * The detectors, in the order we try them, and the object names of each.
+     */
+    private List<ServerDetector> detectors = null;
+
+    private List<ObjectName[]> detectorNames = null;
+
+    /**
+     * The registrations of detector mbeans that we wait for while searching.
+     */
+    private final List<Future<ObjectName>> arrivals = new ArrayList<Future<ObjectName>>();
+
+    private ServerMBean actualServer = null;
+
+    /**
+     * The connector mbeans that the server registers once it is ready to
+     * take requests, or <code>null</code> if there are none to wait for.
+     */
+    private String connectors = null;
+
+    /*
+     * The identity of the server does not change while it runs, so we look it
+     * up once, instead of every time we push. The port is looked up until the
+     * server has one.
+     */
+
+    private volatile String name = null;
+
+    private volatile String version = null;
+
+    private volatile Integer httpPort = null;
 
     /**
      * The object name for the application server helper mbean.
@@ -35,32 +108,304 @@ public class Server implements ServerMBean {
     public static final String versionAttribute = "Version";
 
     /**
-     * Create a new server info aggregator bean. Here we try to find out in what
-     * server we're running and instantiate the correct server-specific MBean.
-     * 
-     * Note that we have to test for Tomcat after the others, because Tomcat is
-     * used here and there as an embedded server. In such a case, we want to
-     * detect the outer server, not the embedded Tomcat.
+     * The name we report for JVMs that do not run a server we know about.
+     */
+    public static final String defaultName = "Java VM";
+
+    /**
+     * Create a new server info aggregator bean. We find out what server we run
+     * in only when we are first asked, so that creating this bean is cheap.
      */
     public Server() {
-        if (ServerOpenfire.runningInOpenfire()) {
-            actualServer = new ServerOpenfire();
-        } else if (ServerGlassfish.runningInGlassfish()) {
-            actualServer = new ServerGlassfish();
-        } else if (ServerJBoss.runningInJBoss()) {
-            actualServer = new ServerJBoss();
-        } else if (ServerSpringDM.runningInSpringDM()) {
-            actualServer = new ServerSpringDM();
-        } else if (ServerTomcat.runningInTomcat()) {
-            actualServer = new ServerTomcat();
-        } else if (ServerJetty5.runningInJetty5()) {
-            actualServer = new ServerJetty5();
-        } else if (ServerJetty.runningInJetty()) {
-            actualServer = new ServerJetty();
-        } else if (ServerResin.runningInResin()) {
-            actualServer = new ServerResin();
+        // nothing to do until we are asked...
+    }
+
+    /**
+     * Find out in what server we're running and instantiate the correct
+     * server-specific MBean. The object names of all detectors are looked up
+     * in one go, after which each detector is matched against the names that
+     * were found.
+     * <p>
+     * Detectors from the class path come first, then the ones that come with
+     * the probe. Note that we have to test for Tomcat after the others,
+     * because Tomcat is used here and there as an embedded server. In such a
+     * case, we want to detect the outer server, not the embedded Tomcat.
+     * 
+     * @return The server-specific mbean, or <code>null</code> if we don't
+     *         know the server we run in.
+     */
+    private synchronized ServerMBean detect() {
+        if (!settled) {
+            lookup();
+            settled = actualServer != null || !searching;
+        }
+
+        return actualServer;
+    }
+
+    private void lookup() {
+        if (detectors == null) {
+            loadObjectNames();
+        }
+
+        final Set<ObjectName> all = new HashSet<ObjectName>();
+        for (final ObjectName[] names : detectorNames) {
+            for (final ObjectName name : names) {
+                all.add(name);
+            }
+        }
+
+        final Set<ObjectName> registered = queryNames(all);
+        for (int i = 0; i < detectors.size(); i++) {
+            if (matches(detectorNames.get(i), registered)) {
+                final ServerMBean found = detectors.get(i).newServer();
+                if (actualServer == null
+                        || actualServer.getClass() != found.getClass()) {
+                    actualServer = found;
+                    connectors = detectors.get(i).getConnectors();
+                    name = null;
+                    version = null;
+                    httpPort = null;
+                }
+                return;
+            }
+        }
+    }
+
+    private void loadObjectNames() {
+        detectors = loadDetectors();
+        detectors.add(new ServerOpenfire.Detector());
+        detectors.add(new ServerGlassfish.Detector());
+        detectors.add(new ServerJBoss.Detector());
+        detectors.add(new ServerSpringDM.Detector());
+        detectors.add(new ServerTomcat.Detector());
+        detectors.add(new ServerJetty5.Detector());
+        detectors.add(new ServerJetty.Detector());
+        detectors.add(new ServerResin.Detector());
+
+        detectorNames = new ArrayList<ObjectName[]>();
+        for (final ServerDetector detector : detectors) {
+            ObjectName[] names = new ObjectName[0];
+            try {
+                final String[] strings = detector.getObjectNames();
+                final ObjectName[] parsed = new ObjectName[strings.length];
+                for (int i = 0; i < strings.length; i++) {
+                    parsed[i] = new ObjectName(strings[i]);
+                }
+                names = parsed;
+            } catch (Exception e) {
+                log.log(WARNING, "ignoring server detector "
+                        + detector.getClass().getName(), e);
+            }
+            detectorNames.add(names);
+        }
+    }
+
+    private static boolean matches(final ObjectName[] objectNames,
+            final Set<ObjectName> registered) {
+        for (final ObjectName objectName : objectNames) {
+            for (final ObjectName name : registered) {
+                if (JmxHelper.matches(objectName, name)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Run a task once we know what server we run in. This is for probes that
+     * start with the JVM, before the server had a chance to register its
+     * mbeans. We look for the server again every time one of the mbeans of
+     * the detectors is registered, until we find it or until we are told to
+     * settle.
+     * <p>
+     * When an outer server registers its mbeans only after the Tomcat that it
+     * embeds, we first find Tomcat. So we look once more when the server is
+     * ready.
+     * 
+     * @param task
+     *            The task to run. It may run in the thread that registered
+     *            the mbean, so it should be quick.
+     * @see #settle()
+     */
+    public void whenDetected(final Runnable task) {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Runnable found = new Runnable() {
+            public void run() {
+                detect();
+                if (isSettled() && done.compareAndSet(false, true)) {
+                    cancelArrivals();
+                    task.run();
+                }
+            }
+        };
+
+        synchronized (this) {
+            if (!settled) {
+                searching = true;
+            }
+            detect();
+            if (!settled) {
+                for (final ObjectName[] names : detectorNames) {
+                    for (final ObjectName name : names) {
+                        try {
+                            arrivals.add(whenRegistered(name.toString(),
+                                    found));
+                        } catch (MalformedObjectNameException e) {
+                            // cannot happen, we parsed it before
+                        }
+                    }
+                }
+                if (!done.get()) {
+                    return;
+                }
+            }
+        }
+
+        // found while we set up the arrivals, or found right away
+        if (done.get()) {
+            cancelArrivals();
         } else {
-            actualServer = null;
+            found.run();
+        }
+    }
+
+    /**
+     * Stop waiting for the server to register its mbeans. From now on, the
+     * server we run in is the one that we find now, if any.
+     */
+    public void settle() {
+        synchronized (this) {
+            if (!settled) {
+                lookup();
+                settled = true;
+            }
+            searching = false;
+        }
+        cancelArrivals();
+    }
+
+    private synchronized boolean isSettled() {
+        return settled;
+    }
+
+    private void cancelArrivals() {
+        final List<Future<ObjectName>> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<Future<ObjectName>>(arrivals);
+            arrivals.clear();
+        }
+        for (final Future<ObjectName> arrival : cancelled) {
+            arrival.cancel(false);
+        }
+    }
+
+    /**
+     * Load the detectors that are listed in the service files on the class
+     * path. We read the files ourselves, because
+     * <code>java.util.ServiceLoader</code> does not exist on Java 5.
+     * 
+     * @return The detectors, in the order in which they were found.
+     */
+    private static List<ServerDetector> loadDetectors() {
+        final List<ServerDetector> detectors = new ArrayList<ServerDetector>();
+
+        ClassLoader loader = Server.class.getClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        final Set<String> classNames = new LinkedHashSet<String>();
+        try {
+            final Enumeration<URL> services = loader.getResources(SERVICES);
+            while (services.hasMoreElements()) {
+                readServices(services.nextElement(), classNames);
+            }
+        } catch (IOException e) {
+            log.log(WARNING, "unable to read " + SERVICES, e);
+        }
+
+        for (final String className : classNames) {
+            try {
+                detectors.add((ServerDetector) Class.forName(className, true,
+                        loader).newInstance());
+            } catch (Throwable e) {
+                log.log(WARNING, "unable to load server detector "
+                        + className, e);
+            }
+        }
+
+        return detectors;
+    }
+
+    /**
+     * Read a service file, which lists a class name on each line. Comments
+     * start with a '#'.
+     */
+    private static void readServices(final URL services,
+            final Set<String> classNames) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                services.openStream(), "UTF-8"));
+        try {
+            for (String line = in.readLine(); line != null; line = in
+                    .readLine()) {
+                final int comment = line.indexOf('#');
+                final String className = (comment < 0 ? line : line
+                        .substring(0, comment)).trim();
+                if (className.length() > 0) {
+                    classNames.add(className);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Run a task once the server is ready to take requests, which is when it
+     * has registered its connector mbeans. Until then, we do not know the
+     * server's port. The task runs right away if the server is ready already,
+     * or if there is nothing to wait for. Openfire has no connector mbeans, so
+     * there we wait for its port instead.
+     * 
+     * @param task
+     *            The task to run. It may run in the thread that registered
+     *            the connector mbeans, so it should be quick.
+     */
+    public void whenReady(final Runnable task) {
+        final ServerMBean actualServer = detect();
+        final String connectors;
+        final Runnable ready;
+        synchronized (this) {
+            connectors = this.connectors;
+
+            // all of the server's mbeans are there once it is ready
+            ready = !searching ? task : new Runnable() {
+                public void run() {
+                    synchronized (Server.this) {
+                        lookup();
+                    }
+                    settle();
+                    task.run();
+                }
+            };
+        }
+
+        if (actualServer instanceof ServerOpenfire) {
+            ((ServerOpenfire) actualServer).whenReady(ready);
+            return;
+        }
+        if (connectors == null) {
+            ready.run();
+            return;
+        }
+
+        try {
+            whenRegistered(connectors, ready);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -68,33 +413,45 @@ public class Server implements ServerMBean {
      * @see com.javamonitor.mbeans.ServerMBean#getName()
      */
     public String getName() throws Exception {
+        final ServerMBean actualServer = detect();
         if (actualServer == null) {
-            return "Java VM";
+            return defaultName;
         }
 
-        return actualServer.getName();
+        if (name == null) {
+            name = actualServer.getName();
+        }
+        return name;
     }
 
     /**
      * @see com.javamonitor.mbeans.ServerMBean#getVersion()
      */
     public String getVersion() throws Exception {
+        final ServerMBean actualServer = detect();
         if (actualServer == null) {
             return getProperty("java.version");
         }
 
-        return actualServer.getVersion();
+        if (version == null) {
+            version = actualServer.getVersion();
+        }
+        return version;
     }
 
     /**
      * @see com.javamonitor.mbeans.ServerMBean#getHttpPort()
      */
     public Integer getHttpPort() throws Exception {
+        final ServerMBean actualServer = detect();
         if (actualServer == null) {
             return null;
         }
 
-        return actualServer.getHttpPort();
+        if (httpPort == null) {
+            httpPort = actualServer.getHttpPort();
+        }
+        return httpPort;
     }
 
     /**
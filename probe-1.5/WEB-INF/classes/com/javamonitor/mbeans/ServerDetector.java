@@ -0,0 +1,44 @@
+package com.javamonitor.mbeans;
+
+/**
+ * A detector for a kind of application server. The probe comes with
+ * detectors for the servers it knows about. Detectors for other servers can
+ * be added by listing their class names in a file named
+ * <code>META-INF/services/com.javamonitor.mbeans.ServerDetector</code> on
+ * the class path, one per line. Those detectors are tried before the ones that
+ * come with the probe, so that they win over Tomcat when a server embeds it.
+ * <p>
+ * Detectors do not query JMX themselves. The probe asks all mbean servers for
+ * the object names of all detectors at once, and picks the first detector
+ * that has a match.
+ * <p>
+ * Detectors must have a public, no-argument constructor.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public interface ServerDetector {
+    /**
+     * Find the object names of the mbeans that only this kind of server
+     * registers. If any of them is registered, we run in this kind of server.
+     *
+     * @return The object names, which may be patterns.
+     */
+    String[] getObjectNames();
+
+    /**
+     * Find the object name of the connector mbeans that this kind of server
+     * registers once it is ready to take requests.
+     *
+     * @return The object name of the connectors, usually a pattern, or
+     *         <code>null</code> if there is nothing to wait for.
+     */
+    String getConnectors();
+
+    /**
+     * Create the mbean that knows the name, version and port of this kind of
+     * server.
+     *
+     * @return The server mbean.
+     */
+    ServerMBean newServer();
+}
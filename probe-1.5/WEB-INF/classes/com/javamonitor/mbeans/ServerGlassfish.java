@@ -1,12 +1,10 @@
 package com.javamonitor.mbeans;
 
-import static com.javamonitor.JmxHelper.mbeanExists;
 import static com.javamonitor.JmxHelper.queryNames;
 import static com.javamonitor.JmxHelper.queryString;
 import static java.lang.Integer.MAX_VALUE;
 import static java.lang.Integer.parseInt;
 import static java.lang.Math.min;
-import static java.lang.Thread.sleep;
 import static java.util.regex.Pattern.compile;
 
 import java.util.Collection;
@@ -27,23 +25,35 @@ final class ServerGlassfish implements ServerMBean {
     private static final Pattern PATTERN_VERSION = compile("\\d+\\.\\d+(\\.\\d+)*");
 
     /**
-     * Test if we're maybe running inside a Glassfish instance.
-     * 
-     * @return <code>true</code> if we're inside Glassfish, or
-     *         <code>false</code> if not.
+     * The selector mbeans, which Glassfish registers once it listens.
      */
-    public static boolean runningInGlassfish() {
-        try {
-            // Glassfish 3.x
-            if (mbeanExists(OBJECTNAME_GLASSFISH_SERVER_AMX)) {
-                return true;
-            }
+    static final String OBJECTNAME_CONNECTORS = "com.sun.appserv:type=Selector,*";
+
+    /**
+     * Detects Glassfish 3.x instances by their AMX domain root, and
+     * Glassfish 2.x instances by their J2EE server.
+     */
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_GLASSFISH_SERVER_AMX,
+                    OBJECTNAME_GLASSFISH_SERVER_JMX };
+        }
 
-            // Glassfish 2.x
-            final Set<ObjectName> serverNames = queryNames(OBJECTNAME_GLASSFISH_SERVER_JMX);
-            return !serverNames.isEmpty();
-        } catch (Exception e) {
-            return false;
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return OBJECTNAME_CONNECTORS;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerGlassfish();
         }
     }
 
@@ -87,24 +97,8 @@ final class ServerGlassfish implements ServerMBean {
      * @see com.javamonitor.mbeans.ServerMBean#getHttpPort()
      */
     public Integer getHttpPort() throws Exception {
-        Collection<ObjectName> selectors = null;
-        int slept = 0;
-        do {
-            selectors = queryNames("com.sun.appserv:type=Selector,*");
-            if (selectors.size() < 1) {
-                try {
-                    sleep(1000L);
-                } catch (InterruptedException e) {
-                    // won't happen...
-                }
-            }
-        } while (selectors.size() < 1 && slept++ < 30);
-
-        if (selectors.size() < 0) {
-            throw new IllegalStateException(
-                    getName()
-                            + " selector MBeans were not loaded after 30 seconds, aborting");
-        }
+        // the probe waits for the selectors before it first pushes
+        final Collection<ObjectName> selectors = queryNames(OBJECTNAME_CONNECTORS);
 
         int lowest = MAX_VALUE;
         for (final ObjectName selector : selectors) {
@@ -11,13 +11,24 @@ final class ServerJBoss extends ServerTomcat {
     private static final String OBJECTNAME_JBOSS_SERVER = "jboss.system:type=Server";
 
     /**
-     * Test if we're maybe running inside a JBoss instance.
-     * 
-     * @return <code>true</code> if we're inside JBoss, or <code>false</code> if
-     *         not.
+     * Detects JBoss instances, which embed Tomcat.
      */
-    public static boolean runningInJBoss() {
-        return JmxHelper.mbeanExists(OBJECTNAME_JBOSS_SERVER);
+    static class Detector extends ServerTomcat.Detector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        @Override
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_JBOSS_SERVER };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        @Override
+        public ServerMBean newServer() {
+            return new ServerJBoss();
+        }
     }
 
     /**
@@ -15,13 +15,34 @@ final class ServerJetty implements ServerMBean {
     private static final String OBJECTNAME_JETTY_SERVER = "org.mortbay.jetty:type=server,id=0";
 
     /**
-     * Test if we're maybe running inside a Glassfish instance.
-     * 
-     * @return <code>true</code> if we're inside Glassfish, or
-     *         <code>false</code> if not.
+     * The connector mbeans, which Jetty registers once it listens.
      */
-    public static boolean runningInJetty() {
-        return JmxHelper.mbeanExists(OBJECTNAME_JETTY_SERVER);
+    static final String OBJECTNAME_CONNECTORS = "org.mortbay.jetty.nio:type=selectchannelconnector,*";
+
+    /**
+     * Detects Jetty instances.
+     */
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_JETTY_SERVER };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return OBJECTNAME_CONNECTORS;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerJetty();
+        }
     }
 
     /**
@@ -46,25 +67,9 @@ final class ServerJetty implements ServerMBean {
         // System.err.println(((ObjectName[])JmxHelper.query(OBJECTNAME_JETTY_SERVER,
         // "connectors"))[0]);
 
-        Collection<ObjectName> selectors = null;
-        int slept = 0;
-        do {
-            selectors = JmxHelper
-                    .queryNames("org.mortbay.jetty.nio:type=selectchannelconnector,*");
-            if (selectors.size() < 1) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // won't happen...
-                }
-            }
-        } while (selectors.size() < 1 && slept++ < 30);
-
-        if (selectors.size() < 0) {
-            throw new IllegalStateException(
-                    getName()
-                            + " selector MBeans were not loaded after 30 seconds, aborting");
-        }
+        // the probe waits for the connectors before it first pushes
+        final Collection<ObjectName> selectors = JmxHelper
+                .queryNames(OBJECTNAME_CONNECTORS);
 
         int lowest = Integer.MAX_VALUE;
         for (final ObjectName selector : selectors) {
@@ -15,13 +15,34 @@ final class ServerJetty5 implements ServerMBean {
     private static final String OBJECTNAME_JETTY_SERVER = "org.mortbay:jetty=default";
 
     /**
-     * Test if we're maybe running inside a Glassfish instance.
-     * 
-     * @return <code>true</code> if we're inside Glassfish, or
-     *         <code>false</code> if not.
+     * The listener mbeans, which Jetty registers once it listens.
      */
-    public static boolean runningInJetty5() {
-        return JmxHelper.mbeanExists(OBJECTNAME_JETTY_SERVER);
+    static final String OBJECTNAME_CONNECTORS = "org.mortbay:jetty=default,*";
+
+    /**
+     * Detects Jetty 5 instances.
+     */
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_JETTY_SERVER };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return OBJECTNAME_CONNECTORS;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerJetty5();
+        }
     }
 
     /**
@@ -43,24 +64,9 @@ final class ServerJetty5 implements ServerMBean {
      * @see com.javamonitor.mbeans.ServerMBean#getHttpPort()
      */
     public Integer getHttpPort() throws Exception {
-        Collection<ObjectName> selectors = null;
-        int slept = 0;
-        do {
-            selectors = JmxHelper.queryNames("org.mortbay:jetty=default,*");
-            if (selectors.size() < 1) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // won't happen...
-                }
-            }
-        } while (selectors.size() < 1 && slept++ < 30);
-
-        if (selectors.size() < 0) {
-            throw new IllegalStateException(
-                    getName()
-                            + " selector MBeans were not loaded after 30 seconds, aborting");
-        }
+        // the probe waits for the listeners before it first pushes
+        final Collection<ObjectName> selectors = JmxHelper
+                .queryNames(OBJECTNAME_CONNECTORS);
 
         int lowest = Integer.MAX_VALUE;
         for (final ObjectName selector : selectors) {
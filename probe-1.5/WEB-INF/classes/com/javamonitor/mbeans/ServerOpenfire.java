@@ -2,6 +2,9 @@ package com.javamonitor.mbeans;
 
 import static com.javamonitor.openfire.JavaMonitorPlugin.OBJECTNAME_OPENFIRE;
 
+import java.util.Timer;
+import java.util.TimerTask;
+
 import com.javamonitor.JmxHelper;
 
 /**
@@ -11,13 +14,66 @@ import com.javamonitor.JmxHelper;
  */
 public class ServerOpenfire implements ServerMBean {
     /**
-     * See if we are running in an Openfire server.
+     * How often we ask for the port while Openfire starts.
+     */
+    private static final long POLL_INTERVAL = 1000L;
+
+    /**
+     * Detects Openfire servers, by the mbean of our Openfire plugin. Openfire
+     * opens its ports without registering mbeans for them, so there are no
+     * connectors to wait for.
+     * 
+     * @see ServerOpenfire#whenReady(Runnable)
+     */
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_OPENFIRE };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return null;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerOpenfire();
+        }
+    }
+
+    /**
+     * Run a task once Openfire knows its port. Since there are no connector
+     * mbeans to wait for, we ask our plugin's mbean for the port every
+     * second. It names the port once the XMPP client port is open, or once
+     * Openfire had its startup time to open it, whichever comes first.
      * 
-     * @return <code>true</code> if we are running inside Openfire, or
-     *         <code>false</code> otherwise.
+     * @param task
+     *            The task to run. It runs in a timer thread of its own.
      */
-    public static boolean runningInOpenfire() {
-        return JmxHelper.mbeanExists(OBJECTNAME_OPENFIRE);
+    void whenReady(final Runnable task) {
+        final Timer timer = new Timer("java-monitor openfire startup", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    if (getHttpPort() == null) {
+                        return;
+                    }
+                } catch (Exception e) {
+                    // our plugin is gone, so there is nothing to wait for
+                }
+
+                timer.cancel();
+                task.run();
+            }
+        }, 0L, POLL_INTERVAL);
     }
 
     /**
@@ -1,6 +1,5 @@
 package com.javamonitor.mbeans;
 
-import static com.javamonitor.JmxHelper.mbeanExists;
 import static com.javamonitor.JmxHelper.queryInt;
 import static com.javamonitor.JmxHelper.queryNames;
 import static com.javamonitor.JmxHelper.queryString;
@@ -24,13 +23,34 @@ final class ServerResin implements ServerMBean {
     private static final Pattern PATTERN_VERSION = compile("\\d+\\.\\d+\\.\\d+");
 
     /**
-     * Test if we're maybe running inside a Resin instance.
-     * 
-     * @return <code>true</code> if we're inside Resin, or <code>false</code> if
-     *         not.
+     * The port mbeans, which Resin registers once it listens.
      */
-    public static boolean runningInResin() {
-        return mbeanExists(OBJECTNAME_RESIN_SERVER);
+    static final String OBJECTNAME_CONNECTORS = "resin:type=Port,*";
+
+    /**
+     * Detects Resin instances.
+     */
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_RESIN_SERVER };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return OBJECTNAME_CONNECTORS;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerResin();
+        }
     }
 
     /**
@@ -60,24 +80,8 @@ final class ServerResin implements ServerMBean {
      * @see com.javamonitor.mbeans.ServerMBean#getHttpPort()
      */
     public Integer getHttpPort() throws Exception {
-        Collection<ObjectName> selectors = null;
-        int slept = 0;
-        do {
-            selectors = queryNames("resin:type=Port,*");
-            if (selectors.size() < 1) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // won't happen...
-                }
-            }
-        } while (selectors.size() < 1 && slept++ < 30);
-
-        if (selectors.size() < 0) {
-            throw new IllegalStateException(
-                    getName()
-                            + " selector MBeans were not loaded after 30 seconds, aborting");
-        }
+        // the probe waits for the ports before it first pushes
+        final Collection<ObjectName> selectors = queryNames(OBJECTNAME_CONNECTORS);
 
         int lowestHttp = MAX_VALUE;
         int lowestOther = MAX_VALUE;
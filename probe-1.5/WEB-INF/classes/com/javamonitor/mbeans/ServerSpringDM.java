@@ -1,7 +1,5 @@
 package com.javamonitor.mbeans;
 
-import com.javamonitor.JmxHelper;
-
 /**
  * The tricky bits for SpringSource's DM Server OSGi-based application server.
  * 
@@ -9,13 +7,24 @@ import com.javamonitor.JmxHelper;
  */
 final class ServerSpringDM extends ServerTomcat {
     /**
-     * Test if we're maybe running inside a DM server instance.
-     * 
-     * @return <code>true</code> if we're inside DM server, or
-     *         <code>false</code> if not.
+     * Detects DM server instances, which embed Tomcat.
      */
-    public static boolean runningInSpringDM() {
-        return JmxHelper.mbeanExists("com.springsource.server:type=Deployer");
+    static class Detector extends ServerTomcat.Detector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        @Override
+        public String[] getObjectNames() {
+            return new String[] { "com.springsource.server:type=Deployer" };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        @Override
+        public ServerMBean newServer() {
+            return new ServerSpringDM();
+        }
     }
 
     /**
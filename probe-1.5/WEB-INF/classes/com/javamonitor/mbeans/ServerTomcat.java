@@ -1,6 +1,5 @@
 package com.javamonitor.mbeans;
 
-import static com.javamonitor.JmxHelper.mbeanExists;
 import static com.javamonitor.JmxHelper.queryInt;
 import static com.javamonitor.JmxHelper.queryNames;
 import static com.javamonitor.JmxHelper.queryString;
@@ -21,41 +20,46 @@ class ServerTomcat implements ServerMBean {
     private static final String OBJECTNAME_TOMCAT_SERVER = "Catalina:type=Server";
 
     /**
-     * Test if we're maybe running inside a Tomcat instance.
-     * 
-     * @return <code>true</code> if we're inside Tomcat, or <code>false</code>
-     *         if not.
+     * The connector mbeans, which Tomcat registers once it listens.
+     */
+    static final String OBJECTNAME_CONNECTORS = "*:type=Connector,*";
+
+    /**
+     * Detects Tomcat instances.
      */
-    public static boolean runningInTomcat() {
-        return mbeanExists(OBJECTNAME_TOMCAT_SERVER);
+    static class Detector implements ServerDetector {
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getObjectNames()
+         */
+        public String[] getObjectNames() {
+            return new String[] { OBJECTNAME_TOMCAT_SERVER };
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#getConnectors()
+         */
+        public String getConnectors() {
+            return OBJECTNAME_CONNECTORS;
+        }
+
+        /**
+         * @see com.javamonitor.mbeans.ServerDetector#newServer()
+         */
+        public ServerMBean newServer() {
+            return new ServerTomcat();
+        }
     }
 
     /**
      * Get the lowest tomcat HTTP port. Since we may be started pretty early in
      * Tomcat's startup cycle, the HTTP handlers may not have been registered
-     * yet. So, we sleep until they start.
+     * yet. The probe waits for them before it first pushes.
      * 
      * @see com.javamonitor.mbeans.ServerMBean#getHttpPort()
+     * @see Server#whenReady(Runnable)
      */
     public Integer getHttpPort() throws Exception {
-        Collection<ObjectName> connectors = null;
-        int slept = 0;
-        do {
-            connectors = queryNames("*:type=Connector,*");
-            if (connectors.size() < 1) {
-                try {
-                    Thread.sleep(1000L);
-                } catch (InterruptedException e) {
-                    // won't happen...
-                }
-            }
-        } while (connectors.size() < 1 && slept++ < 30);
-
-        if (connectors.size() < 0) {
-            throw new IllegalStateException(
-                    getName()
-                            + " connector MBeans were not loaded after 30 seconds, aborting");
-        }
+        final Collection<ObjectName> connectors = queryNames(OBJECTNAME_CONNECTORS);
 
         int lowest = Integer.MAX_VALUE;
         for (final ObjectName connector : connectors) {
@@ -1,5 +1,7 @@
 package com.javamonitor.openfire.mbeans;
 
+import static java.lang.System.currentTimeMillis;
+
 import org.jivesoftware.openfire.ServerPort;
 import org.jivesoftware.openfire.XMPPServer;
 
@@ -19,25 +21,28 @@ public class Openfire implements OpenfireMBean {
 
     private static final Integer XMPP_CLIENT_PORT = 5222;
 
+    /**
+     * The time we give Openfire to open the standard XMPP port, before we
+     * settle for another port.
+     */
+    private static final long STARTUP_TIME = 30000L;
+
+    private final long created = currentTimeMillis();
+
     /**
      * @see com.javamonitor.openfire.mbeans.OpenfireMBean#getLowestPort()
      */
     public Integer getLowestPort() {
-        int slept = 0;
-        Integer lowestPort = null;
-        do {
-            lowestPort = findLowestPort();
-            if (XMPP_CLIENT_PORT.equals(lowestPort)) {
-                // this is extremely likely to be correct, so we are done
-                return lowestPort;
-            }
+        final Integer lowestPort = findLowestPort();
+        if (XMPP_CLIENT_PORT.equals(lowestPort)) {
+            // this is extremely likely to be correct, so we are done
+            return lowestPort;
+        }
 
-            try {
-                Thread.sleep(1000L);
-            } catch (InterruptedException e) {
-                // won't happen...
-            }
-        } while (slept++ < 30);
+        if (currentTimeMillis() - created < STARTUP_TIME) {
+            // the standard port may still show up
+            return null;
+        }
 
         return lowestPort;
     }
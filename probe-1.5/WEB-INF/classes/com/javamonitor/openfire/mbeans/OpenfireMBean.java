@@ -19,14 +19,15 @@ public interface OpenfireMBean {
      * port can be found.
      * <p>
      * Also, it seems that the start-up sequence of Openfire is such that it
-     * takes quite a while to open the correct ports. This method sleeps a
-     * little, waiting for the standard XMPP port to show up, since that is the
-     * lowest port in 99% of the cases. Just in case that port is not used, we
-     * default to another port. This makes it possible to monitor multiple
-     * Openfire servers that have different port numbers, running on the same
-     * machine.
+     * takes quite a while to open the correct ports. For the first half minute,
+     * this method returns <code>null</code> until the standard XMPP port shows
+     * up, since that is the lowest port in 99% of the cases. Just in case that
+     * port is not used, we default to another port after that. This makes it
+     * possible to monitor multiple Openfire servers that have different port
+     * numbers, running on the same machine.
      * 
-     * @return The lowest port for this Openfire server.
+     * @return The lowest port for this Openfire server, or <code>null</code>
+     *         if we do not know it yet.
      */
     Integer getLowestPort();
 }